@@ -0,0 +1,213 @@
+package com.vamsik.benchmarks;
+
+import com.vamsik.core.Peer;
+import com.vamsik.utils.Config;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How many connections one peer holds and what each costs, for the engine and thread mode chosen
+ * with {@code -Dapp.server} and {@code -Dapp.threads}. First {@code connections} clients connect,
+ * send a PING and stay idle, and the growth of the process RSS and heap is printed per connection;
+ * the client sockets live in the same JVM and are part of it. Then as many leechers connect at
+ * once, each pulls a range of {@code rangeKilobytes} and keeps its connection open until all are
+ * done, and the number served within {@code timeoutMillis} is printed.
+ * <p>
+ * Settings, as {@code -Dbench.*} properties: {@code connections} (5000), {@code rangeKilobytes}
+ * (256) and {@code timeoutMillis} (10000). Every connection needs two file descriptors.
+ */
+public final class ConnectionHarness {
+    private static final int CONNECTIONS = Integer.getInteger("bench.connections", 5000);
+    private static final int RANGE_KILOBYTES = Integer.getInteger("bench.rangeKilobytes", 256);
+    private static final int TIMEOUT_MILLIS = Integer.getInteger("bench.timeoutMillis", 10000);
+    private static final String FILE_NAME = "connections.bin";
+    // time for the server to accept the idle connections and start on each of them
+    private static final long SETTLE_MILLIS = 2000;
+
+    private ConnectionHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // the peer registers the address it reaches discovery on, rather than the machine's own
+        System.setProperty("app.env", "debug");
+        Fixtures.quietLogging();
+
+        Path root = Files.createTempDirectory("connection-harness");
+        Peer peer = null;
+        try {
+            int discoveryPort = Fixtures.startDiscovery();
+            Path shared = root.resolve("shared");
+            Files.createDirectories(shared);
+            Fixtures.writeRandomFile(shared.resolve(FILE_NAME), RANGE_KILOBYTES * 1024L, 1);
+
+            int port = Fixtures.freePort();
+            peer = new Peer("127.0.0.2", discoveryPort, port, shared.toString());
+            peer.setDaemon(true);
+            peer.start();
+            Fixtures.awaitPort("127.0.0.1", port);
+            awaitShared(port);
+
+            System.out.printf("%s engine, %s threads, %d connections%n",
+                    Config.SERVER_ENGINE, Config.VIRTUAL_THREADS ? "virtual" : "platform", CONNECTIONS);
+            measureIdle(port);
+            measureServed(port);
+        } finally {
+            if (peer != null) {
+                peer.disconnect();
+            }
+            Fixtures.deleteTree(root);
+        }
+    }
+
+    // the peer answers NO until it has indexed the file
+    private static void awaitShared(int port) throws IOException, InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeUTF("DOYOUHAVE");
+                out.writeUTF(FILE_NAME);
+                out.flush();
+                boolean shared = "YES".equals(in.readUTF());
+                out.writeUTF("DISCONNECT");
+                out.flush();
+                if (shared) {
+                    return;
+                }
+            }
+            Thread.sleep(100);
+        }
+        throw new IOException("The peer did not share " + FILE_NAME);
+    }
+
+    private static void measureIdle(int port) throws IOException, InterruptedException {
+        List<Socket> sockets = new ArrayList<>(CONNECTIONS);
+        long rssBefore = residentKilobytes();
+        long heapBefore = usedHeap();
+
+        try {
+            for (int i = 0; i < CONNECTIONS; i++) {
+                Socket socket = new Socket("127.0.0.1", port);
+                sockets.add(socket);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeUTF("PING");
+                out.flush();
+            }
+            Thread.sleep(SETTLE_MILLIS);
+
+            long rss = residentKilobytes() - rssBefore;
+            long heap = usedHeap() - heapBefore;
+            System.out.printf("idle: RSS +%.1f KB, heap +%.1f KB per connection%n",
+                    (double) rss / CONNECTIONS, heap / 1024.0 / CONNECTIONS);
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+        Thread.sleep(SETTLE_MILLIS);
+    }
+
+    private static void measureServed(int port) throws InterruptedException {
+        long rangeBytes = RANGE_KILOBYTES * 1024L;
+        long[] latencies = new long[CONNECTIONS];
+        AtomicInteger served = new AtomicInteger();
+        AtomicInteger timedOut = new AtomicInteger();
+        Queue<Exception> failures = new ConcurrentLinkedQueue<>();
+        CountDownLatch finished = new CountDownLatch(CONNECTIONS);
+        CountDownLatch release = new CountDownLatch(1);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            int number = i;
+            Thread.ofVirtual().start(() -> {
+                try (Socket socket = new Socket()) {
+                    try {
+                        socket.connect(new InetSocketAddress("127.0.0.1", port), TIMEOUT_MILLIS);
+                        socket.setSoTimeout(TIMEOUT_MILLIS);
+                        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                        out.writeUTF("DOWNLOADRANGE");
+                        out.writeUTF(FILE_NAME);
+                        out.writeLong(0);
+                        out.writeLong(rangeBytes);
+                        out.flush();
+
+                        in.readUTF();
+                        in.readLong();
+                        in.readLong();
+                        long count = in.readLong();
+                        if (count != rangeBytes) {
+                            throw new IOException("Got " + count + " of " + rangeBytes + " bytes");
+                        }
+                        in.skipNBytes(count);
+
+                        latencies[number] = System.nanoTime() - start;
+                        served.incrementAndGet();
+                    } catch (SocketTimeoutException e) {
+                        timedOut.incrementAndGet();
+                    } catch (Exception e) {
+                        failures.add(e);
+                    } finally {
+                        finished.countDown();
+                    }
+                    // a leecher keeps its connection for the next piece
+                    release.await();
+                } catch (IOException | InterruptedException e) {
+                    failures.add(e);
+                }
+            });
+        }
+
+        finished.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        release.countDown();
+
+        System.out.printf("served: %d of %d in %.2f s, %d timed out, %d failed%n",
+                served.get(), CONNECTIONS, seconds, timedOut.get(), failures.size());
+        if (!failures.isEmpty()) {
+            System.out.println("  first failure: " + failures.peek());
+        }
+
+        long[] done = Arrays.stream(latencies).filter(latency -> latency > 0).sorted().toArray();
+        if (done.length > 0) {
+            System.out.printf("  time to served p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    done[done.length / 2] / 1e6, done[(int) (done.length * 0.99)] / 1e6, done[done.length - 1] / 1e6);
+        }
+    }
+
+    // the resident set from /proc, 0 where there is none
+    private static long residentKilobytes() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) {
+            return 0;
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").strip());
+            }
+        }
+        return 0;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
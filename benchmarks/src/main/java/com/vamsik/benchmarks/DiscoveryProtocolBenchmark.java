@@ -0,0 +1,192 @@
+package com.vamsik.benchmarks;
+
+import com.vamsik.protocol.FramedClient;
+import com.vamsik.protocol.Opcode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QUERY, SOURCES and LISTPAGE round trips against a discovery service running in the same JVM,
+ * over loopback, so the numbers include the command handling and the protocol but not a real
+ * network. Each registered peer keeps its own connection open, as real peers do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiscoveryProtocolBenchmark {
+    private static final int PAGE_SIZE = 200;
+    private static final int BATCH = 100;
+
+    @Param("100")
+    public int peers;
+
+    @Param("1000")
+    public int filesPerPeer;
+
+    @Param("10000")
+    public int catalogSize;
+
+    private int port;
+    private final List<Socket> registrations = new ArrayList<>();
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        Fixtures.quietLogging();
+        port = Fixtures.startDiscovery();
+
+        names = new String[catalogSize];
+        for (int i = 0; i < catalogSize; i++) {
+            names[i] = "Holiday-Video-" + i + ".MP4";
+        }
+
+        SplittableRandom random = new SplittableRandom(42);
+        for (int p = 0; p < peers; p++) {
+            Socket socket = new Socket("127.0.0.1", port);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // peers on the requesting host are left out of QUERY replies, these claim other hosts
+            dos.writeUTF("REGISTER2");
+            dos.writeUTF("10.0." + (p >> 8 & 255) + "." + (p & 255));
+            dos.writeInt(8000);
+            dos.writeInt(filesPerPeer);
+            for (int f = 0; f < filesPerPeer; f++) {
+                dos.writeUTF(names[random.nextInt(catalogSize)]);
+                dos.writeLong(1L << 20);
+            }
+            dos.flush();
+            dis.readUTF();
+            dis.readInt();
+
+            registrations.add(socket);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Socket socket : registrations) {
+            socket.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private Socket socket;
+        private DataOutputStream dos;
+        private DataInputStream dis;
+        private FramedClient framed;
+
+        @Setup(Level.Trial)
+        public void connect(DiscoveryProtocolBenchmark benchmark) throws IOException {
+            socket = new Socket("127.0.0.1", benchmark.port);
+            socket.setTcpNoDelay(true);
+            dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            framed = FramedClient.upgrade(new Socket("127.0.0.1", benchmark.port));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+            framed.close();
+        }
+    }
+
+    @Benchmark
+    public void query(Client client, Blackhole blackhole) throws IOException {
+        client.dos.writeUTF("QUERY");
+        client.dos.writeUTF(this.randomName());
+        client.dos.flush();
+
+        if ("FOUND".equals(client.dis.readUTF())) {
+            int count = client.dis.readInt();
+            for (int i = 0; i < count; i++) {
+                blackhole.consume(client.dis.readUTF());
+            }
+        }
+    }
+
+    @Benchmark
+    public void batchQuery(Client client, Blackhole blackhole) throws IOException {
+        client.dos.writeUTF("SOURCES");
+        this.writeBatch(client.dos);
+        client.dos.flush();
+        readBatch(client.dis, blackhole);
+    }
+
+    @Benchmark
+    public void batchQueryFramed(Client client, Blackhole blackhole) throws IOException, ExecutionException, InterruptedException {
+        readBatch(client.framed.request(Opcode.SOURCES, this::writeBatch).get(), blackhole);
+    }
+
+    @Benchmark
+    public void listPage(Client client, Blackhole blackhole) throws IOException {
+        client.dos.writeUTF("LISTPAGE");
+        client.dos.writeUTF(this.randomName().toLowerCase(Locale.ROOT));
+        client.dos.writeInt(PAGE_SIZE);
+        client.dos.writeUTF("ALL");
+        client.dos.writeUTF("");
+        client.dos.flush();
+
+        int count = client.dis.readInt();
+        for (int i = 0; i < count; i++) {
+            blackhole.consume(client.dis.readUTF());
+            blackhole.consume(client.dis.readLong());
+            blackhole.consume(client.dis.readInt());
+        }
+        blackhole.consume(client.dis.readUTF());
+    }
+
+    private String randomName() {
+        return names[ThreadLocalRandom.current().nextInt(catalogSize)];
+    }
+
+    private void writeBatch(DataOutputStream dos) throws IOException {
+        dos.writeInt(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            dos.writeUTF(this.randomName());
+        }
+    }
+
+    private static void readBatch(DataInputStream dis, Blackhole blackhole) throws IOException {
+        int count = dis.readInt();
+        for (int i = 0; i < count; i++) {
+            blackhole.consume(dis.readUTF());
+            int seeders = dis.readInt();
+            for (int s = 0; s < seeders; s++) {
+                blackhole.consume(dis.readUTF());
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.vamsik.benchmarks;
+
+import com.vamsik.DiscoveryService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Setup shared by the benchmarks: an in-process discovery service, generated files and logging
+ * that stays out of the measurements.
+ */
+final class Fixtures {
+    private static final int STARTUP_POLLS = 100;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Drops INFO logging, the services log every connection and transfer.
+     */
+    static void quietLogging() {
+        Logger root = Logger.getLogger("");
+        root.setLevel(Level.WARNING);
+        for (Handler handler : root.getHandlers()) {
+            handler.setLevel(Level.WARNING);
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Starts a discovery service in this JVM and waits until it accepts connections. Unless set
+     * otherwise it keeps the registry in memory and hands out leases that outlive the run.
+     *
+     * @return its port
+     */
+    static int startDiscovery() throws IOException, InterruptedException {
+        if (System.getProperty("app.dataDir") == null) {
+            System.setProperty("app.dataDir", "");
+        }
+        if (System.getProperty("app.leaseTtl") == null) {
+            System.setProperty("app.leaseTtl", "3600");
+        }
+
+        int port = freePort();
+        Thread server = new Thread(() -> DiscoveryService.main(new String[]{String.valueOf(port)}), "discovery-service");
+        server.setDaemon(true);
+        server.start();
+
+        awaitPort("127.0.0.1", port);
+        return port;
+    }
+
+    static void awaitPort(String host, int port) throws IOException, InterruptedException {
+        for (int i = 0; i < STARTUP_POLLS; i++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 1000);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Nothing is listening on " + host + ":" + port);
+    }
+
+    /**
+     * Writes {@code size} random bytes, so compression and caching can not make a transfer look
+     * cheaper than it is.
+     */
+    static void writeRandomFile(Path path, long size, long seed) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        byte[] block = new byte[1024 * 1024];
+
+        try (OutputStream out = Files.newOutputStream(path)) {
+            for (long written = 0; written < size; written += block.length) {
+                for (int i = 0; i < block.length; i += Long.BYTES) {
+                    long value = random.nextLong();
+                    for (int b = 0; b < Long.BYTES; b++) {
+                        block[i + b] = (byte) (value >>> (b * 8));
+                    }
+                }
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.vamsik.benchmarks;
+
+import com.vamsik.protocol.Frame;
+import com.vamsik.protocol.FrameCodec;
+import com.vamsik.protocol.Opcode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a SOURCES request as a frame against the readUTF command string it
+ * replaces. Decoding dispatches on the command the way the discovery service does, on the string
+ * or on the opcode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameCodecBenchmark {
+    @Param({"1", "100"})
+    public int names;
+
+    private String[] fileNames;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+    private byte[] legacyRequest;
+    private byte[] framedRequest;
+
+    @Setup
+    public void setUp() throws IOException {
+        fileNames = new String[names];
+        for (int i = 0; i < names; i++) {
+            fileNames[i] = "Holiday-Video-" + i + ".MP4";
+        }
+        legacyRequest = this.encodeLegacy();
+        framedRequest = this.encodeFramed();
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() throws IOException {
+        buffer.reset();
+        DataOutputStream dos = new DataOutputStream(buffer);
+        dos.writeUTF("SOURCES");
+        this.writeNames(dos);
+        return buffer.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeFramed() throws IOException {
+        buffer.reset();
+        FrameCodec.write(new DataOutputStream(buffer), Opcode.SOURCES.getCode(), 1, FrameCodec.encode(this::writeNames));
+        return buffer.toByteArray();
+    }
+
+    @Benchmark
+    public void decodeLegacy(Blackhole blackhole) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(legacyRequest));
+        switch (dis.readUTF()) {
+            case "QUERY" -> blackhole.consume(dis.readUTF());
+            case "SOURCES" -> readNames(dis, blackhole);
+            default -> throw new IOException("Unexpected command");
+        }
+    }
+
+    @Benchmark
+    public void decodeFramed(Blackhole blackhole) throws IOException {
+        Frame frame = FrameCodec.read(new DataInputStream(new ByteArrayInputStream(framedRequest)));
+        switch (Opcode.of(frame.opcode())) {
+            case QUERY -> blackhole.consume(frame.payloadInput().readUTF());
+            case SOURCES -> readNames(frame.payloadInput(), blackhole);
+            case null, default -> throw new IOException("Unexpected opcode");
+        }
+    }
+
+    private void writeNames(DataOutputStream dos) throws IOException {
+        dos.writeInt(fileNames.length);
+        for (String fileName : fileNames) {
+            dos.writeUTF(fileName);
+        }
+    }
+
+    private static void readNames(DataInputStream dis, Blackhole blackhole) throws IOException {
+        int count = dis.readInt();
+        for (int i = 0; i < count; i++) {
+            blackhole.consume(dis.readUTF());
+        }
+    }
+}
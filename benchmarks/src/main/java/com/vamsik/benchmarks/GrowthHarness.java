@@ -0,0 +1,168 @@
+package com.vamsik.benchmarks;
+
+import com.vamsik.core.Peer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.SplittableRandom;
+
+/**
+ * Checks that a file which keeps growing after it was shared ends up announced as it is: a peer
+ * shares a file of {@code initialKilobytes}, and once discovery lists it the file is appended to
+ * {@code appends} times, {@code appendMillis} apart. The run fails with exit status 1 unless
+ * discovery then lists the final size and the digest of the final content within
+ * {@code timeoutMillis}.
+ * <p>
+ * Settings, as {@code -Dbench.*} properties: {@code initialKilobytes} (1024), {@code appends} (10),
+ * {@code appendMillis} (100, below the announce batch window so the appends are debounced) and
+ * {@code timeoutMillis} (10000).
+ */
+public final class GrowthHarness {
+    private static final int INITIAL_KILOBYTES = Integer.getInteger("bench.initialKilobytes", 1024);
+    private static final int APPENDS = Integer.getInteger("bench.appends", 10);
+    private static final int APPEND_MILLIS = Integer.getInteger("bench.appendMillis", 100);
+    private static final int TIMEOUT_MILLIS = Integer.getInteger("bench.timeoutMillis", 10000);
+    private static final String FILE_NAME = "growing.log";
+    private static final int APPEND_BYTES = 64 * 1024;
+    private static final long POLL_MILLIS = 50;
+
+    private GrowthHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // the peer registers the address it reaches discovery on, rather than the machine's own
+        System.setProperty("app.env", "debug");
+        Fixtures.quietLogging();
+
+        Path root = Files.createTempDirectory("growth-harness");
+        Peer peer = null;
+        boolean passed;
+        try {
+            int discoveryPort = Fixtures.startDiscovery();
+            Path shared = root.resolve("shared");
+            Files.createDirectories(shared);
+            Path file = shared.resolve(FILE_NAME);
+            Fixtures.writeRandomFile(file, INITIAL_KILOBYTES * 1024L, 1);
+
+            int port = Fixtures.freePort();
+            peer = new Peer("127.0.0.2", discoveryPort, port, shared.toString());
+            peer.setDaemon(true);
+            peer.start();
+
+            long initialSize = Files.size(file);
+            passed = awaitListed(discoveryPort, initialSize, digestOf(file));
+
+            SplittableRandom random = new SplittableRandom(2);
+            byte[] chunk = new byte[APPEND_BYTES];
+            try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.APPEND)) {
+                for (int i = 0; i < APPENDS; i++) {
+                    random.nextBytes(chunk);
+                    out.write(chunk);
+                    out.flush();
+                    Thread.sleep(APPEND_MILLIS);
+                }
+            }
+            System.out.printf("appended %d x %d KB to %s%n", APPENDS, APPEND_BYTES / 1024, FILE_NAME);
+
+            passed &= awaitListed(discoveryPort, Files.size(file), digestOf(file));
+        } finally {
+            if (peer != null) {
+                peer.disconnect();
+            }
+            Fixtures.deleteTree(root);
+        }
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Polls discovery until it lists the file with the size and digest, or the timeout passes.
+     *
+     * @return whether it did
+     */
+    private static boolean awaitListed(int discoveryPort, long size, String digest) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TIMEOUT_MILLIS * 1_000_000L;
+        long listedSize = -1;
+        String listedDigest = "";
+
+        while (System.nanoTime() - deadline < 0) {
+            try (Socket socket = new Socket("127.0.0.1", discoveryPort)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                listedSize = listedSize(out, in);
+                listedDigest = listedDigest(out, in);
+            }
+            if (listedSize == size && listedDigest.equals(digest)) {
+                System.out.printf("listed at %d bytes with its digest after %d ms%n", size, (System.nanoTime() - start) / 1_000_000);
+                return true;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+
+        System.out.printf("expected %d bytes and digest %s, discovery lists %d bytes and digest '%s'%n",
+                size, digest, listedSize, listedDigest);
+        return false;
+    }
+
+    // the size in the catalog, -1 while the file is not listed
+    private static long listedSize(DataOutputStream out, DataInputStream in) throws IOException {
+        out.writeUTF("LISTPAGE");
+        out.writeUTF("");
+        out.writeInt(10);
+        out.writeUTF("prefix");
+        out.writeUTF(FILE_NAME);
+        out.flush();
+
+        long size = -1;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            long itemSize = in.readLong();
+            in.readInt();
+            if (name.equals(FILE_NAME)) {
+                size = itemSize;
+            }
+        }
+        in.readUTF();
+        return size;
+    }
+
+    // the digest discovery hands to downloaders, "" while it is not known
+    private static String listedDigest(DataOutputStream out, DataInputStream in) throws IOException {
+        out.writeUTF("SOURCES");
+        out.writeInt(1);
+        out.writeUTF(FILE_NAME);
+        out.flush();
+
+        in.readInt();
+        String digest = in.readUTF();
+        int seeders = in.readInt();
+        for (int i = 0; i < seeders; i++) {
+            in.readUTF();
+        }
+        return digest;
+    }
+
+    private static String digestOf(Path file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,237 @@
+package com.vamsik.benchmarks;
+
+import com.vamsik.core.ClientHandler;
+import com.vamsik.core.ConnectionPool;
+import com.vamsik.core.FileSources;
+import com.vamsik.core.Peer;
+import com.vamsik.core.SwarmDownloader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a discovery service, a swarm of peers and a number of clients in one JVM over loopback,
+ * then measures lookups and downloads end to end. Peers register from 127.0.0.2 and clients ask
+ * from 127.0.0.1, since QUERY leaves out peers on the asking host. Every peer shares the same
+ * generated files, so each download is spread over all of them.
+ * <p>
+ * Settings, as {@code -Dbench.*} properties: {@code peers} (3), {@code files} (8),
+ * {@code fileMegabytes} (32), {@code clients} (4), {@code lookups} (20000), {@code downloads}
+ * (24) and {@code uploadRate}, a per-peer cap in bytes per second (0, unlimited). Any
+ * {@code -Dapp.*} setting of the services applies too.
+ */
+public final class LoopbackHarness {
+    private static final int PEERS = Integer.getInteger("bench.peers", 3);
+    private static final int FILES = Integer.getInteger("bench.files", 8);
+    private static final int FILE_MEGABYTES = Integer.getInteger("bench.fileMegabytes", 32);
+    private static final int CLIENTS = Math.max(1, Integer.getInteger("bench.clients", 4));
+    private static final int LOOKUPS = Integer.getInteger("bench.lookups", 20000);
+    private static final int DOWNLOADS = Integer.getInteger("bench.downloads", 24);
+    private static final long UPLOAD_RATE = Long.getLong("bench.uploadRate", 0);
+    private static final long REGISTRATION_TIMEOUT_MILLIS = 60_000;
+
+    private LoopbackHarness() {
+    }
+
+    /**
+     * One operation of a phase, given its number, returning how many bytes it moved.
+     */
+    private interface Operation {
+        long run(ClientHandler client, int number) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // peers register the address they reach discovery on, rather than the machine's own
+        System.setProperty("app.env", "debug");
+        Fixtures.quietLogging();
+
+        Path root = Files.createTempDirectory("loopback-harness");
+        List<Peer> peers = new ArrayList<>();
+        try {
+            int discoveryPort = Fixtures.startDiscovery();
+            List<String> names = createFiles(root);
+
+            for (int p = 0; p < PEERS; p++) {
+                Path shared = root.resolve("peer-" + p);
+                Files.createDirectories(shared);
+                for (String name : names) {
+                    Files.createLink(shared.resolve(name), root.resolve("files").resolve(name));
+                }
+
+                int port = Fixtures.freePort();
+                Peer peer = new Peer("127.0.0.2", discoveryPort, port, shared.toString());
+                if (UPLOAD_RATE > 0) {
+                    peer.getUploadThrottle().setGlobalRate(UPLOAD_RATE);
+                }
+                peer.setDaemon(true);
+                peer.start();
+                Fixtures.awaitPort("127.0.0.1", port);
+                peers.add(peer);
+            }
+
+            Map<String, FileSources> seeders = awaitRegistration(discoveryPort, root, names);
+            System.out.printf("%d peers sharing %d files of %d MB, %d clients%n", PEERS, FILES, FILE_MEGABYTES, CLIENTS);
+
+            runPhase("lookup", LOOKUPS, discoveryPort, root, (client, number) -> {
+                String name = names.get(ThreadLocalRandom.current().nextInt(names.size()));
+                if (client.queryPeers(List.of(name)).get(name).peers().isEmpty()) {
+                    throw new IOException("No peers for " + name);
+                }
+                return 0;
+            }, null);
+
+            LongAdder received = new LongAdder();
+            ConnectionPool pool = new ConnectionPool(15000, 4, 30000, 2000);
+            try {
+                runPhase("download", DOWNLOADS, discoveryPort, root, (client, number) -> {
+                    String name = names.get(number % names.size());
+                    Path target = root.resolve("downloads").resolve(number + "-" + name);
+                    AtomicLong done = new AtomicLong();
+                    SwarmDownloader downloader = new SwarmDownloader(name, seeders.get(name).peers(), target, pool, (bytes, size) -> {
+                        long before = done.getAndAccumulate(bytes, Math::max);
+                        if (bytes > before) {
+                            received.add(bytes - before);
+                        }
+                    });
+                    try {
+                        if (!downloader.download()) {
+                            throw new IOException("Download of " + name + " did not complete");
+                        }
+                        return Files.size(target);
+                    } finally {
+                        Files.deleteIfExists(target);
+                    }
+                }, received);
+            } finally {
+                pool.close();
+            }
+        } finally {
+            for (Peer peer : peers) {
+                peer.disconnect();
+            }
+            Fixtures.deleteTree(root);
+        }
+    }
+
+    private static List<String> createFiles(Path root) throws IOException {
+        Path files = root.resolve("files");
+        Files.createDirectories(files);
+        Files.createDirectories(root.resolve("downloads"));
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            String name = "harness-" + i + ".bin";
+            Fixtures.writeRandomFile(files.resolve(name), (long) FILE_MEGABYTES * 1024 * 1024, i);
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Waits until discovery lists every peer for every file.
+     *
+     * @return the seeders of each file
+     */
+    private static Map<String, FileSources> awaitRegistration(int discoveryPort, Path root, List<String> names)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + REGISTRATION_TIMEOUT_MILLIS;
+        try (ClientHandler client = new ClientHandler("127.0.0.1", discoveryPort, root.resolve("downloads").toString())) {
+            while (true) {
+                Map<String, FileSources> seeders = client.queryPeers(names);
+                if (seeders.values().stream().allMatch(sources -> sources.peers().size() == PEERS)) {
+                    return seeders;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Peers did not register within " + REGISTRATION_TIMEOUT_MILLIS + " ms");
+                }
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    /**
+     * Runs {@code operations} operations spread over the client threads, each with a client of
+     * its own, and prints throughput and latency. With {@code progress} set it also prints the
+     * bytes received in every second of the run.
+     */
+    private static void runPhase(String phase, int operations, int discoveryPort, Path root, Operation operation, LongAdder progress)
+            throws InterruptedException {
+        if (operations <= 0) {
+            return;
+        }
+
+        long[] latencies = new long[operations];
+        AtomicInteger next = new AtomicInteger();
+        LongAdder bytes = new LongAdder();
+        Queue<Exception> failures = new ConcurrentLinkedQueue<>();
+        CountDownLatch finished = new CountDownLatch(CLIENTS);
+
+        long start = System.nanoTime();
+        for (int c = 0; c < CLIENTS; c++) {
+            Thread thread = new Thread(() -> {
+                try (ClientHandler client = new ClientHandler("127.0.0.1", discoveryPort, root.resolve("downloads").toString())) {
+                    for (int number; (number = next.getAndIncrement()) < operations; ) {
+                        long began = System.nanoTime();
+                        bytes.add(operation.run(client, number));
+                        latencies[number] = System.nanoTime() - began;
+                    }
+                } catch (Exception e) {
+                    failures.add(e);
+                } finally {
+                    finished.countDown();
+                }
+            }, phase + "-client-" + c);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        List<Double> perSecond = new ArrayList<>();
+        long last = 0;
+        while (!finished.await(1, TimeUnit.SECONDS)) {
+            if (progress != null) {
+                long now = progress.sum();
+                perSecond.add((now - last) / (1024.0 * 1024.0));
+                last = now;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (!failures.isEmpty()) {
+            Exception failure = failures.peek();
+            System.out.printf("%s: %d of %d clients failed, first: %s%n", phase, failures.size(), CLIENTS, failure);
+            return;
+        }
+
+        Arrays.sort(latencies);
+        System.out.printf("%s: %d ops in %.2f s, %.1f ops/s", phase, operations, seconds, operations / seconds);
+        if (bytes.sum() > 0) {
+            System.out.printf(", %.1f MB/s", bytes.sum() / (1024.0 * 1024.0) / seconds);
+        }
+        System.out.printf("%n  latency p50 %s, p99 %s, max %s%n",
+                millis(latencies[operations / 2]), millis(latencies[(int) (operations * 0.99)]), millis(latencies[operations - 1]));
+        if (!perSecond.isEmpty()) {
+            System.out.print("  MB/s per second:");
+            for (double rate : perSecond) {
+                System.out.printf(" %.0f", rate);
+            }
+            System.out.println();
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f ms", nanos / 1e6);
+    }
+}
@@ -0,0 +1,117 @@
+package com.vamsik.benchmarks;
+
+import com.vamsik.CatalogItem;
+import com.vamsik.Entry;
+import com.vamsik.ListFilter;
+import com.vamsik.Registry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The discovery registry without the network: {@code Entry.hasFile}, QUERY's index lookup,
+ * registering a peer and reading a LISTPAGE page. Every peer shares {@code filesPerPeer} names
+ * drawn from a catalog of {@code catalogSize}. Scale them up with {@code -p filesPerPeer=10000}
+ * and a heap to match, the registry needs a few hundred bytes per shared file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistryBenchmark {
+    private static final int PAGE_SIZE = 200;
+    private static final int PAGE_SCAN = 50_000;
+
+    @Param("10000")
+    public int peers;
+
+    @Param("100")
+    public int filesPerPeer;
+
+    @Param("10000")
+    public int catalogSize;
+
+    private Registry registry;
+    // a registered peer, holding the first filesPerPeer names of the catalog
+    private Entry peer;
+    private String[] names;
+    private String[] missing;
+    private String[] cursors;
+
+    @Setup
+    public void setUp() {
+        names = new String[catalogSize];
+        missing = new String[catalogSize];
+        cursors = new String[catalogSize];
+        for (int i = 0; i < catalogSize; i++) {
+            names[i] = "Holiday-Video-" + i + ".MP4";
+            missing[i] = "holiday-video-" + i + ".mkv";
+            cursors[i] = Entry.normalize(names[i]);
+        }
+
+        registry = new Registry(Duration.ofHours(1));
+        SplittableRandom random = new SplittableRandom(42);
+        for (int p = 0; p < peers; p++) {
+            Entry entry = new Entry("10." + (p >> 16 & 255) + "." + (p >> 8 & 255) + "." + (p & 255), 8000);
+            for (int f = 0; f < filesPerPeer; f++) {
+                entry.addFile(names[random.nextInt(catalogSize)], 1L << 20);
+            }
+            registry.register(entry);
+        }
+
+        peer = new Entry("10.255.0.1", 8000);
+        for (int f = 0; f < filesPerPeer; f++) {
+            peer.addFile(names[f % catalogSize], 1L << 20);
+        }
+        registry.register(peer);
+    }
+
+    @Benchmark
+    public boolean hasFileHit() {
+        return peer.hasFile(names[ThreadLocalRandom.current().nextInt(Math.min(filesPerPeer, catalogSize))]);
+    }
+
+    @Benchmark
+    public boolean hasFileMiss() {
+        return peer.hasFile(missing[ThreadLocalRandom.current().nextInt(catalogSize)]);
+    }
+
+    @Benchmark
+    public Collection<Entry> query() {
+        return registry.query(names[ThreadLocalRandom.current().nextInt(catalogSize)]);
+    }
+
+    // replaces the registration of a peer, which unindexes and reindexes all of its files
+    @Benchmark
+    public void register() {
+        registry.register(peer);
+    }
+
+    @Benchmark
+    public List<CatalogItem> listPage() {
+        List<CatalogItem> page = new ArrayList<>(PAGE_SIZE);
+        registry.scan(cursors[ThreadLocalRandom.current().nextInt(catalogSize)], ListFilter.ALL, PAGE_SCAN, item -> {
+            page.add(item);
+            return page.size() < PAGE_SIZE;
+        });
+        return page;
+    }
+}
@@ -0,0 +1,99 @@
+package com.vamsik.benchmarks;
+
+import com.vamsik.Entry;
+import com.vamsik.Registry;
+import com.vamsik.SearchIndex;
+import com.vamsik.SearchResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SEARCH over a catalog of {@code catalogSize} generated names such as
+ * {@code Invoice-2019-03-004711.pdf}, registered by peers sharing a thousand each: a prefix, a
+ * substring that many names contain, one that few do, and the same with a typo. A catalog of ten
+ * million names wants {@code -Xmx8g}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class SearchBenchmark {
+    private static final int FILES_PER_PEER = 1000;
+    private static final int RESULTS = 20;
+    private static final int BUDGET = 10_000;
+    private static final String[] WORDS = {"report", "invoice", "holiday", "video", "budget", "meeting",
+            "notes", "photo", "backup", "draft", "contract", "scan", "lecture", "podcast", "release", "slides"};
+    private static final String[] EXTENSIONS = {".pdf", ".mp4", ".jpg", ".zip", ".docx", ".txt"};
+
+    @Param("1000000")
+    public int catalogSize;
+
+    private Registry registry;
+
+    @Setup
+    public void setUp() {
+        Fixtures.quietLogging();
+        registry = new Registry(Duration.ofHours(1));
+        SplittableRandom random = new SplittableRandom(42);
+
+        Entry entry = null;
+        for (int i = 0; i < catalogSize; i++) {
+            if (i % FILES_PER_PEER == 0) {
+                if (entry != null) {
+                    registry.register(entry);
+                }
+                int p = i / FILES_PER_PEER;
+                entry = new Entry("10." + (p >> 16 & 255) + "." + (p >> 8 & 255) + "." + (p & 255), 8000);
+            }
+
+            String word = WORDS[random.nextInt(WORDS.length)];
+            String name = Character.toUpperCase(word.charAt(0)) + word.substring(1)
+                    + "-" + (2015 + random.nextInt(12)) + "-" + String.format("%02d", 1 + random.nextInt(12))
+                    + "-" + String.format("%06d", i) + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            entry.addFile(name, 1L << 20);
+        }
+        registry.register(entry);
+    }
+
+    @Benchmark
+    public List<SearchResult> prefix() {
+        return registry.search("budget-2026", SearchIndex.Mode.PREFIX, RESULTS, BUDGET);
+    }
+
+    // about one name in eighty contains it
+    @Benchmark
+    public List<SearchResult> commonSubstring() {
+        return registry.search("report-2026", SearchIndex.Mode.CONTAINS, RESULTS, BUDGET);
+    }
+
+    @Benchmark
+    public List<SearchResult> rareSubstring() {
+        return registry.search("004711", SearchIndex.Mode.CONTAINS, RESULTS, BUDGET);
+    }
+
+    @Benchmark
+    public List<SearchResult> typo() {
+        return registry.search("invocie-2019", SearchIndex.Mode.FUZZY, RESULTS, BUDGET);
+    }
+
+    @Benchmark
+    public List<SearchResult> rareTypo() {
+        return registry.search("0047l1", SearchIndex.Mode.FUZZY, RESULTS, BUDGET);
+    }
+}
@@ -0,0 +1,65 @@
+package com.vamsik.benchmarks;
+
+import com.vamsik.core.SharedIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing a shared directory tree at startup, the walk that replaced
+ * {@code FileUtils.walkDirectory}. It includes registering every directory with the watch service,
+ * as a starting peer does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SharedIndexBenchmark {
+    @Param("10000")
+    public int files;
+
+    @Param("100")
+    public int filesPerDirectory;
+
+    private Path root;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("shared-index-bench");
+        for (int i = 0; i < files; i++) {
+            Path directory = root.resolve("d" + i / filesPerDirectory);
+            Files.createDirectories(directory);
+            Files.write(directory.resolve("file-" + i + ".bin"), new byte[i % 1024]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.deleteTree(root);
+    }
+
+    @Benchmark
+    public int index() throws IOException {
+        try (SharedIndex index = new SharedIndex(root, 1000, delta -> {
+        })) {
+            index.start();
+            return index.size();
+        }
+    }
+}
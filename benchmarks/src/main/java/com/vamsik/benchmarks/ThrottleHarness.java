@@ -0,0 +1,198 @@
+package com.vamsik.benchmarks;
+
+import com.vamsik.core.Peer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks that a peer's upload cap holds for many concurrent readers: {@code readers} connections
+ * pull random ranges of one file from a peer limited to {@code rate} bytes per second, and after
+ * {@code phaseSeconds} the limit is changed to {@code changedRate} while they keep reading. The
+ * bytes received in every second are printed, and the run fails with exit status 1 unless the
+ * aggregate of each phase, after its first second, stays within {@code tolerance} of the cap and
+ * no second goes over it by more than twice that.
+ * <p>
+ * Settings, as {@code -Dbench.*} properties: {@code readers} (200), {@code rate} (20 MB/s),
+ * {@code changedRate} (a quarter of {@code rate}), {@code phaseSeconds} (6) and {@code tolerance}
+ * (0.1). The blocking engine runs on virtual threads unless {@code -Dapp.threads} says otherwise,
+ * a pool of ten threads would serve only ten readers.
+ */
+public final class ThrottleHarness {
+    private static final int READERS = Integer.getInteger("bench.readers", 200);
+    private static final long RATE = Long.getLong("bench.rate", 20L * 1024 * 1024);
+    private static final long CHANGED_RATE = Long.getLong("bench.changedRate", RATE / 4);
+    private static final int PHASE_SECONDS = Math.max(2, Integer.getInteger("bench.phaseSeconds", 6));
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("bench.tolerance", "0.1"));
+    private static final String FILE_NAME = "throttle.bin";
+    private static final long FILE_SIZE = 64L * 1024 * 1024;
+    private static final long RANGE_SIZE = 1024 * 1024;
+
+    private ThrottleHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // the peer registers the address it reaches discovery on, rather than the machine's own
+        System.setProperty("app.env", "debug");
+        if (System.getProperty("app.threads") == null) {
+            System.setProperty("app.threads", "virtual");
+        }
+        Fixtures.quietLogging();
+
+        Path root = Files.createTempDirectory("throttle-harness");
+        Peer peer = null;
+        List<Thread> readers = new ArrayList<>();
+        boolean passed;
+        try {
+            int discoveryPort = Fixtures.startDiscovery();
+            Path shared = root.resolve("shared");
+            Files.createDirectories(shared);
+            Fixtures.writeRandomFile(shared.resolve(FILE_NAME), FILE_SIZE, 1);
+
+            int port = Fixtures.freePort();
+            peer = new Peer("127.0.0.2", discoveryPort, port, shared.toString());
+            peer.getUploadThrottle().setGlobalRate(RATE);
+            peer.setDaemon(true);
+            peer.start();
+            Fixtures.awaitPort("127.0.0.1", port);
+
+            LongAdder received = new LongAdder();
+            AtomicLongArray perReader = new AtomicLongArray(READERS);
+            for (int r = 0; r < READERS; r++) {
+                int reader = r;
+                readers.add(Thread.ofVirtual().name("reader-" + r).start(() -> read(port, reader, received, perReader)));
+            }
+            System.out.printf("%d readers, %s engine%n", READERS, System.getProperty("app.server", "blocking"));
+
+            passed = runPhase(RATE, received, perReader);
+            peer.getUploadThrottle().setGlobalRate(CHANGED_RATE);
+            passed &= runPhase(CHANGED_RATE, received, perReader);
+        } finally {
+            for (Thread reader : readers) {
+                reader.interrupt();
+            }
+            if (peer != null) {
+                peer.disconnect();
+            }
+            Fixtures.deleteTree(root);
+        }
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    // pulls random ranges until interrupted, counting every byte as it arrives
+    private static void read(int port, int reader, LongAdder received, AtomicLongArray perReader) {
+        SplittableRandom random = new SplittableRandom(reader);
+        byte[] buffer = new byte[64 * 1024];
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                while (!Thread.currentThread().isInterrupted()) {
+                    out.writeUTF("DOWNLOADRANGE");
+                    out.writeUTF(FILE_NAME);
+                    out.writeLong(random.nextLong(FILE_SIZE / RANGE_SIZE) * RANGE_SIZE);
+                    out.writeLong(RANGE_SIZE);
+                    out.flush();
+
+                    in.readUTF();
+                    in.readLong();
+                    in.readLong();
+                    long remaining = in.readLong();
+                    if (remaining == 0) {
+                        throw new IOException(FILE_NAME + " is not shared yet");
+                    }
+
+                    while (remaining > 0) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read < 0) {
+                            throw new IOException("Connection closed in the middle of a range");
+                        }
+                        remaining -= read;
+                        received.add(read);
+                        perReader.addAndGet(reader, read);
+                    }
+                }
+            } catch (IOException e) {
+                // the peer indexes the file in the background, try again on a new connection
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException stop) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Samples the aggregate rate every second under the given cap.
+     *
+     * @return whether it held
+     */
+    private static boolean runPhase(long cap, LongAdder received, AtomicLongArray perReader) throws InterruptedException {
+        long[] readerStart = snapshot(perReader);
+        List<Double> perSecond = new ArrayList<>();
+
+        long last = received.sum();
+        long lastTime = System.nanoTime();
+        for (int s = 0; s < PHASE_SECONDS; s++) {
+            Thread.sleep(1000);
+            long now = received.sum();
+            long time = System.nanoTime();
+            perSecond.add((now - last) * 1e9 / (time - lastTime));
+            last = now;
+            lastTime = time;
+        }
+
+        // the first second still drains reservations booked under the previous cap
+        List<Double> settled = perSecond.subList(1, perSecond.size());
+        double mean = settled.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        double max = settled.stream().mapToDouble(Double::doubleValue).max().orElse(0);
+        double min = settled.stream().mapToDouble(Double::doubleValue).min().orElse(0);
+        boolean held = Math.abs(mean - cap) <= cap * TOLERANCE && max <= cap * (1 + 2 * TOLERANCE);
+
+        long[] readerEnd = snapshot(perReader);
+        long least = Long.MAX_VALUE;
+        long most = 0;
+        for (int r = 0; r < READERS; r++) {
+            long bytes = readerEnd[r] - readerStart[r];
+            least = Math.min(least, bytes);
+            most = Math.max(most, bytes);
+        }
+
+        System.out.printf("cap %s: mean %s, min %s, max %s per second after the first -> %s%n",
+                megabytes(cap), megabytes(mean), megabytes(min), megabytes(max), held ? "held" : "NOT HELD");
+        System.out.print("  MB/s per second:");
+        for (double rate : perSecond) {
+            System.out.printf(" %.1f", rate / (1024 * 1024));
+        }
+        System.out.printf("%n  per reader %.1f to %.1f MB, fair share %.1f MB%n",
+                least / (1024.0 * 1024), most / (1024.0 * 1024), (double) cap * PHASE_SECONDS / READERS / (1024 * 1024));
+        return held;
+    }
+
+    private static long[] snapshot(AtomicLongArray values) {
+        long[] copy = new long[values.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = values.get(i);
+        }
+        return copy;
+    }
+
+    private static String megabytes(double bytesPerSecond) {
+        return String.format("%.1f MB/s", bytesPerSecond / (1024 * 1024));
+    }
+}
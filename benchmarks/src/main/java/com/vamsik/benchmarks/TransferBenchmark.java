@@ -0,0 +1,154 @@
+package com.vamsik.benchmarks;
+
+import com.vamsik.core.ConnectionPool;
+import com.vamsik.core.Peer;
+import com.vamsik.core.SwarmDownloader;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serving one file from a peer over loopback: the raw DOWNLOAD command on a connection kept open,
+ * and a full download through {@link SwarmDownloader}, which adds the manifest, the piece
+ * requests and writing the file. Scores are transfers per second and the {@code megabytes}
+ * counter is MB/s. Run with {@code -prof gc} or {@code -prof perfnorm} to see
+ * copies and allocations per transfer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransferBenchmark {
+    private static final String FILE_NAME = "transfer.bin";
+
+    @Param("64")
+    public int fileMegabytes;
+
+    private Path shared;
+    private Path downloads;
+    private Peer peer;
+    private InetSocketAddress address;
+    private ConnectionPool pool;
+    private long fileSize;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        Fixtures.quietLogging();
+        shared = Files.createTempDirectory("transfer-bench-shared");
+        downloads = Files.createTempDirectory("transfer-bench-downloads");
+        fileSize = (long) fileMegabytes * 1024 * 1024;
+        Fixtures.writeRandomFile(shared.resolve(FILE_NAME), fileSize, 42);
+
+        // nothing listens on the discovery port, the peer keeps retrying in the background and serves anyway
+        int port = Fixtures.freePort();
+        peer = new Peer("127.0.0.1", Fixtures.freePort(), port, shared.toString());
+        peer.setDaemon(true);
+        peer.start();
+        Fixtures.awaitPort("127.0.0.1", port);
+
+        address = new InetSocketAddress("127.0.0.1", port);
+        pool = new ConnectionPool(15000, 4, 30000, 2000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pool.close();
+        peer.disconnect();
+        Fixtures.deleteTree(shared);
+        Fixtures.deleteTree(downloads);
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        private Socket socket;
+        private DataOutputStream dos;
+        private DataInputStream dis;
+        private final byte[] buffer = new byte[64 * 1024];
+
+        @Setup(Level.Trial)
+        public void connect(TransferBenchmark benchmark) throws IOException {
+            socket = new Socket();
+            socket.connect(benchmark.address);
+            dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public long sendFile(Connection connection, Throughput throughput) throws IOException {
+        connection.dos.writeUTF("DOWNLOAD");
+        connection.dos.writeUTF(FILE_NAME);
+        connection.dos.flush();
+
+        connection.dis.readUTF();
+        long remaining = connection.dis.readLong();
+        long size = remaining;
+        while (remaining > 0) {
+            int read = connection.dis.read(connection.buffer, 0, (int) Math.min(connection.buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Connection closed with " + remaining + " bytes left");
+            }
+            remaining -= read;
+        }
+
+        throughput.megabytes += size / (1024.0 * 1024.0);
+        return size;
+    }
+
+    @Benchmark
+    public boolean downloadFile(Throughput throughput) throws IOException, InterruptedException {
+        Path target = downloads.resolve(FILE_NAME + "." + Thread.currentThread().threadId());
+        try {
+            SwarmDownloader downloader = new SwarmDownloader(FILE_NAME, List.of(address), target, pool, (done, size) -> {
+            });
+            boolean complete = downloader.download();
+            if (complete) {
+                throughput.megabytes += fileSize / (1024.0 * 1024.0);
+            }
+            return complete;
+        } finally {
+            Files.deleteIfExists(target);
+        }
+    }
+}
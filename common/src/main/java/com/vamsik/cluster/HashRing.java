@@ -0,0 +1,76 @@
+package com.vamsik.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Consistent hash ring that maps keys to nodes. Every node is placed on the ring many times, so
+ * keys spread evenly, and adding or removing a node only moves the keys next to its points.
+ * The first node clockwise from a key owns it, the next distinct nodes follow it as replicas.
+ */
+public class HashRing<N> {
+    // points per node, enough for an even spread over a handful of nodes
+    private static final int POINTS_PER_NODE = 128;
+
+    private final TreeMap<Long, N> ring = new TreeMap<>();
+    private final int nodeCount;
+
+    /**
+     * @param nodes  the nodes of the ring
+     * @param nameOf decides where a node sits on the ring, every process that names the nodes
+     *               the same builds the same ring
+     */
+    public HashRing(List<N> nodes, Function<N, String> nameOf) {
+        for (N node : nodes) {
+            String name = nameOf.apply(node);
+            for (int point = 0; point < POINTS_PER_NODE; point++) {
+                ring.put(hash(name + "#" + point), node);
+            }
+        }
+        this.nodeCount = nodes.size();
+    }
+
+    /**
+     * @return up to {@code count} distinct nodes for the key, owner first
+     */
+    public List<N> nodesFor(String key, int count) {
+        List<N> nodes = new ArrayList<>(Math.min(count, nodeCount));
+        if (ring.isEmpty()) {
+            return nodes;
+        }
+
+        long hash = hash(key);
+        this.collect(ring.tailMap(hash, true), nodes, count);
+        this.collect(ring.headMap(hash, false), nodes, count);
+        return nodes;
+    }
+
+    private void collect(Map<Long, N> points, List<N> nodes, int count) {
+        for (N node : points.values()) {
+            if (nodes.size() >= Math.min(count, nodeCount)) {
+                return;
+            }
+            if (!nodes.contains(node)) {
+                nodes.add(node);
+            }
+        }
+    }
+
+    // 64 bit FNV-1a with a final mix, String.hashCode clusters similar names on the ring
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,120 @@
+package com.vamsik.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of this process, by name and labels. Hot paths look their counters and histograms
+ * up once, into static fields, and only touch those afterwards; reading them all back happens on
+ * a scrape of {@link MetricsServer}, in the Prometheus text format.
+ * <p>
+ * Labels are given as name and value pairs, e.g. {@code histogram("x_seconds", "...", "command",
+ * "QUERY")}. Asking for a counter or histogram that exists returns that one, a gauge registered
+ * again replaces the previous supplier.
+ */
+public final class Metrics {
+    // quantiles reported for every histogram
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    private enum Type {
+        COUNTER("counter"),
+        GAUGE("gauge"),
+        // histograms go out as summaries, their quantiles are worked out here rather than by the server
+        HISTOGRAM("summary");
+
+        private final String exposition;
+
+        Type(String exposition) {
+            this.exposition = exposition;
+        }
+    }
+
+    private record Family(String name, String help, Type type, Map<String, Object> series) {
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).series().computeIfAbsent(labelText(labels), key -> new Counter());
+    }
+
+    public static LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, Type.HISTOGRAM).series().computeIfAbsent(labelText(labels), key -> new LatencyHistogram());
+    }
+
+    /**
+     * A value read at scrape time, such as the number of open connections.
+     */
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).series().put(labelText(labels), value);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format (version 0.0.4). Durations are
+     * in seconds, as the format expects.
+     */
+    public static void writeText(Appendable out) throws IOException {
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name()).append(' ').append(family.help()).append('\n');
+            out.append("# TYPE ").append(family.name()).append(' ').append(family.type().exposition).append('\n');
+
+            for (Map.Entry<String, Object> series : family.series().entrySet()) {
+                String labels = series.getKey();
+                switch (series.getValue()) {
+                    case Counter counter -> sample(out, family.name(), labels, "", counter.sum());
+                    case LongSupplier gauge -> sample(out, family.name(), labels, "", gauge.getAsLong());
+                    case LatencyHistogram histogram -> {
+                        long[] values = histogram.quantiles(QUANTILES);
+                        for (int i = 0; i < QUANTILES.length; i++) {
+                            String quantile = "quantile=\"" + QUANTILES[i] + "\"";
+                            sample(out, family.name(), labels.isEmpty() ? quantile : labels + "," + quantile, "", values[i] / NANOS_PER_SECOND);
+                        }
+                        sample(out, family.name(), labels, "_sum", histogram.sumNanos() / NANOS_PER_SECOND);
+                        sample(out, family.name(), labels, "_count", histogram.count());
+                    }
+                    default -> throw new IllegalStateException("Unknown metric " + series.getValue());
+                }
+            }
+        }
+    }
+
+    private static Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type, new ConcurrentSkipListMap<>()));
+        if (family.type() != type) {
+            throw new IllegalArgumentException(name + " is a " + family.type() + ", not a " + type);
+        }
+        return family;
+    }
+
+    private static void sample(Appendable out, String name, String labels, String suffix, Object value) throws IOException {
+        out.append(name).append(suffix);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(String.valueOf(value)).append('\n');
+    }
+
+    // name="value" pairs as they appear between the braces, with quotes and backslashes escaped
+    private static String labelText(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels come in name and value pairs");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return sb.toString();
+    }
+}
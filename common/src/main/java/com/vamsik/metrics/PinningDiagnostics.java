@@ -0,0 +1,43 @@
+package com.vamsik.metrics;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+import java.util.logging.Logger;
+
+/**
+ * Logs every time a virtual thread blocks while pinned to its carrier for longer than a threshold,
+ * e.g. inside a synchronized block, together with the frames that pinned it.
+ */
+public final class PinningDiagnostics {
+    private static final Logger logger = Logger.getLogger(PinningDiagnostics.class.getName());
+
+    private PinningDiagnostics() {
+    }
+
+    public static void start(Duration threshold) {
+        RecordingStream stream = new RecordingStream();
+        stream.enable("jdk.VirtualThreadPinned").withThreshold(threshold).withStackTrace();
+        stream.onEvent("jdk.VirtualThreadPinned", PinningDiagnostics::logPinnedEvent);
+        stream.startAsync();
+
+        logger.info("Virtual thread pinning diagnostics enabled, threshold " + threshold.toMillis() + " ms");
+    }
+
+    private static void logPinnedEvent(RecordedEvent event) {
+        StringBuilder sb = new StringBuilder("Virtual thread pinned for ")
+                .append(event.getDuration().toMillis()).append(" ms");
+
+        if (event.getStackTrace() != null) {
+            for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+                sb.append("\n\tat ").append(frame.getMethod().getType().getName())
+                        .append('.').append(frame.getMethod().getName())
+                        .append(':').append(frame.getLineNumber());
+            }
+        }
+
+        logger.warning(sb.toString());
+    }
+}
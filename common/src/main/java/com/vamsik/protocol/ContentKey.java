@@ -0,0 +1,45 @@
+package com.vamsik.protocol;
+
+/**
+ * Names a file by what is in it rather than what it is called: {@code sha256:} followed by the
+ * SHA-256 of the whole file in lowercase hex. Discovery finds every peer holding the content
+ * under any name for such a key, and peers serve their copy under it, whatever they named it.
+ */
+public final class ContentKey {
+    public static final String PREFIX = "sha256:";
+    public static final int DIGEST_HEX_LENGTH = 64;
+
+    private ContentKey() {
+    }
+
+    public static String of(String digest) {
+        return PREFIX + digest;
+    }
+
+    /**
+     * @return the digest the key names, or null for a plain file name
+     */
+    public static String digestOf(String name) {
+        if (!name.startsWith(PREFIX)) {
+            return null;
+        }
+        String digest = name.substring(PREFIX.length());
+        return isDigest(digest) ? digest : null;
+    }
+
+    /**
+     * @return whether the text is a SHA-256 in lowercase hex
+     */
+    public static boolean isDigest(String text) {
+        if (text.length() != DIGEST_HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
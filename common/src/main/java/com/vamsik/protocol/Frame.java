@@ -0,0 +1,16 @@
+package com.vamsik.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+
+/**
+ * One request or reply. A reply has the request ID of the request it answers, so replies may
+ * arrive in any order. The opcode is kept as a number, a frame with a code this version does not
+ * know can still be read and answered with an error.
+ */
+public record Frame(int opcode, int requestId, byte[] payload) {
+
+    public DataInputStream payloadInput() {
+        return new DataInputStream(new ByteArrayInputStream(payload));
+    }
+}
@@ -0,0 +1,80 @@
+package com.vamsik.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Reads and writes frames: a magic byte, the protocol version, a 2 byte opcode, a 4 byte request
+ * ID and a 4 byte payload length, followed by the payload. Connections start out speaking the
+ * readUTF protocol and switch to frames once the client sent {@value #UPGRADE_COMMAND} and the
+ * server agreed, so either side can be older than the other.
+ */
+public final class FrameCodec {
+    public static final String UPGRADE_COMMAND = "FRAMED";
+    public static final int VERSION = 1;
+    // first byte of every frame, a reader that lost track of the stream notices right away
+    public static final int MAGIC = 0xF7;
+    public static final int HEADER_BYTES = 12;
+    // larger payloads are refused before anything is allocated for them
+    public static final int MAX_PAYLOAD_BYTES = 16 * 1024 * 1024;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Builds the payload of a frame with the same calls the readUTF protocol uses.
+     */
+    @FunctionalInterface
+    public interface PayloadWriter {
+        void write(DataOutputStream dos) throws IOException;
+    }
+
+    public static byte[] encode(PayloadWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        writer.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes one frame, the caller flushes and makes sure frames from different threads do not
+     * interleave.
+     */
+    public static void write(DataOutputStream dos, int opcode, int requestId, byte[] payload) throws IOException {
+        if (payload.length > MAX_PAYLOAD_BYTES) {
+            throw new IOException("Frame payload of " + payload.length + " bytes");
+        }
+
+        dos.writeByte(MAGIC);
+        dos.writeByte(VERSION);
+        dos.writeShort(opcode);
+        dos.writeInt(requestId);
+        dos.writeInt(payload.length);
+        dos.write(payload);
+    }
+
+    public static Frame read(DataInputStream dis) throws IOException {
+        int magic = dis.readUnsignedByte();
+        int version = dis.readUnsignedByte();
+
+        if (magic != MAGIC) {
+            throw new IOException("Not a frame, first byte " + magic);
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported frame version " + version);
+        }
+
+        int opcode = dis.readUnsignedShort();
+        int requestId = dis.readInt();
+        int length = dis.readInt();
+
+        if (length < 0 || length > MAX_PAYLOAD_BYTES) {
+            throw new IOException("Frame payload of " + length + " bytes");
+        }
+
+        byte[] payload = new byte[length];
+        dis.readFully(payload);
+        return new Frame(opcode, requestId, payload);
+    }
+}
@@ -0,0 +1,148 @@
+package com.vamsik.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Client side of a framed connection. Any number of threads may send requests at the same time;
+ * a reader thread hands every reply to the request with the same ID, in whatever order the
+ * server finishes them.
+ */
+public class FramedClient implements Closeable {
+    private static final Logger logger = Logger.getLogger(FramedClient.class.getName());
+
+    private final Socket socket;
+    private final DataInputStream dis;
+    private final DataOutputStream dos;
+    // a lock rather than synchronized, requests may be sent from virtual threads
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Map<Integer, CompletableFuture<DataInputStream>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile IOException failure;
+
+    private FramedClient(Socket socket, DataInputStream dis, DataOutputStream dos) {
+        this.socket = socket;
+        this.dis = dis;
+        this.dos = dos;
+
+        Thread reader = new Thread(this::readReplies, "framed-client-" + socket.getRemoteSocketAddress());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Asks the server on a freshly connected socket to switch to frames.
+     *
+     * @return null when the server only speaks the readUTF protocol, the socket then is still
+     * usable for that
+     */
+    public static FramedClient upgrade(Socket socket) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        dos.writeUTF(FrameCodec.UPGRADE_COMMAND);
+        dos.writeInt(FrameCodec.VERSION);
+        dos.flush();
+
+        // servers that do not know the command answer UNKNOWN and ignore the version
+        if (!FrameCodec.UPGRADE_COMMAND.equals(dis.readUTF())) {
+            return null;
+        }
+        dis.readInt(); // the server's version, frames of version 1 are all there is so far
+
+        // requests wait for their reply with a timeout of their own, an idle connection is fine
+        socket.setSoTimeout(0);
+        return new FramedClient(socket, dis, dos);
+    }
+
+    /**
+     * Sends a request without waiting for the reply.
+     *
+     * @return completes with the reply payload, or exceptionally when the server answered with an
+     * error or the connection dropped
+     */
+    public CompletableFuture<DataInputStream> request(Opcode opcode, FrameCodec.PayloadWriter writer) {
+        CompletableFuture<DataInputStream> reply = new CompletableFuture<>();
+        int requestId = nextRequestId.incrementAndGet();
+
+        try {
+            byte[] payload = FrameCodec.encode(writer);
+            pending.put(requestId, reply);
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            writeLock.lock();
+            try {
+                FrameCodec.write(dos, opcode.getCode(), requestId, payload);
+                dos.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            pending.remove(requestId);
+            reply.completeExceptionally(e);
+        }
+
+        return reply;
+    }
+
+    public boolean isClosed() {
+        return failure != null || socket.isClosed();
+    }
+
+    private void readReplies() {
+        try {
+            while (true) {
+                Frame frame = FrameCodec.read(dis);
+                CompletableFuture<DataInputStream> reply = pending.remove(frame.requestId());
+
+                if (reply == null) {
+                    logger.info("Reply to unknown request " + frame.requestId() + " from " + socket.getRemoteSocketAddress());
+                } else if (frame.opcode() == Opcode.ERROR.getCode()) {
+                    reply.completeExceptionally(new IOException(frame.payloadInput().readUTF()));
+                } else {
+                    reply.complete(frame.payloadInput());
+                }
+            }
+        } catch (IOException e) {
+            this.fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+
+        for (Integer requestId : pending.keySet()) {
+            CompletableFuture<DataInputStream> reply = pending.remove(requestId);
+            if (reply != null) {
+                reply.completeExceptionally(failure);
+            }
+        }
+
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // already failed
+        }
+    }
+
+    @Override
+    public void close() {
+        this.fail(new IOException("Connection closed"));
+    }
+}
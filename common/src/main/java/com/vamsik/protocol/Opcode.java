@@ -0,0 +1,66 @@
+package com.vamsik.protocol;
+
+/**
+ * Commands of the framed protocol. Each one carries the same arguments, and gets the same reply,
+ * as the readUTF command of the same name, just without the command string in front.
+ */
+public enum Opcode {
+    PING(1),
+    REGISTER(2),
+    ANNOUNCE(3),
+    WITHDRAW(4),
+    HEARTBEAT(5),
+    QUERY(6),
+    // 7 was MQUERY, replaced by SOURCES; left unused so an old client gets an error, not another command
+    LIST(8),
+    LISTPAGE(9),
+    SEARCH(10),
+    DIGESTS(11),
+    SOURCES(12),
+    // REGISTER and ANNOUNCE with the size of each file after its name
+    REGISTER2(13),
+    ANNOUNCE2(14),
+    // reply to a request that failed, the payload is a UTF message
+    ERROR(0xFFFF);
+
+    private static final Opcode[] byCode = new Opcode[ANNOUNCE2.code + 1];
+
+    static {
+        for (Opcode opcode : values()) {
+            if (opcode != ERROR) {
+                byCode[opcode.code] = opcode;
+            }
+        }
+    }
+
+    private final int code;
+
+    Opcode(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Requests that only read state, a server may run them concurrently with others from the same
+     * connection.
+     */
+    public boolean isReadOnly() {
+        return switch (this) {
+            case PING, QUERY, LIST, LISTPAGE, SEARCH, SOURCES -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * @return null for codes this version does not know
+     */
+    public static Opcode of(int code) {
+        if (code == ERROR.code) {
+            return ERROR;
+        }
+        return code >= 0 && code < byCode.length ? byCode[code] : null;
+    }
+}
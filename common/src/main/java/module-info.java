@@ -0,0 +1,9 @@
+module vamsi.common {
+    requires java.logging;
+    requires jdk.httpserver;
+    requires jdk.jfr;
+
+    exports com.vamsik.cluster;
+    exports com.vamsik.metrics;
+    exports com.vamsik.protocol;
+}
@@ -0,0 +1,7 @@
+package com.vamsik;
+
+/**
+ * One distinct file in the catalog: its name, size and how many live peers seed it.
+ */
+public record CatalogItem(String name, long size, int seeders) {
+}
@@ -0,0 +1,29 @@
+package com.vamsik;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * One command answered by the discovery service, for flight recordings
+ * ({@code -XX:StartFlightRecording}). Unlike the latency histograms it tells which client sent a
+ * slow command. Only commands taking a millisecond or more are recorded unless the recording's
+ * settings lower the threshold, lookups are too many to keep every one.
+ */
+@Name("com.vamsik.DiscoveryCommand")
+@Label("Discovery Command")
+@Category({"Peer 2 Peer File Share", "Discovery"})
+@Description("A command read from a client and answered")
+@StackTrace(false)
+@Threshold("1 ms")
+class CommandEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Client")
+    String client;
+}
@@ -1,17 +1,62 @@
 package com.vamsik;
 
+import com.vamsik.metrics.LatencyHistogram;
+import com.vamsik.metrics.Metrics;
+import com.vamsik.metrics.MetricsServer;
+import com.vamsik.metrics.PinningDiagnostics;
+import com.vamsik.protocol.ContentKey;
+import com.vamsik.protocol.Frame;
+import com.vamsik.protocol.FrameCodec;
+import com.vamsik.protocol.Opcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 public class DiscoveryService {
     private static final Logger logger = java.util.logging.Logger.getLogger(DiscoveryService.class.getName());
+    // upper bounds for one LISTPAGE reply and for the names a filtered page may look at
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_PAGE_SCAN = 50_000;
+    // most names a SEARCH may look at, the best of those are returned when a query matches more
+    private static final int MAX_SEARCH_SCAN = 10_000;
+    // most file names a single SOURCES may ask for
+    private static final int MAX_BATCH_QUERY = 1000;
+    // framed lookups of one connection that may run at the same time
+    private static final int MAX_FRAMES_IN_FLIGHT = 64;
+    // -Dapp.threads=virtual serves every client on a virtual thread instead of a platform thread
+    private static final boolean VIRTUAL_THREADS = "virtual".equalsIgnoreCase(System.getProperty("app.threads"));
+
+    private static final LongAdder openConnections = new LongAdder();
+    // a histogram per known command, looked up without building label strings on every request
+    private static final Map<String, LatencyHistogram> commandLatency = new HashMap<>();
+    private static final LatencyHistogram otherCommandLatency = commandHistogram("OTHER");
+
+    static {
+        for (Opcode opcode : Opcode.values()) {
+            if (opcode != Opcode.ERROR) {
+                commandLatency.put(opcode.name(), commandHistogram(opcode.name()));
+            }
+        }
+    }
 
     public static void main(String[] args) {
         int port = 3969;
@@ -20,15 +65,47 @@ public class DiscoveryService {
             port = Integer.parseInt(args[0]);
         }
 
-        List<Entry> entries = new ArrayList<>();
+        Registry registry = new Registry(Duration.ofSeconds(Integer.getInteger("app.leaseTtl", 15)));
+
+        // -Dapp.dataDir= (empty) keeps the registry in memory only, as it used to be
+        String dataDir = System.getProperty("app.dataDir", "discovery-data-" + port);
+        if (!dataDir.isEmpty()) {
+            try {
+                RegistryLog.open(Path.of(dataDir), registry, Long.getLong("app.snapshotBytes", 64L * 1024 * 1024));
+            } catch (IOException e) {
+                logger.severe("Can not open the registry in " + dataDir + ": " + e.getMessage());
+                return;
+            }
+        }
+        registry.startExpiry();
+
+        Metrics.gauge("discovery_connections_open", "Client connections being served", openConnections::sum);
+        Metrics.gauge("discovery_peers", "Registered peers", registry::size);
+        // -Dapp.metricsPort=9464 serves them at /metrics, on loopback unless app.metricsHost says otherwise
+        int metricsPort = Integer.getInteger("app.metricsPort", 0);
+        if (metricsPort > 0) {
+            try {
+                MetricsServer.start(System.getProperty("app.metricsHost", "127.0.0.1"), metricsPort);
+            } catch (IOException e) {
+                logger.warning("Can not serve metrics on port " + metricsPort + ": " + e.getMessage());
+            }
+        }
+
+        if ("true".equalsIgnoreCase(System.getProperty("app.pinningDiagnostics"))) {
+            PinningDiagnostics.start(Duration.ofMillis(Integer.getInteger("app.pinningThreshold", 20)));
+        }
+
+        Thread.Builder threadBuilder = VIRTUAL_THREADS
+                ? Thread.ofVirtual().name("discovery-client-", 0)
+                : Thread.ofPlatform().name("discovery-client-", 0);
 
         try {
             ServerSocket serverSocket = new ServerSocket(port);
-            logger.info("Discovery server started on port " + port);
+            logger.info("Discovery server started on port " + port + (VIRTUAL_THREADS ? " (virtual threads)" : ""));
 
             while (true) {
                 Socket sock = serverSocket.accept();
-                new Thread(() -> handleClient(sock, entries)).start();
+                threadBuilder.start(() -> handleClient(sock, registry));
             }
         } catch (EOFException | SocketException e) {
             System.out.println("Server socket closed");
@@ -37,66 +114,29 @@ public class DiscoveryService {
         }
     }
 
-    private static void handleClient(Socket sock, List<Entry> entries) {
+    private static void handleClient(Socket sock, Registry registry) {
+        Session session = new Session(sock);
+        openConnections.increment();
+
         try {
-            DataInputStream dis = new DataInputStream(sock.getInputStream());
-            DataOutputStream dos = new DataOutputStream(sock.getOutputStream());
+            // replies are flushed whole, Nagle would hold back the tail of one larger than the buffer
+            sock.setTcpNoDelay(true);
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
 
             while (true) {
                 String command = dis.readUTF();
 
-                switch (command) {
-                    case "REGISTER": {
-                        String host = dis.readUTF();
-                        int localPort = dis.readInt();
-                        int fileCount = dis.readInt();
-                        Entry e = new Entry(host, localPort);
-
-                        for (int i = 0; i < fileCount; i++) {
-                            String fileName = dis.readUTF();
-                            e.addFile(fileName);
-                        }
-
-                        entries.add(e);
-                        break;
-                    }
-                    case "QUERY": {
-                        String fileName = dis.readUTF();
-                        List<String> results = new ArrayList<>();
-
-                        for (Entry entry : entries) {
-                            String entryHost = entry.getHost();
-                            String requestedHost = sock.getInetAddress().getHostAddress();
-
-                            if (entry.hasFile(fileName) && !entryHost.equals(requestedHost)) {
-                                results.add(entry.toString());
-                            }
-                        }
-
-                        if (results.isEmpty()) {
-                            dos.writeUTF("NOTFOUND");
-                        } else {
-                            dos.writeUTF("FOUND");
-                            dos.writeInt(results.size());
-                            for (String result : results) {
-                                dos.writeUTF(result);
-                            }
-                        }
-                        break;
-                    }
-                    case "LIST": {
-                        dos.writeInt(entries.size());
-                        for (Entry entry : entries) {
-                            dos.writeUTF(entry.getFile());
-                        }
-                        break;
-                    }
-                    default:
-                        dos.writeUTF("UNKNOWN");
-                        logger.info("Unknown command: " + command);
-                        break;
+                if (FrameCodec.UPGRADE_COMMAND.equals(command)) {
+                    dis.readInt(); // the client's version, frames of version 1 are all there is so far
+                    dos.writeUTF(FrameCodec.UPGRADE_COMMAND);
+                    dos.writeInt(FrameCodec.VERSION);
+                    dos.flush();
+                    serveFrames(session, registry, dis, dos);
+                    break;
                 }
 
+                handleCommand(session, registry, command, dis, dos);
                 dos.flush();
             }
         } catch (SocketException | EOFException e) {
@@ -104,6 +144,11 @@ public class DiscoveryService {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            openConnections.decrement();
+            if (session.registered != null) {
+                registry.remove(session.registered);
+            }
+
             try {
                 sock.close();
             } catch (Exception e) {
@@ -111,4 +156,322 @@ public class DiscoveryService {
             }
         }
     }
+
+    /**
+     * Serves a connection that switched to frames. Lookups run concurrently, each on a virtual
+     * thread, and are answered as soon as they are done; commands that change the registration
+     * are applied one after the other in the order they arrived.
+     */
+    private static void serveFrames(Session session, Registry registry, DataInputStream dis, DataOutputStream dos) throws IOException, InterruptedException {
+        // a lock rather than synchronized, replies are written from virtual threads
+        ReentrantLock writeLock = new ReentrantLock();
+        Semaphore inFlight = new Semaphore(MAX_FRAMES_IN_FLIGHT);
+
+        while (true) {
+            Frame frame = FrameCodec.read(dis);
+            Opcode opcode = Opcode.of(frame.opcode());
+
+            if (opcode == null || !opcode.isReadOnly()) {
+                answerFrame(session, registry, frame, opcode, dos, writeLock);
+                continue;
+            }
+
+            // bounds how much a client that never reads its replies can make us buffer
+            inFlight.acquire();
+            Thread.ofVirtual().name("discovery-frame-" + frame.requestId()).start(() -> {
+                try {
+                    answerFrame(session, registry, frame, opcode, dos, writeLock);
+                } catch (IOException e) {
+                    // the reader notices the broken connection as well
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    // runs the command of the same name and sends its output back under the frame's request ID
+    private static void answerFrame(Session session, Registry registry, Frame frame, Opcode opcode, DataOutputStream dos, ReentrantLock writeLock) throws IOException {
+        int replyOpcode = frame.opcode();
+        byte[] reply;
+
+        try {
+            if (opcode == null || opcode == Opcode.ERROR) {
+                throw new IOException("Unknown opcode " + frame.opcode());
+            }
+            reply = FrameCodec.encode(out -> handleCommand(session, registry, opcode.name(), frame.payloadInput(), out));
+        } catch (IOException | RuntimeException e) {
+            // the payload is bounded by the frame, a bad request does not cost the connection, and
+            // an argument out of range (an unknown mode, a negative count) is a bad request too
+            replyOpcode = Opcode.ERROR.getCode();
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            reply = FrameCodec.encode(out -> out.writeUTF(message));
+        }
+
+        writeLock.lock();
+        try {
+            FrameCodec.write(dos, replyOpcode, frame.requestId(), reply);
+            dos.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the arguments of one command and writes its reply, the same for both protocols.
+     */
+    private static void handleCommand(Session session, Registry registry, String command, DataInputStream dis, DataOutputStream dos) throws IOException {
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        long start = System.nanoTime();
+
+        runCommand(session, registry, command, dis, dos);
+
+        commandLatency.getOrDefault(command, otherCommandLatency).recordSince(start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.command = command;
+            event.client = session.sock.getInetAddress().getHostAddress();
+            event.commit();
+        }
+    }
+
+    private static void runCommand(Session session, Registry registry, String command, DataInputStream dis, DataOutputStream dos) throws IOException {
+        switch (command) {
+            case "REGISTER", "REGISTER2": {
+                String host = dis.readUTF();
+                int localPort = dis.readInt();
+                Entry e = new Entry(host, localPort);
+
+                for (SharedFile file : readFiles(dis, command.equals("REGISTER2"))) {
+                    e.addFile(file.name(), file.size());
+                }
+
+                if (session.registered != null && !session.registered.getKey().equals(e.getKey())) {
+                    registry.remove(session.registered);
+                }
+
+                registry.register(e);
+                session.registered = e;
+                registry.awaitDurable();
+
+                dos.writeUTF("REGISTERED");
+                dos.writeInt((int) registry.getLeaseSeconds());
+                break;
+            }
+            case "ANNOUNCE", "ANNOUNCE2": {
+                String host = dis.readUTF();
+                int localPort = dis.readInt();
+                List<SharedFile> files = readFiles(dis, command.equals("ANNOUNCE2"));
+
+                boolean known = registry.announce(host, localPort, files);
+                registry.awaitDurable();
+                dos.writeUTF(known ? "OK" : "UNKNOWN");
+                break;
+            }
+            case "WITHDRAW": {
+                String host = dis.readUTF();
+                int localPort = dis.readInt();
+                int fileCount = dis.readInt();
+                List<String> files = new ArrayList<>(fileCount);
+
+                for (int i = 0; i < fileCount; i++) {
+                    files.add(dis.readUTF());
+                }
+
+                boolean known = registry.withdraw(host, localPort, files);
+                registry.awaitDurable();
+                dos.writeUTF(known ? "OK" : "UNKNOWN");
+                break;
+            }
+            case "DIGESTS": {
+                // the content hashes of registered files, sent once the peer has computed them
+                String host = dis.readUTF();
+                int localPort = dis.readInt();
+                int fileCount = dis.readInt();
+                Map<String, String> digests = new LinkedHashMap<>();
+
+                for (int i = 0; i < fileCount; i++) {
+                    String fileName = dis.readUTF();
+                    String digest = dis.readUTF();
+                    if (!ContentKey.isDigest(digest)) {
+                        throw new IOException("Malformed digest for " + fileName);
+                    }
+                    digests.put(fileName, digest);
+                }
+
+                boolean known = registry.digests(host, localPort, digests);
+                registry.awaitDurable();
+                dos.writeUTF(known ? "OK" : "UNKNOWN");
+                break;
+            }
+            case "HEARTBEAT": {
+                String host = dis.readUTF();
+                int localPort = dis.readInt();
+                dos.writeUTF(registry.renew(host, localPort) ? "OK" : "UNKNOWN");
+                break;
+            }
+            case "QUERY": {
+                String fileName = dis.readUTF();
+                List<String> results = seedersOf(registry, fileName, session.sock.getInetAddress().getHostAddress());
+
+                if (results.isEmpty()) {
+                    dos.writeUTF("NOTFOUND");
+                } else {
+                    dos.writeUTF("FOUND");
+                    dos.writeInt(results.size());
+                    for (String result : results) {
+                        dos.writeUTF(result);
+                    }
+                }
+                break;
+            }
+            case "SOURCES": {
+                // QUERY for many files in one round trip, answered in request order, that also says
+                // which content to download, see Registry.sources
+                int count = dis.readInt();
+                if (count < 0 || count > MAX_BATCH_QUERY) {
+                    throw new IOException("SOURCES of " + count + " files");
+                }
+
+                String requestedHost = session.sock.getInetAddress().getHostAddress();
+                dos.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    FileSources sources = registry.sources(dis.readUTF());
+                    List<String> results = seedersOf(sources.peers(), requestedHost);
+                    dos.writeUTF(sources.digest());
+                    dos.writeInt(results.size());
+                    for (String result : results) {
+                        dos.writeUTF(result);
+                    }
+                }
+                break;
+            }
+            case "LIST": {
+                List<Entry> snapshot = new ArrayList<>(registry.entries());
+                dos.writeInt(snapshot.size());
+                for (Entry entry : snapshot) {
+                    dos.writeUTF(entry.getFile());
+                }
+                break;
+            }
+            case "LISTPAGE": {
+                String cursor = dis.readUTF();
+                int limit = Math.max(1, Math.min(dis.readInt(), MAX_PAGE_SIZE));
+                String mode = dis.readUTF();
+                String filter = dis.readUTF();
+                handleListPage(dos, registry, cursor, limit, ListFilter.parse(mode, filter));
+                break;
+            }
+            case "SEARCH": {
+                SearchIndex.Mode mode = searchMode(dis.readUTF());
+                String query = dis.readUTF();
+                int limit = Math.max(1, Math.min(dis.readInt(), MAX_PAGE_SIZE));
+                handleSearch(dos, registry, query, mode, limit);
+                break;
+            }
+            case "PING":
+                // health check from pooled client connections
+                dos.writeUTF("PONG");
+                break;
+            default:
+                dos.writeUTF("UNKNOWN");
+                logger.info("Unknown command: " + command);
+                break;
+        }
+    }
+
+    private static LatencyHistogram commandHistogram(String command) {
+        return Metrics.histogram("discovery_command_seconds", "Time to read, run and answer a command, waiting for the log included", "command", command);
+    }
+
+    // what a connection has done so far; only touched by the thread reading its commands
+    private static class Session {
+        private final Socket sock;
+        // the registration made over this connection, withdrawn as soon as the connection drops
+        private Entry registered;
+
+        Session(Socket sock) {
+            this.sock = sock;
+        }
+    }
+
+    // "host:port:cpu" of every peer sharing the file, except peers on the requesting host
+    private static List<String> seedersOf(Registry registry, String fileName, String requestedHost) {
+        return seedersOf(registry.query(fileName), requestedHost);
+    }
+
+    private static List<String> seedersOf(Collection<Entry> peers, String requestedHost) {
+        List<String> results = new ArrayList<>();
+
+        for (Entry entry : peers) {
+            if (!entry.getHost().equals(requestedHost)) {
+                results.add(entry.toString());
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Reads the file list of a REGISTER or ANNOUNCE, bare names as older peers send them, with
+     * unknown size -1, or with each name followed by the file's size in the REGISTER2 and
+     * ANNOUNCE2 forms.
+     */
+    private static List<SharedFile> readFiles(DataInputStream dis, boolean withSizes) throws IOException {
+        int fileCount = dis.readInt();
+        List<SharedFile> files = new ArrayList<>(fileCount);
+
+        for (int i = 0; i < fileCount; i++) {
+            String fileName = dis.readUTF();
+            files.add(new SharedFile(fileName, withSizes ? dis.readLong() : -1));
+        }
+        return files;
+    }
+
+    /**
+     * Replies with up to {@code limit} distinct files after the cursor, each as name, size (-1 when
+     * only older peers that do not report sizes hold it) and seeder count, followed by the cursor
+     * of the next page ("" once the catalog is exhausted). Pages are capped at MAX_PAGE_SIZE, so
+     * neither side ever holds more than one page.
+     */
+    private static void handleListPage(DataOutputStream dos, Registry registry, String cursor, int limit, ListFilter filter) throws IOException {
+        List<CatalogItem> page = new ArrayList<>(Math.min(limit, 1024));
+        String next = registry.scan(cursor, filter, MAX_PAGE_SCAN, item -> {
+            page.add(item);
+            return page.size() < limit;
+        });
+
+        dos.writeInt(page.size());
+        for (CatalogItem item : page) {
+            dos.writeUTF(item.name());
+            dos.writeLong(item.size());
+            dos.writeInt(item.seeders());
+        }
+        dos.writeUTF(next == null ? "" : next);
+    }
+
+    private static SearchIndex.Mode searchMode(String name) throws IOException {
+        try {
+            return SearchIndex.Mode.valueOf(name.toUpperCase(java.util.Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown search mode " + name);
+        }
+    }
+
+    /**
+     * Replies with up to {@code limit} files best matching the query, best first, each as name,
+     * size, seeder count and score; clients asking several nodes merge the replies by score.
+     */
+    private static void handleSearch(DataOutputStream dos, Registry registry, String query, SearchIndex.Mode mode, int limit) throws IOException {
+        List<SearchResult> results = registry.search(query, mode, limit, MAX_SEARCH_SCAN);
+
+        dos.writeInt(results.size());
+        for (SearchResult result : results) {
+            dos.writeUTF(result.item().name());
+            dos.writeLong(result.item().size());
+            dos.writeInt(result.item().seeders());
+            dos.writeInt(result.score());
+        }
+    }
 }
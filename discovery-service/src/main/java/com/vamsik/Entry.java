@@ -1,55 +1,103 @@
 package com.vamsik;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class Entry {
     private String host;
     private int port;
-    private String[] files;
+    // normalized name -> file as the peer registered it
+    private final Map<String, SharedFile> files = new ConcurrentHashMap<>();
     private String cpuName;
+    private volatile long leaseDeadline = Long.MAX_VALUE;
 
     public Entry(String host, int port, String[] files, String cpuName) {
         this.host = host;
         this.port = port;
-        this.files = files;
+        for (String file : files) {
+            this.files.put(normalize(file), new SharedFile(file, -1));
+        }
         this.cpuName = cpuName;
     }
 
     public Entry(String host, int port, String cpuName) {
         this.host = host;
         this.port = port;
-        this.files = new String[0];
         this.cpuName = cpuName;
     }
 
     public Entry(String host, int port) {
         this.host = host;
         this.port = port;
-        this.files = new String[0];
+    }
+
+    public static String normalize(String filename) {
+        return filename.trim().toLowerCase(java.util.Locale.ROOT);
     }
 
     public boolean hasFile(String filename) {
-        for (String file : files) {
-            if (file.trim().equalsIgnoreCase(filename.trim())) {
-                return true;
-            }
-        }
-        return false;
+        return files.containsKey(normalize(filename));
     }
 
     public void addFile(String filename) {
-        String[] newFiles = new String[files.length + 1];
-        System.arraycopy(files, 0, newFiles, 0, files.length);
-        newFiles[files.length] = filename;
-        files = newFiles;
+        addFile(filename, -1);
+    }
+
+    /**
+     * @return the file this one replaces, or null
+     */
+    public SharedFile addFile(String filename, long size) {
+        return addFile(filename, size, "");
+    }
+
+    public SharedFile addFile(String filename, long size, String digest) {
+        return files.put(normalize(filename), new SharedFile(filename, size, digest));
+    }
+
+    // for loading a snapshot, where the normalized name is shared with the registry's index
+    void putFile(String normalizedName, SharedFile file) {
+        files.put(normalizedName, file);
+    }
+
+    /**
+     * @return the file registered under the normalized name, or null
+     */
+    public SharedFile getSharedFile(String normalizedName) {
+        return files.get(normalizedName);
+    }
+
+    /**
+     * @return the file that was removed, or null
+     */
+    public SharedFile removeFile(String filename) {
+        return files.remove(normalize(filename));
+    }
+
+    public Collection<SharedFile> getFiles() {
+        return files.values();
     }
 
     public String getFile() {
         StringBuilder sb = new StringBuilder();
-        for (String file : files) {
-            sb.append(file).append(",");
+        for (SharedFile file : files.values()) {
+            sb.append(file.name()).append(",");
         }
         return sb.toString().trim();
     }
 
+    public String getKey() {
+        return host + ":" + port;
+    }
+
+    public void setLeaseDeadline(long deadlineNanos) {
+        this.leaseDeadline = deadlineNanos;
+    }
+
+    public boolean isExpired(long nowNanos) {
+        return nowNanos - leaseDeadline > 0;
+    }
+
     public String getHost() {
         return host;
     }
@@ -0,0 +1,85 @@
+package com.vamsik;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timer wheel for lease expiry. Keys are dropped into the slot of the tick their deadline
+ * falls in, and a single sweeper thread visits one slot per tick, so the cost of a sweep depends
+ * on what is due instead of on how many peers are registered. A key may sit in several slots
+ * after renewals; the callback decides whether it is really due. A key whose deadline lies more
+ * than one rotation ahead of the sweeper, e.g. while it is catching up after a stall, stays in
+ * its slot until the rotation it belongs to comes up.
+ */
+public class ExpiryWheel {
+    private static final Logger logger = Logger.getLogger(ExpiryWheel.class.getName());
+
+    private final Queue<Scheduled>[] slots;
+    private final long tickNanos;
+    private volatile long processedTick;
+
+    /**
+     * @param span the longest deadline that will ever be scheduled, measured from now
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ExpiryWheel(long tickMillis, long spanMillis) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.slots = new Queue[(int) (spanMillis / tickMillis) + 2];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.processedTick = System.nanoTime() / tickNanos;
+    }
+
+    public void schedule(String key, long deadlineNanos) {
+        // rounding up so a key is never visited before its deadline
+        long tick = Math.max(deadlineNanos / tickNanos + 1, processedTick + 1);
+        slots[(int) (tick % slots.length)].add(new Scheduled(key, tick));
+    }
+
+    private record Scheduled(String key, long tick) {
+    }
+
+    /**
+     * Starts the sweeper thread, which hands every key whose slot came up to {@code onDue}.
+     */
+    public void start(Consumer<String> onDue) {
+        Thread sweeper = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(tickNanos - System.nanoTime() % tickNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long currentTick = System.nanoTime() / tickNanos;
+                while (processedTick < currentTick) {
+                    Queue<Scheduled> slot = slots[(int) (++processedTick % slots.length)];
+                    List<Scheduled> later = new ArrayList<>();
+
+                    Scheduled scheduled;
+                    while ((scheduled = slot.poll()) != null) {
+                        if (scheduled.tick() > processedTick) {
+                            later.add(scheduled);
+                            continue;
+                        }
+                        try {
+                            onDue.accept(scheduled.key());
+                        } catch (Exception e) {
+                            logger.info("Expiry of " + scheduled.key() + " failed: " + e.getMessage());
+                        }
+                    }
+                    slot.addAll(later);
+                }
+            }
+        }, "lease-expiry");
+
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+}
@@ -0,0 +1,11 @@
+package com.vamsik;
+
+import java.util.List;
+
+/**
+ * Where to download a file from: the SHA-256 of the content most of its peers registered under
+ * the name, "" when none of them hashed it yet, and the live peers holding that content under
+ * any name. Without a digest these are simply the peers sharing the name.
+ */
+public record FileSources(String digest, List<Entry> peers) {
+}
@@ -0,0 +1,51 @@
+package com.vamsik;
+
+/**
+ * Server side filter for paged catalog listings. Works on normalized names, so matching is
+ * case-insensitive like QUERY.
+ */
+public class ListFilter {
+    public static final ListFilter ALL = new ListFilter(Mode.ALL, "");
+
+    public enum Mode {
+        ALL,
+        PREFIX,
+        CONTAINS
+    }
+
+    private final Mode mode;
+    private final String text;
+
+    public ListFilter(Mode mode, String text) {
+        this.mode = mode;
+        this.text = Entry.normalize(text);
+    }
+
+    public static ListFilter parse(String mode, String text) {
+        if (text == null || text.isBlank()) {
+            return ALL;
+        }
+        return new ListFilter(Mode.valueOf(mode.toUpperCase(java.util.Locale.ROOT)), text);
+    }
+
+    // where the scan has to start: a prefix filter can skip straight to the first possible match
+    String startKey(String cursor) {
+        if (mode == Mode.PREFIX && cursor.compareTo(text) < 0) {
+            return text;
+        }
+        return cursor;
+    }
+
+    // sorted keys past the prefix range can never match again
+    boolean isPastEnd(String key) {
+        return mode == Mode.PREFIX && !key.startsWith(text) && key.compareTo(text) > 0;
+    }
+
+    boolean matches(String key) {
+        return switch (mode) {
+            case ALL -> true;
+            case PREFIX -> key.startsWith(text);
+            case CONTAINS -> key.contains(text);
+        };
+    }
+}
@@ -0,0 +1,633 @@
+package com.vamsik;
+
+import com.vamsik.protocol.ContentKey;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Thread safe store of the registered peers with an inverted index from normalized file name to
+ * the peers holding that file, so a QUERY is a single hash lookup instead of a scan of every peer.
+ * Peers are keyed by host:port and hold a lease that HEARTBEAT renews; an {@link ExpiryWheel}
+ * removes the ones that stop renewing, and lookups skip expired leases in the meantime.
+ * The index is sorted, so the catalog can be paged through with a cursor and filtered by prefix
+ * without ever materializing it. With a {@link RegistryLog} attached every change is also logged,
+ * so the registry survives a restart.
+ * <p>
+ * Files whose peers sent their SHA-256 are indexed by it as well, so the peers holding the same
+ * bytes under other names can be found, and peers holding different bytes under the same name
+ * kept apart.
+ */
+public class Registry {
+    private static final Logger logger = Logger.getLogger(Registry.class.getName());
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // only replaced by load, before the registry is in use
+    private ConcurrentNavigableMap<String, Set<Entry>> index = new ConcurrentSkipListMap<>();
+    // the names of the index once more, by trigram, for SEARCH
+    private final SearchIndex searchIndex = new SearchIndex(() -> index.keySet());
+    // content digest -> the peers holding it, with how many of their files have that content
+    private final Map<String, Map<Entry, Integer>> byDigest = new ConcurrentHashMap<>();
+    private final long leaseNanos;
+    private final ExpiryWheel expiryWheel;
+    private volatile RegistryLog log;
+
+    public Registry(Duration lease) {
+        this.leaseNanos = lease.toNanos();
+        this.expiryWheel = new ExpiryWheel(1000, lease.toMillis());
+    }
+
+    public void startExpiry() {
+        expiryWheel.start(this::expireIfDue);
+    }
+
+    void setLog(RegistryLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Waits until the changes made so far are on disk, returns right away without a log.
+     */
+    public void awaitDurable() throws IOException {
+        RegistryLog log = this.log;
+        if (log != null) {
+            log.awaitDurable();
+        }
+    }
+
+    public long getLeaseSeconds() {
+        return Duration.ofNanos(leaseNanos).toSeconds();
+    }
+
+    /**
+     * Publishes a fully populated entry, replacing any earlier registration of the same host:port.
+     * Indexing is linear in the number of files it holds.
+     */
+    public void register(Entry entry) {
+        this.renewLease(entry);
+
+        Entry previous = entries.put(entry.getKey(), entry);
+        if (previous != null) {
+            this.unindex(previous);
+        }
+
+        for (SharedFile file : entry.getFiles()) {
+            this.index(file.name(), entry);
+            this.indexDigest(file.digest(), entry);
+        }
+
+        RegistryLog log = this.log;
+        if (log != null) {
+            log.register(entry);
+        }
+    }
+
+    /**
+     * Adds files to an existing registration without resending its whole list.
+     *
+     * @return false when the peer is unknown and has to register again
+     */
+    public boolean announce(String host, int port, Collection<SharedFile> files) {
+        Entry entry = entries.get(host + ":" + port);
+        if (entry == null) {
+            return false;
+        }
+
+        for (SharedFile file : files) {
+            SharedFile previous = entry.addFile(file.name(), file.size(), file.digest());
+            if (previous != null) {
+                this.unindexDigest(previous.digest(), entry);
+            }
+            this.index(file.name(), entry);
+            this.indexDigest(file.digest(), entry);
+        }
+
+        RegistryLog log = this.log;
+        if (log != null) {
+            log.announce(host, port, files);
+        }
+
+        this.renewLease(entry);
+        return true;
+    }
+
+    /**
+     * Removes files from an existing registration.
+     *
+     * @return false when the peer is unknown and has to register again
+     */
+    public boolean withdraw(String host, int port, Collection<String> files) {
+        Entry entry = entries.get(host + ":" + port);
+        if (entry == null) {
+            return false;
+        }
+
+        for (String file : files) {
+            SharedFile removed = entry.removeFile(file);
+            this.unindex(file, entry);
+            if (removed != null) {
+                this.unindexDigest(removed.digest(), entry);
+            }
+        }
+
+        RegistryLog log = this.log;
+        if (log != null) {
+            log.withdraw(host, port, files);
+        }
+
+        this.renewLease(entry);
+        return true;
+    }
+
+    /**
+     * Records the content digests of files a peer already registered; names it no longer shares
+     * are skipped.
+     *
+     * @param digests file name -> SHA-256 in lowercase hex
+     * @return false when the peer is unknown and has to register again
+     */
+    public boolean digests(String host, int port, Map<String, String> digests) {
+        Entry entry = entries.get(host + ":" + port);
+        if (entry == null) {
+            return false;
+        }
+
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            SharedFile file = entry.getSharedFile(Entry.normalize(digest.getKey()));
+            if (file == null || file.digest().equals(digest.getValue())) {
+                continue;
+            }
+
+            SharedFile previous = entry.addFile(file.name(), file.size(), digest.getValue());
+            if (previous != null) {
+                this.unindexDigest(previous.digest(), entry);
+            }
+            this.indexDigest(digest.getValue(), entry);
+        }
+
+        RegistryLog log = this.log;
+        if (log != null) {
+            log.digests(host, port, digests);
+        }
+
+        this.renewLease(entry);
+        return true;
+    }
+
+    /**
+     * @return false when the peer is unknown, e.g. because its lease already expired
+     */
+    public boolean renew(String host, int port) {
+        Entry entry = entries.get(host + ":" + port);
+        if (entry == null) {
+            return false;
+        }
+        this.renewLease(entry);
+        return true;
+    }
+
+    public void remove(Entry entry) {
+        if (entries.remove(entry.getKey(), entry)) {
+            this.unindex(entry);
+
+            RegistryLog log = this.log;
+            if (log != null) {
+                log.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes whatever is registered under host:port.
+     */
+    public void remove(String host, int port) {
+        Entry entry = entries.get(host + ":" + port);
+        if (entry != null) {
+            this.remove(entry);
+        }
+    }
+
+    /**
+     * @param fileName a file name, or a {@link ContentKey} for the peers holding that content
+     */
+    public Collection<Entry> query(String fileName) {
+        String key = Entry.normalize(fileName);
+        String digest = ContentKey.digestOf(key);
+        if (digest != null) {
+            Map<Entry, Integer> holders = byDigest.get(digest);
+            return holders == null ? List.of() : live(holders.keySet());
+        }
+
+        Set<Entry> holders = index.get(key);
+        if (holders == null) {
+            return List.of();
+        }
+        return live(holders);
+    }
+
+    /**
+     * Where to download a file from. Peers may share different content under the same name; the
+     * content most of the live holders of the name have wins, ties going to the smaller digest so
+     * every node picks the same, and peers holding it under another name join them. Peers that
+     * did not hash their copy yet only count while nobody did.
+     *
+     * @param fileName a file name, or a {@link ContentKey}
+     */
+    public FileSources sources(String fileName) {
+        String key = Entry.normalize(fileName);
+        String digest = ContentKey.digestOf(key);
+        if (digest != null) {
+            return new FileSources(digest, List.copyOf(this.query(key)));
+        }
+
+        Set<Entry> holders = index.get(key);
+        if (holders == null) {
+            return new FileSources("", List.of());
+        }
+
+        List<Entry> live = live(holders);
+        Map<String, Integer> votes = new HashMap<>();
+        for (Entry entry : live) {
+            SharedFile file = entry.getSharedFile(key);
+            if (file != null && !file.digest().isEmpty()) {
+                votes.merge(file.digest(), 1, Integer::sum);
+            }
+        }
+
+        String chosen = null;
+        for (Map.Entry<String, Integer> vote : votes.entrySet()) {
+            if (chosen == null || vote.getValue() > votes.get(chosen)
+                    || vote.getValue().equals(votes.get(chosen)) && vote.getKey().compareTo(chosen) < 0) {
+                chosen = vote.getKey();
+            }
+        }
+        if (chosen == null) {
+            return new FileSources("", live);
+        }
+
+        Set<Entry> peers = new LinkedHashSet<>();
+        for (Entry entry : live) {
+            SharedFile file = entry.getSharedFile(key);
+            if (file != null && file.digest().equals(chosen)) {
+                peers.add(entry);
+            }
+        }
+        peers.addAll(this.query(ContentKey.of(chosen)));
+        return new FileSources(chosen, List.copyOf(peers));
+    }
+
+    /**
+     * Walks the catalog in name order, starting after {@code cursor}, and hands every file with at
+     * least one live seeder that passes the filter to {@code consumer} until it returns false.
+     * At most {@code scanBudget} names are looked at, so a filter that matches little can not keep
+     * the caller busy for long; the caller continues from the returned cursor.
+     *
+     * @return the normalized name to continue after, or null when the end of the catalog was reached
+     */
+    public String scan(String cursor, ListFilter filter, int scanBudget, Predicate<CatalogItem> consumer) {
+        String from = filter.startKey(cursor);
+        NavigableMap<String, Set<Entry>> tail = from.isEmpty() ? index : index.tailMap(from, !from.equals(cursor));
+        long now = System.nanoTime();
+        int scanned = 0;
+
+        for (Map.Entry<String, Set<Entry>> item : tail.entrySet()) {
+            String key = item.getKey();
+
+            if (filter.isPastEnd(key)) {
+                return null;
+            }
+
+            if (++scanned > scanBudget) {
+                return cursor;
+            }
+
+            cursor = key;
+
+            if (!filter.matches(key)) {
+                continue;
+            }
+
+            CatalogItem file = item(key, item.getValue(), now);
+            if (file != null && !consumer.test(file)) {
+                return key;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The best {@code limit} files matching {@code query} that have a live seeder, best first; see
+     * {@link SearchIndex.Hit#score()} for the ranking. A prefix search walks the sorted index and
+     * ranks by name. Text too short for trigrams is matched by scanning the catalog like a
+     * filtered LISTPAGE. At most {@code budget} names are looked at either way.
+     */
+    public List<SearchResult> search(String query, SearchIndex.Mode mode, int limit, int budget) {
+        String text = Entry.normalize(query);
+        if (text.isEmpty()) {
+            return List.of();
+        }
+
+        List<SearchResult> results = new ArrayList<>(Math.min(limit, 1024));
+
+        if (mode == SearchIndex.Mode.PREFIX) {
+            int scanned = 0;
+            for (String key : index.tailMap(text, true).keySet()) {
+                if (!key.startsWith(text) || ++scanned > budget) {
+                    break;
+                }
+                CatalogItem item = this.item(key);
+                if (item != null) {
+                    results.add(new SearchResult(item, key.equals(text) ? 0 : 1));
+                    if (results.size() == limit) {
+                        break;
+                    }
+                }
+            }
+            return results;
+        }
+
+        List<SearchIndex.Hit> hits;
+        if (SearchIndex.trigrams(text).length > 0) {
+            // a few more than asked for, some may have left the catalog since they were indexed
+            hits = searchIndex.search(text, mode == SearchIndex.Mode.FUZZY, limit * 2, budget);
+        } else {
+            List<SearchIndex.Hit> matches = new ArrayList<>();
+            this.scan("", new ListFilter(ListFilter.Mode.CONTAINS, text), budget, item -> {
+                String key = Entry.normalize(item.name());
+                matches.add(new SearchIndex.Hit(key, SearchIndex.score(key, text, key.indexOf(text))));
+                return true;
+            });
+            matches.sort(SearchIndex.RANKING);
+            hits = matches;
+        }
+
+        Set<String> seen = new HashSet<>();
+        for (SearchIndex.Hit hit : hits) {
+            CatalogItem item = seen.add(hit.name()) ? this.item(hit.name()) : null;
+            if (item != null) {
+                results.add(new SearchResult(item, hit.score()));
+                if (results.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return results;
+    }
+
+    private CatalogItem item(String key) {
+        Set<Entry> holders = index.get(key);
+        return holders == null ? null : item(key, holders, System.nanoTime());
+    }
+
+    // the file under a normalized name with its live seeders, or null when none is left
+    private static CatalogItem item(String key, Set<Entry> holders, long now) {
+        SharedFile file = null;
+        int seeders = 0;
+        for (Entry entry : holders) {
+            if (!entry.isExpired(now)) {
+                SharedFile candidate = entry.getSharedFile(key);
+                if (candidate != null) {
+                    // older peers register names without sizes, another holder may know it
+                    file = file == null || file.size() < 0 ? candidate : file;
+                    seeders++;
+                }
+            }
+        }
+        return seeders > 0 ? new CatalogItem(file.name(), file.size(), seeders) : null;
+    }
+
+    /**
+     * Fills an empty registry from a snapshot. {@code names} are normalized file names in
+     * ascending order and {@code holders} the peers holding each of them, whose files are already
+     * set; from sorted input the index is built in one linear pass instead of name by name.
+     */
+    void load(Collection<Entry> peers, List<String> names, List<Entry[]> holders) {
+        if (!entries.isEmpty()) {
+            throw new IllegalStateException("Registry already in use");
+        }
+
+        for (Entry entry : peers) {
+            this.renewLease(entry);
+            entries.put(entry.getKey(), entry);
+        }
+        index = new ConcurrentSkipListMap<>(new SortedRun<>(names, i -> {
+            // most names have a single holder, sized to fit the set skips the default table of 16
+            Set<Entry> holding = ConcurrentHashMap.newKeySet(holders.get(i).length);
+            Collections.addAll(holding, holders.get(i));
+            return holding;
+        }));
+        for (Entry entry : peers) {
+            for (SharedFile file : entry.getFiles()) {
+                this.indexDigest(file.digest(), entry);
+            }
+        }
+        searchIndex.rebuild(names);
+    }
+
+    /**
+     * @return the index from normalized file name to the peers holding it, live or not
+     */
+    NavigableMap<String, Set<Entry>> catalog() {
+        return Collections.unmodifiableNavigableMap(index);
+    }
+
+    public Collection<Entry> entries() {
+        return live(entries.values());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void renewLease(Entry entry) {
+        long deadline = System.nanoTime() + leaseNanos;
+        entry.setLeaseDeadline(deadline);
+        expiryWheel.schedule(entry.getKey(), deadline);
+    }
+
+    private void expireIfDue(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isExpired(System.nanoTime())) {
+            logger.info("Lease expired for peer " + key);
+            this.remove(entry);
+        }
+    }
+
+    private void index(String file, Entry entry) {
+        // compute may run the function more than once, the last run is the one that counted
+        boolean[] added = new boolean[1];
+        String name = Entry.normalize(file);
+        index.compute(name, (key, peers) -> {
+            added[0] = peers == null;
+            Set<Entry> holders = peers != null ? peers : ConcurrentHashMap.newKeySet();
+            holders.add(entry);
+            return holders;
+        });
+
+        if (added[0]) {
+            searchIndex.add(name);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        for (SharedFile file : entry.getFiles()) {
+            this.unindex(file.name(), entry);
+            this.unindexDigest(file.digest(), entry);
+        }
+    }
+
+    private void indexDigest(String digest, Entry entry) {
+        if (digest.isEmpty()) {
+            return;
+        }
+        byDigest.compute(digest, (key, peers) -> {
+            Map<Entry, Integer> holders = peers != null ? peers : new ConcurrentHashMap<>();
+            holders.merge(entry, 1, Integer::sum);
+            return holders;
+        });
+    }
+
+    // the peer keeps the content indexed as long as another of its files has it
+    private void unindexDigest(String digest, Entry entry) {
+        if (digest.isEmpty()) {
+            return;
+        }
+        byDigest.computeIfPresent(digest, (key, holders) -> {
+            holders.computeIfPresent(entry, (peer, count) -> count > 1 ? count - 1 : null);
+            return holders.isEmpty() ? null : holders;
+        });
+    }
+
+    private void unindex(String file, Entry entry) {
+        boolean[] removed = new boolean[1];
+        index.computeIfPresent(Entry.normalize(file), (key, holders) -> {
+            holders.remove(entry);
+            removed[0] = holders.isEmpty();
+            return removed[0] ? null : holders;
+        });
+
+        if (removed[0]) {
+            searchIndex.removed();
+        }
+    }
+
+    // a run of keys in ascending order with values made on demand, so the ConcurrentSkipListMap
+    // constructor can build its index in one linear pass
+    private static class SortedRun<V> extends AbstractMap<String, V> implements SortedMap<String, V> {
+        private final List<String> keys;
+        private final IntFunction<V> valueAt;
+
+        SortedRun(List<String> keys, IntFunction<V> valueAt) {
+            this.keys = keys;
+            this.valueAt = valueAt;
+        }
+
+        @Override
+        public Set<Map.Entry<String, V>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<String, V>> iterator() {
+                    return new Iterator<>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < keys.size();
+                        }
+
+                        @Override
+                        public Map.Entry<String, V> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            V value = valueAt.apply(next);
+                            return Map.entry(keys.get(next++), value);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return keys.size();
+                }
+            };
+        }
+
+        @Override
+        public Comparator<? super String> comparator() {
+            return null;
+        }
+
+        @Override
+        public String firstKey() {
+            return keys.getFirst();
+        }
+
+        @Override
+        public String lastKey() {
+            return keys.getLast();
+        }
+
+        @Override
+        public SortedMap<String, V> subMap(String fromKey, String toKey) {
+            if (fromKey.compareTo(toKey) > 0) {
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+            return this.slice(this.indexOf(fromKey), this.indexOf(toKey));
+        }
+
+        @Override
+        public SortedMap<String, V> headMap(String toKey) {
+            return this.slice(0, this.indexOf(toKey));
+        }
+
+        @Override
+        public SortedMap<String, V> tailMap(String fromKey) {
+            return this.slice(this.indexOf(fromKey), keys.size());
+        }
+
+        // position of the first key not less than the given one
+        private int indexOf(String key) {
+            int found = Collections.binarySearch(keys, key);
+            return found >= 0 ? found : -found - 1;
+        }
+
+        private SortedRun<V> slice(int from, int to) {
+            return new SortedRun<>(keys.subList(from, to), i -> valueAt.apply(from + i));
+        }
+    }
+
+    private static List<Entry> live(Collection<Entry> candidates) {
+        long now = System.nanoTime();
+        List<Entry> result = new ArrayList<>(candidates.size());
+        for (Entry entry : candidates) {
+            if (!entry.isExpired(now)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,759 @@
+package com.vamsik;
+
+import com.vamsik.metrics.Counter;
+import com.vamsik.metrics.LatencyHistogram;
+import com.vamsik.metrics.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps the registry across restarts. Every change is appended to a log segment as a small
+ * checksummed record; a single writer thread writes whatever queued up since its last write and
+ * forces it to disk with one fsync, so concurrent registrations share the cost of a sync. Once the
+ * log has grown past a limit the writer moves on to a new segment and the whole registry is
+ * written to a snapshot, after which the older segments are deleted.
+ * <p>
+ * At startup the snapshot is loaded and the newer segments are replayed on top of it. Replayed
+ * peers get a fresh lease, so they can be found right away and expire as usual if they do not
+ * come back. Records only ever set state, which makes replaying a record that the snapshot
+ * already contains harmless.
+ */
+public class RegistryLog {
+    private static final Logger logger = Logger.getLogger(RegistryLog.class.getName());
+    private static final LatencyHistogram SYNC_LATENCY = Metrics.histogram("discovery_log_sync_seconds", "Time to write and fsync one batch of log records");
+    private static final Counter LOGGED_BYTES = Metrics.counter("discovery_log_bytes_total", "Bytes appended to the registry log");
+    private static final int SNAPSHOT_MAGIC = 0x52454753; // "REGS"
+    // version 2 added content digests, snapshots of version 1 still load
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final String SNAPSHOT_FILE = "registry.snapshot";
+    private static final String SEGMENT_PREFIX = "registry-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // records larger than this are treated as garbage at the end of a torn segment
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+    private static final int IO_BUFFER_BYTES = 1024 * 1024;
+    // how often the snapshot thread checks the size of the log
+    private static final long SNAPSHOT_CHECK_MILLIS = 5000;
+
+    private static final byte REGISTER = 1;
+    private static final byte ANNOUNCE = 2;
+    private static final byte WITHDRAW = 3;
+    private static final byte REMOVE = 4;
+    private static final byte DIGESTS = 5;
+
+    private final Path directory;
+    private final Registry registry;
+    private final long snapshotBytes;
+    // held for as long as the process runs, two services must not share a directory
+    private final FileLock directoryLock;
+
+    // a lock rather than synchronized, commands are handled on virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingAdded = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+    // guarded by lock
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSeq;
+    private long durableSeq;
+    private long rotateTo;
+    private IOException failure;
+
+    // only touched by the writer thread, apart from reading the sizes
+    private FileChannel segment;
+    private volatile long generation;
+    private volatile long segmentBytes;
+
+    private RegistryLog(Path directory, Registry registry, long snapshotBytes, FileLock directoryLock) {
+        this.directory = directory;
+        this.registry = registry;
+        this.snapshotBytes = snapshotBytes;
+        this.directoryLock = directoryLock;
+    }
+
+    /**
+     * Restores the registry from {@code directory}, creating it if needed, and from then on logs
+     * every change made to the registry.
+     *
+     * @param snapshotBytes size of the log after which a snapshot is taken
+     */
+    public static RegistryLog open(Path directory, Registry registry, long snapshotBytes) throws IOException {
+        Files.createDirectories(directory);
+        FileChannel lockChannel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock directoryLock = lockChannel.tryLock();
+        if (directoryLock == null) {
+            lockChannel.close();
+            throw new IOException(directory + " is used by another discovery service, pick another one with -Dapp.dataDir");
+        }
+
+        RegistryLog log = new RegistryLog(directory, registry, snapshotBytes, directoryLock);
+        log.restore();
+        registry.setLog(log);
+        log.startWriter();
+        log.startSnapshots();
+        return log;
+    }
+
+    void register(Entry entry) {
+        this.append(out -> {
+            out.writeByte(REGISTER);
+            writePeer(out, entry);
+        });
+    }
+
+    void announce(String host, int port, Collection<SharedFile> files) {
+        this.append(out -> {
+            out.writeByte(ANNOUNCE);
+            out.writeUTF(host);
+            out.writeInt(port);
+            out.writeInt(files.size());
+            for (SharedFile file : files) {
+                out.writeUTF(file.name());
+                out.writeLong(file.size());
+            }
+        });
+    }
+
+    void withdraw(String host, int port, Collection<String> files) {
+        this.append(out -> {
+            out.writeByte(WITHDRAW);
+            out.writeUTF(host);
+            out.writeInt(port);
+            out.writeInt(files.size());
+            for (String file : files) {
+                out.writeUTF(file);
+            }
+        });
+    }
+
+    void digests(String host, int port, Map<String, String> digests) {
+        this.append(out -> {
+            out.writeByte(DIGESTS);
+            out.writeUTF(host);
+            out.writeInt(port);
+            out.writeInt(digests.size());
+            for (Map.Entry<String, String> digest : digests.entrySet()) {
+                out.writeUTF(digest.getKey());
+                writeDigest(out, digest.getValue());
+            }
+        });
+    }
+
+    void remove(Entry entry) {
+        this.append(out -> {
+            out.writeByte(REMOVE);
+            out.writeUTF(entry.getHost());
+            out.writeInt(entry.getPort());
+        });
+    }
+
+    /**
+     * Waits until every change logged so far is on disk. Callers that got here concurrently are
+     * covered by the same sync.
+     *
+     * @throws IOException when the log can no longer be written
+     */
+    public void awaitDurable() throws IOException {
+        lock.lock();
+        try {
+            long target = appendedSeq;
+            while (durableSeq < target && failure == null) {
+                synced.awaitUninterruptibly();
+            }
+            if (durableSeq < target) {
+                throw new IOException("Registry log failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(RecordWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            writer.write(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // writing to memory does not fail
+        }
+
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        lock.lock();
+        try {
+            DataOutputStream out = new DataOutputStream(pending);
+            out.writeInt(record.length);
+            out.writeInt((int) crc.getValue());
+            out.write(record);
+            appendedSeq++;
+            pendingAdded.signal();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startWriter() {
+        Thread writer = new Thread(() -> {
+            try {
+                this.writeLoop();
+            } catch (IOException e) {
+                logger.severe("Registry log can not be written, changes are no longer persisted: " + e.getMessage());
+                lock.lock();
+                try {
+                    failure = e;
+                    synced.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, "registry-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // group commit: everything appended while the previous batch was being synced goes out in the next one
+    private void writeLoop() throws IOException {
+        ByteArrayOutputStream spare = new ByteArrayOutputStream();
+
+        while (true) {
+            ByteArrayOutputStream batch;
+            long batchSeq;
+            long rotation;
+
+            lock.lock();
+            try {
+                while (pending.size() == 0 && rotateTo == 0) {
+                    pendingAdded.awaitUninterruptibly();
+                }
+                batch = pending;
+                pending = spare;
+                batchSeq = appendedSeq;
+                rotation = rotateTo;
+            } finally {
+                lock.unlock();
+            }
+
+            if (batch.size() > 0) {
+                long start = System.nanoTime();
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining()) {
+                    segment.write(buffer);
+                }
+                segment.force(false);
+                segmentBytes += batch.size();
+                SYNC_LATENCY.recordSince(start);
+                LOGGED_BYTES.add(batch.size());
+            }
+
+            if (rotation != 0) {
+                // every record in the old segment is already applied to the registry the snapshot will read
+                segment.close();
+                this.openSegment(rotation);
+            }
+
+            batch.reset();
+            spare = batch;
+
+            lock.lock();
+            try {
+                durableSeq = batchSeq;
+                if (rotation != 0) {
+                    rotateTo = 0;
+                }
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void openSegment(long newGeneration) throws IOException {
+        segment = FileChannel.open(segmentPath(newGeneration), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        generation = newGeneration;
+        segmentBytes = segment.size();
+        forceDirectory();
+    }
+
+    private void startSnapshots() {
+        Thread snapshots = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(SNAPSHOT_CHECK_MILLIS);
+                    if (segmentBytes >= snapshotBytes) {
+                        this.snapshot();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    logger.warning("Registry snapshot failed: " + e.getMessage());
+                }
+            }
+        }, "registry-snapshot");
+        snapshots.setDaemon(true);
+        snapshots.start();
+    }
+
+    /**
+     * Writes the registry to a new snapshot and deletes the log segments it replaces. The snapshot
+     * lists the peers and then the catalog in index order, so loading it needs no sorting.
+     */
+    public void snapshot() throws IOException {
+        long started = System.nanoTime();
+        long snapshotGeneration = this.rotate();
+
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        Map<Entry, Integer> ids = new IdentityHashMap<>();
+        long files = 0;
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), IO_BUFFER_BYTES), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(snapshotGeneration);
+
+            for (Entry entry : registry.entries()) {
+                out.writeBoolean(true);
+                out.writeUTF(entry.getHost());
+                out.writeInt(entry.getPort());
+                out.writeUTF(entry.getCpuName() == null ? "" : entry.getCpuName());
+                ids.put(entry, ids.size());
+            }
+            out.writeBoolean(false);
+
+            List<Integer> holderIds = new ArrayList<>();
+            List<SharedFile> holderFiles = new ArrayList<>();
+            for (Map.Entry<String, Set<Entry>> item : registry.catalog().entrySet()) {
+                holderIds.clear();
+                holderFiles.clear();
+                for (Entry entry : item.getValue()) {
+                    // peers that registered after the list above are in the new segment
+                    Integer id = ids.get(entry);
+                    SharedFile file = entry.getSharedFile(item.getKey());
+                    if (id != null && file != null) {
+                        holderIds.add(id);
+                        holderFiles.add(file);
+                    }
+                }
+
+                if (!holderIds.isEmpty()) {
+                    out.writeInt(holderIds.size());
+                    for (int i = 0; i < holderIds.size(); i++) {
+                        out.writeInt(holderIds.get(i));
+                        out.writeUTF(holderFiles.get(i).name());
+                        out.writeLong(holderFiles.get(i).size());
+                        writeDigest(out, holderFiles.get(i).digest());
+                    }
+                    files += holderIds.size();
+                }
+            }
+            out.writeInt(0);
+
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+        this.deleteSegmentsBefore(snapshotGeneration);
+
+        logger.info("Registry snapshot of " + ids.size() + " peers and " + files + " files written in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+    }
+
+    // has the writer continue in a new segment and returns its generation once it did
+    private long rotate() throws IOException {
+        lock.lock();
+        try {
+            long next = generation + 1;
+            rotateTo = next;
+            pendingAdded.signal();
+            while (rotateTo != 0 && failure == null) {
+                synced.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new IOException("Registry log failed", failure);
+            }
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void restore() throws IOException {
+        long started = System.nanoTime();
+        long snapshotGeneration = this.loadSnapshot();
+
+        TreeMap<Long, Path> segments = this.segments();
+        long records = 0;
+        for (var segment : segments.tailMap(snapshotGeneration, true).entrySet()) {
+            records += this.replay(segment.getValue());
+        }
+        this.deleteSegmentsBefore(snapshotGeneration);
+
+        long last = segments.isEmpty() ? snapshotGeneration : Math.max(segments.lastKey(), snapshotGeneration);
+        // a new segment per start, so nothing is ever appended behind a torn record
+        this.openSegment(last + 1);
+        segmentBytes = segments.tailMap(snapshotGeneration, true).values().stream().mapToLong(RegistryLog::sizeOf).sum();
+
+        logger.info("Registry restored from " + directory + ": " + registry.size() + " peers after replaying "
+                + records + " log records, in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+    }
+
+    // @return the generation of the first segment that is not part of the snapshot
+    private long loadSnapshot() throws IOException {
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        try (SnapshotReader in = new SnapshotReader(file)) {
+            int version = in.readInt() == SNAPSHOT_MAGIC ? in.readInt() : -1;
+            if (version < 1 || version > SNAPSHOT_VERSION) {
+                throw new IOException("Not a registry snapshot: " + file);
+            }
+            long snapshotGeneration = in.readLong();
+
+            List<Entry> peers = new ArrayList<>();
+            while (in.readBoolean()) {
+                String host = in.readUTF();
+                int port = in.readInt();
+                String cpuName = in.readUTF();
+                peers.add(new Entry(host, port, cpuName.isEmpty() ? null : cpuName));
+            }
+
+            List<String> names = new ArrayList<>();
+            List<Entry[]> holders = new ArrayList<>();
+            int count;
+            while ((count = in.readInt()) > 0) {
+                Entry[] holding = new Entry[count];
+                String name = null;
+
+                for (int i = 0; i < count; i++) {
+                    Entry entry = peers.get(in.readInt());
+                    SharedFile sharedFile = new SharedFile(in.readUTF(), in.readLong(), version >= 2 ? in.readDigest() : "");
+                    // every holder's name normalizes to the same key, one string serves them all
+                    name = name != null ? name : Entry.normalize(sharedFile.name());
+                    entry.putFile(name, sharedFile);
+                    holding[i] = entry;
+                }
+
+                if (!names.isEmpty() && names.getLast().compareTo(name) >= 0) {
+                    throw new IOException("Registry snapshot " + file + " is out of order at " + name);
+                }
+                names.add(name);
+                holders.add(holding);
+            }
+
+            long expected = in.checksum();
+            if (in.readLong() != expected) {
+                throw new IOException("Registry snapshot " + file + " is corrupt");
+            }
+
+            registry.load(peers, names, holders);
+            return snapshotGeneration;
+        }
+    }
+
+    // applies the records of one segment, stopping at a torn or corrupt tail
+    private long replay(Path path) throws IOException {
+        long records = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), IO_BUFFER_BYTES))) {
+            CRC32 crc = new CRC32();
+            byte[] record;
+
+            while ((record = readRecord(in, crc)) != null) {
+                this.apply(new DataInputStream(new ByteArrayInputStream(record)));
+                records++;
+            }
+        } catch (EOFException e) {
+            // the process died while writing this record, it was never acknowledged
+            logger.warning("Ignoring the torn end of " + path.getFileName() + " after " + records + " records");
+        }
+
+        return records;
+    }
+
+    // @return null at the clean end of a segment
+    private static byte[] readRecord(DataInputStream in, CRC32 crc) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+
+        int length = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        int checksum = in.readInt();
+        if (length < 0 || length > MAX_RECORD_BYTES) {
+            throw new EOFException();
+        }
+
+        byte[] record = in.readNBytes(length);
+        crc.reset();
+        crc.update(record);
+        if (record.length != length || (int) crc.getValue() != checksum) {
+            throw new EOFException();
+        }
+        return record;
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case REGISTER -> registry.register(readPeer(in));
+            case ANNOUNCE -> {
+                String host = in.readUTF();
+                int port = in.readInt();
+                int count = in.readInt();
+                List<SharedFile> files = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    files.add(new SharedFile(in.readUTF(), in.readLong()));
+                }
+                registry.announce(host, port, files);
+            }
+            case WITHDRAW -> {
+                String host = in.readUTF();
+                int port = in.readInt();
+                int count = in.readInt();
+                List<String> files = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    files.add(in.readUTF());
+                }
+                registry.withdraw(host, port, files);
+            }
+            case REMOVE -> registry.remove(in.readUTF(), in.readInt());
+            case DIGESTS -> {
+                String host = in.readUTF();
+                int port = in.readInt();
+                int count = in.readInt();
+                Map<String, String> digests = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    digests.put(in.readUTF(), readDigest(in));
+                }
+                registry.digests(host, port, digests);
+            }
+            default -> throw new IOException("Unknown registry log record " + type);
+        }
+    }
+
+    private static void writePeer(DataOutputStream out, Entry entry) throws IOException {
+        // the file map may change meanwhile, the count has to match what follows
+        List<SharedFile> files = new ArrayList<>(entry.getFiles());
+        out.writeUTF(entry.getHost());
+        out.writeInt(entry.getPort());
+        out.writeUTF(entry.getCpuName() == null ? "" : entry.getCpuName());
+        out.writeInt(files.size());
+        for (SharedFile file : files) {
+            out.writeUTF(file.name());
+            out.writeLong(file.size());
+        }
+    }
+
+    // a digest takes its 32 bytes instead of 64 hex characters, or a single 0 when there is none
+    private static void writeDigest(DataOutputStream out, String digest) throws IOException {
+        if (digest.isEmpty()) {
+            out.writeByte(0);
+            return;
+        }
+        byte[] bytes = HexFormat.of().parseHex(digest);
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readDigest(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedByte()];
+        in.readFully(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    private static Entry readPeer(DataInputStream in) throws IOException {
+        String host = in.readUTF();
+        int port = in.readInt();
+        String cpuName = in.readUTF();
+        Entry entry = new Entry(host, port, cpuName.isEmpty() ? null : cpuName);
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            entry.addFile(in.readUTF(), in.readLong());
+        }
+        return entry;
+    }
+
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> {
+                String name = path.getFileName().toString();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), path);
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            });
+        }
+        return segments;
+    }
+
+    private void deleteSegmentsBefore(long generation) throws IOException {
+        for (Path path : this.segments().headMap(generation).values()) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private Path segmentPath(long generation) {
+        return directory.resolve(SEGMENT_PREFIX + String.format("%010d", generation) + SEGMENT_SUFFIX);
+    }
+
+    // makes created, renamed and deleted files durable, not every platform lets a directory be opened for that
+    private void forceDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            logger.fine("Could not sync " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads a snapshot in large blocks. The java.io streams take a lock on every call, which for
+     * millions of short fields costs more than decoding them.
+     */
+    private static class SnapshotReader implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_BYTES).flip();
+        private final CRC32 crc = new CRC32();
+        // bytes of the buffer before this one are already in the checksum
+        private int checksummed;
+
+        SnapshotReader(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        }
+
+        int readInt() throws IOException {
+            this.require(Integer.BYTES);
+            return buffer.getInt();
+        }
+
+        long readLong() throws IOException {
+            this.require(Long.BYTES);
+            return buffer.getLong();
+        }
+
+        boolean readBoolean() throws IOException {
+            this.require(1);
+            return buffer.get() != 0;
+        }
+
+        // same format as DataInput.readUTF, names are nearly always ASCII and copied as they are
+        String readUTF() throws IOException {
+            this.require(2);
+            int length = Short.toUnsignedInt(buffer.getShort());
+            this.require(length);
+
+            byte[] array = buffer.array();
+            int start = buffer.position();
+            buffer.position(start + length);
+
+            for (int i = start; i < start + length; i++) {
+                if (array[i] < 0) {
+                    byte[] encoded = new byte[length + 2];
+                    encoded[0] = (byte) (length >>> 8);
+                    encoded[1] = (byte) length;
+                    System.arraycopy(array, start, encoded, 2, length);
+                    return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+                }
+            }
+            return new String(array, start, length, StandardCharsets.ISO_8859_1);
+        }
+
+        // as written by writeDigest
+        String readDigest() throws IOException {
+            this.require(1);
+            int length = Byte.toUnsignedInt(buffer.get());
+            this.require(length);
+
+            int start = buffer.position();
+            buffer.position(start + length);
+            return HexFormat.of().formatHex(buffer.array(), start, start + length);
+        }
+
+        /**
+         * @return the CRC32 of everything read so far
+         */
+        long checksum() {
+            crc.update(buffer.array(), checksummed, buffer.position() - checksummed);
+            checksummed = buffer.position();
+            return crc.getValue();
+        }
+
+        private void require(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+
+            crc.update(buffer.array(), checksummed, buffer.position() - checksummed);
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+            checksummed = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,468 @@
+package com.vamsik;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Trigram index over the normalized names of the catalog, for SEARCH. Every distinct name gets an
+ * ID and every three characters in a row of it a posting list of the IDs containing them, so a
+ * substring search only looks at the names on the rarest list of its trigrams instead of at the
+ * whole catalog. Names within a few typos of the text still share most of its trigrams; counting
+ * on how many of the lists a name is narrows down the names worth an edit distance.
+ * <p>
+ * Posting lists are delta encoded varints, one or two bytes per name for most trigrams. The names
+ * themselves are copied as UTF-8 into one array in ID order, so checking the candidates of a list
+ * reads that array front to back instead of following a pointer to every String. IDs only grow:
+ * adding a name appends to its lists, and a removed name stays on them until more than half the
+ * IDs are gone and the index is rebuilt from the catalog. Searches therefore check what they find
+ * against the catalog, see {@link Registry#search}.
+ */
+public class SearchIndex {
+    private static final Logger logger = Logger.getLogger(SearchIndex.class.getName());
+    // removed names that may pile up before a rebuild, however small the catalog
+    private static final int MIN_REBUILD_GARBAGE = 1024;
+    // longest text, in UTF-8 bytes, the bit-parallel edit distance handles; longer ones match exactly
+    private static final int MAX_FUZZY_BYTES = 64;
+    // lists up to this many times as long as the rarest one of a query are intersected with it
+    private static final int RARE_LIST_RATIO = 4;
+
+    public enum Mode {
+        PREFIX,
+        CONTAINS,
+        // substrings and names within a few typos of the text
+        FUZZY
+    }
+
+    /**
+     * A name found by a search and how well it matched, lower is better: 0 for the name itself,
+     * 1 for a name starting with the text, 2 for the text at the start of a word, 3 anywhere else
+     * and 3 plus the number of edits for names matching with typos.
+     */
+    public record Hit(String name, int score) {
+    }
+
+    // best first; among names matching equally well the shorter one is closer to what was asked for
+    static final Comparator<Hit> RANKING = Comparator.comparingInt(Hit::score)
+            .thenComparingInt(hit -> hit.name().length())
+            .thenComparing(Hit::name);
+
+    private final Supplier<Collection<String>> catalog;
+    // a read-write lock rather than synchronized, searches run concurrently on virtual threads
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Map<Long, Postings> postings = new HashMap<>();
+    private String[] names = new String[1024];
+    // the names as UTF-8, name i from starts[i] to starts[i + 1]
+    private byte[] text = new byte[16 * 1024];
+    private int[] starts = new int[1025];
+    private int nextId;
+    private int removed;
+
+    /**
+     * @param catalog the names currently in the catalog, read when the index is rebuilt
+     */
+    public SearchIndex(Supplier<Collection<String>> catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Adds a normalized name that just entered the catalog.
+     */
+    public void add(String name) {
+        lock.writeLock().lock();
+        try {
+            this.append(name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Notes that a name left the catalog, rebuilding the index once removed names make up most of it.
+     */
+    public void removed() {
+        lock.writeLock().lock();
+        try {
+            if (++removed > MIN_REBUILD_GARBAGE && removed > nextId / 2) {
+                this.rebuild(catalog.get());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the index with one of the given normalized names.
+     */
+    public void rebuild(Collection<String> catalogNames) {
+        lock.writeLock().lock();
+        try {
+            long start = System.nanoTime();
+            int capacity = Math.max(1024, catalogNames.size() + catalogNames.size() / 4);
+            postings = new HashMap<>();
+            names = new String[capacity];
+            starts = new int[capacity + 1];
+            text = new byte[16 * capacity];
+            nextId = 0;
+            removed = 0;
+
+            for (String name : catalogNames) {
+                this.append(name);
+            }
+            logger.info("Indexed " + nextId + " names for search in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The best {@code limit} names containing the normalized {@code query}, and with
+     * {@link Mode#FUZZY} also the names containing it with a typo or two, best first. The query
+     * needs at least three characters. At most {@code budget} names are looked at, past that the
+     * best of those are returned. Names that left the catalog since the last rebuild may be among
+     * them, and a name may come twice.
+     */
+    public List<Hit> search(String query, boolean fuzzy, int limit, int budget) {
+        long[] trigrams = trigrams(query);
+        if (trigrams.length == 0) {
+            return List.of();
+        }
+
+        byte[] pattern = query.getBytes(StandardCharsets.UTF_8);
+        PriorityQueue<Candidate> best = new PriorityQueue<>(limit + 1, this.ranking().reversed());
+
+        lock.readLock().lock();
+        try {
+            Postings[] lists = new Postings[trigrams.length];
+            for (int i = 0; i < trigrams.length; i++) {
+                lists[i] = postings.getOrDefault(trigrams[i], Postings.EMPTY);
+            }
+            Arrays.sort(lists, Comparator.comparingInt(list -> list.count));
+
+            // a name containing the query is on every list; decoding the lists about as rare as the
+            // rarest is cheaper than looking at a name they rule out, commoner ones rule out too little
+            int rare = 1;
+            while (rare < lists.length && lists[rare].count <= RARE_LIST_RATIO * lists[0].count) {
+                rare++;
+            }
+            budget -= this.collect(Arrays.copyOf(lists, rare), rare, budget, id -> {
+                int at = this.indexOf(id, pattern);
+                return at < 0 ? -1 : this.score(id, pattern.length, at);
+            }, best, limit);
+
+            int maxEdits = pattern.length <= MAX_FUZZY_BYTES ? maxEdits(query) : 0;
+            // each edit breaks at most three trigrams, a name with fewer left in common is too far off
+            int mustShare = trigrams.length - 3 * maxEdits;
+            if (fuzzy && maxEdits > 0 && mustShare > 0 && budget > 0) {
+                // leaving out the commonest lists, a name still has to be on mustShare minus that many
+                // of the others; as many are left out as still leaves a name on two, or on one
+                int used = Math.min(trigrams.length, trigrams.length - mustShare + 2);
+                int onLists = mustShare - (trigrams.length - used);
+                long[] patternMasks = patternMasks(pattern);
+
+                this.collect(Arrays.copyOf(lists, used), onLists, budget, id -> {
+                    if (this.indexOf(id, pattern) >= 0) {
+                        // found by the exact search already
+                        return -1;
+                    }
+                    int edits = this.editsToSubstring(id, patternMasks, pattern.length);
+                    return edits <= maxEdits ? 3 + edits : -1;
+                }, best, limit);
+            }
+
+            List<Hit> hits = new ArrayList<>(best.size());
+            for (Candidate candidate : best) {
+                hits.add(new Hit(names[candidate.id()], candidate.score()));
+            }
+            hits.sort(RANKING);
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nextId - removed;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private interface Scorer {
+        // -1 for names that do not match
+        int score(int id);
+    }
+
+    // kept by ID until the end of a search, so only the winners cost a look at their String
+    private record Candidate(int id, int score) {
+    }
+
+    // RANKING over the UTF-8 copies, the same order for names in the basic multilingual plane
+    private Comparator<Candidate> ranking() {
+        return Comparator.comparingInt(Candidate::score)
+                .thenComparingInt(candidate -> this.length(candidate.id()))
+                .thenComparing((a, b) -> Arrays.compareUnsigned(text, starts[a.id()], starts[a.id() + 1],
+                        text, starts[b.id()], starts[b.id() + 1]));
+    }
+
+    /**
+     * Walks the IDs on at least {@code onLists} of the lists in ascending order, scoring each and
+     * keeping the best in the bounded heap, until {@code budget} of them were looked at; when that
+     * is all of the lists, every ID on the first one counts.
+     *
+     * @return how many were looked at
+     */
+    private int collect(Postings[] lists, int onLists, int budget, Scorer scorer, PriorityQueue<Candidate> best, int limit) {
+        int[] positions = new int[lists.length];
+        int[] current = new int[lists.length];
+        for (int i = 0; i < lists.length; i++) {
+            current[i] = next(lists[i], positions, i, -1);
+        }
+
+        int looked = 0;
+        while (looked < budget) {
+            int id;
+            if (onLists == lists.length) {
+                // on all of them: the first list leads, the others catch up to it
+                id = current[0];
+                boolean onAll = true;
+                for (int i = 1; i < lists.length && id != Integer.MAX_VALUE; i++) {
+                    while (current[i] < id) {
+                        current[i] = next(lists[i], positions, i, current[i]);
+                    }
+                    onAll &= current[i] == id;
+                }
+                if (id == Integer.MAX_VALUE) {
+                    break;
+                }
+                current[0] = next(lists[0], positions, 0, id);
+                if (!onAll) {
+                    // still charged, or a common query would walk its whole leading list
+                    looked++;
+                    continue;
+                }
+            } else {
+                id = Integer.MAX_VALUE;
+                for (int value : current) {
+                    id = Math.min(id, value);
+                }
+                if (id == Integer.MAX_VALUE) {
+                    break;
+                }
+
+                int count = 0;
+                for (int i = 0; i < lists.length; i++) {
+                    if (current[i] == id) {
+                        count++;
+                        current[i] = next(lists[i], positions, i, id);
+                    }
+                }
+                if (count < onLists) {
+                    continue;
+                }
+            }
+
+            looked++;
+            this.offer(id, scorer.score(id), best, limit);
+        }
+        return looked;
+    }
+
+    // the heap is ordered worst first
+    private void offer(int id, int score, PriorityQueue<Candidate> best, int limit) {
+        if (score < 0) {
+            return;
+        }
+
+        Candidate candidate = new Candidate(id, score);
+        if (best.size() < limit || best.comparator().compare(candidate, best.peek()) > 0) {
+            best.add(candidate);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+    }
+
+    // decodes the ID after previous from list i, or returns Integer.MAX_VALUE at its end
+    private static int next(Postings list, int[] positions, int i, int previous) {
+        int position = positions[i];
+        if (position >= list.length) {
+            return Integer.MAX_VALUE;
+        }
+
+        byte[] bytes = list.bytes;
+        int delta = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[position++];
+            delta |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        positions[i] = position;
+        return previous + delta;
+    }
+
+    private void append(String name) {
+        if (nextId == names.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+            starts = Arrays.copyOf(starts, names.length + 1);
+        }
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        int start = starts[nextId];
+        if (start + utf8.length > text.length) {
+            text = Arrays.copyOf(text, Math.max(text.length * 2, start + utf8.length));
+        }
+        System.arraycopy(utf8, 0, text, start, utf8.length);
+
+        int id = nextId++;
+        names[id] = name;
+        starts[nextId] = start + utf8.length;
+
+        for (long trigram : trigrams(name)) {
+            postings.computeIfAbsent(trigram, key -> new Postings()).add(id);
+        }
+    }
+
+    private int length(int id) {
+        return starts[id + 1] - starts[id];
+    }
+
+    // where the pattern starts in name id, in bytes, or -1
+    private int indexOf(int id, byte[] pattern) {
+        int start = starts[id];
+        int last = starts[id + 1] - pattern.length;
+        byte first = pattern[0];
+
+        outer:
+        for (int i = start; i <= last; i++) {
+            if (text[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < pattern.length; j++) {
+                if (text[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i - start;
+        }
+        return -1;
+    }
+
+    private int score(int id, int patternLength, int at) {
+        if (at == 0) {
+            return this.length(id) == patternLength ? 0 : 1;
+        }
+        // a byte of a multi-byte character counts as a letter
+        byte before = text[starts[id] + at - 1];
+        return before < 0 || Character.isLetterOrDigit(before) ? 3 : 2;
+    }
+
+    static int score(String name, String query, int at) {
+        if (at == 0) {
+            return name.length() == query.length() ? 0 : 1;
+        }
+        return Character.isLetterOrDigit(name.charAt(at - 1)) ? 3 : 2;
+    }
+
+    // typos allowed for a query of this length: none for short ones, which would match almost anything
+    static int maxEdits(String query) {
+        return query.length() <= 4 ? 0 : query.length() <= 8 ? 1 : 2;
+    }
+
+    // the distinct trigrams of a string, each packed into a long
+    static long[] trigrams(String s) {
+        if (s.length() < 3) {
+            return new long[0];
+        }
+
+        long[] trigrams = new long[s.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = (long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2);
+        }
+        return Arrays.stream(trigrams).distinct().toArray();
+    }
+
+    // for every byte value the positions in the pattern holding it, as bits
+    private static long[] patternMasks(byte[] pattern) {
+        long[] masks = new long[256];
+        for (int i = 0; i < pattern.length; i++) {
+            masks[pattern[i] & 0xFF] |= 1L << i;
+        }
+        return masks;
+    }
+
+    /**
+     * Fewest insertions, deletions, substitutions or swaps of two neighbouring bytes that turn the
+     * pattern into some substring of name id. Computes a column of the distance table per byte of
+     * the name as a few operations on bit vectors (Myers, with Hyyrö's extension for swaps).
+     */
+    private int editsToSubstring(int id, long[] patternMasks, int patternLength) {
+        long last = 1L << (patternLength - 1);
+        long vp = -1L;
+        long vn = 0;
+        long d0 = 0;
+        long previousMatch = 0;
+        int distance = patternLength;
+        int best = patternLength;
+
+        for (int i = starts[id], end = starts[id + 1]; i < end; i++) {
+            long match = patternMasks[text[i] & 0xFF];
+            d0 = ((~d0 & match) << 1 & previousMatch) | (((match & vp) + vp) ^ vp) | match | vn;
+            long hp = vn | ~(d0 | vp);
+            long hn = vp & d0;
+            if ((hp & last) != 0) {
+                distance++;
+            } else if ((hn & last) != 0) {
+                distance--;
+            }
+            // not shifting in a one lets a match start anywhere in the name
+            hp <<= 1;
+            hn <<= 1;
+            vp = hn | ~(d0 | hp);
+            vn = hp & d0;
+            previousMatch = match;
+            best = Math.min(best, distance);
+        }
+        return best;
+    }
+
+    // the IDs of the names containing one trigram, ascending, as varints of the gap to the previous ID
+    private static final class Postings {
+        static final Postings EMPTY = new Postings();
+
+        private byte[] bytes = new byte[4];
+        private int length;
+        private int count;
+        private int last = -1;
+
+        void add(int id) {
+            if (id == last) {
+                return;
+            }
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+            }
+
+            int delta = id - last;
+            while ((delta & ~0x7F) != 0) {
+                bytes[length++] = (byte) (delta & 0x7F | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+            last = id;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.vamsik;
+
+/**
+ * A file found by SEARCH, with the score it was ranked by, see {@link SearchIndex.Hit#score()}.
+ */
+public record SearchResult(CatalogItem item, int score) {
+}
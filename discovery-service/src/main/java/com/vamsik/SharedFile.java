@@ -0,0 +1,11 @@
+package com.vamsik;
+
+/**
+ * A file as a peer registered it: the original name, its size in bytes, -1 when unknown, and the
+ * SHA-256 of its content in lowercase hex, "" until the peer has hashed it.
+ */
+public record SharedFile(String name, long size, String digest) {
+    public SharedFile(String name, long size) {
+        this(name, size, "");
+    }
+}
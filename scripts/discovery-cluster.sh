@@ -0,0 +1,30 @@
+#!/usr/bin/env bash
+# Starts a local cluster of discovery nodes for trying out sharding and failover.
+#
+#   scripts/discovery-cluster.sh [nodes] [first-port]
+#
+# Build first with "mvn compile". Peers and clients join the cluster with the printed
+# -Dapp.discoveryNodes option; kill a single node with "kill <pid>" to see lookups fail over to
+# its followers. Ctrl-C stops all nodes.
+set -euo pipefail
+
+nodes=${1:-3}
+first_port=${2:-3969}
+root=$(cd "$(dirname "$0")/.." && pwd)
+classpath="$root/discovery-service/target/classes:$root/common/target/classes"
+pids=()
+list=""
+
+trap 'kill "${pids[@]}" 2>/dev/null' EXIT
+
+for ((i = 0; i < nodes; i++)); do
+    port=$((first_port + i))
+    java -cp "$classpath" com.vamsik.DiscoveryService "$port" > "discovery-$port.log" 2>&1 &
+    pids+=($!)
+    list="${list:+$list,}localhost:$port"
+    echo "node localhost:$port pid $! (log discovery-$port.log)"
+done
+
+echo
+echo "-Dapp.discoveryNodes=$list"
+wait
@@ -0,0 +1,44 @@
+#!/usr/bin/env bash
+# Builds a trimmed runtime image for headless seed nodes: only the modules the daemon needs, no
+# JavaFX, plus an AppCDS archive of the classes loaded while starting up.
+#
+#   scripts/seed-image.sh [output-dir]
+#
+# Build first with "mvn package", and run with JAVA_HOME pointing at a JDK 21 that has jmods.
+# The image is started with
+#
+#   <output-dir>/bin/seed <port> <discovery-host> <discovery-port> <folder>
+#
+# SEED_HEAP sets the maximum heap (64m by default), JAVA_OPTS adds options such as
+# -Dapp.controlPort=8200.
+set -euo pipefail
+
+root=$(cd "$(dirname "$0")/.." && pwd)
+image=${1:-$root/torrent-service/target/seed-image}
+jdk=${JAVA_HOME:?JAVA_HOME must point at a JDK}
+modules="$root/common/target/vamsi-common-0.1.jar:$root/torrent-service/target/vamsi-torrent-0.1.jar"
+
+rm -rf "$image"
+"$jdk/bin/jlink" \
+    --module-path "$jdk/jmods:$modules" \
+    --add-modules torrent.service \
+    --strip-debug --no-header-files --no-man-pages --compress=zip-6 \
+    --generate-cds-archive \
+    --output "$image"
+
+# training run: start a daemon against an unused discovery port and quit once it is up, the
+# classes it loaded go into the archive the wrapper below maps at every start
+training=$(mktemp -d)
+trap 'rm -rf "$training"' EXIT
+(sleep 3; echo quit) | "$image/bin/java" -XX:ArchiveClassesAtExit="$image/lib/seed.jsa" \
+    -m torrent.service/com.vamsik.daemon.SeedDaemon 0 127.0.0.1 1 "$training/shared" > /dev/null 2>&1
+
+cat > "$image/bin/seed" <<'EOF'
+#!/bin/sh
+dir=$(dirname "$0")
+exec "$dir/java" -XX:SharedArchiveFile="$dir/../lib/seed.jsa" -XX:+UseSerialGC -Xmx"${SEED_HEAP:-64m}" \
+    $JAVA_OPTS -m torrent.service/com.vamsik.daemon.SeedDaemon "$@"
+EOF
+chmod +x "$image/bin/seed"
+
+echo "Seed image in $image ($(du -sh "$image" | cut -f1)), start it with $image/bin/seed"
@@ -1,182 +1,633 @@
 package com.vamsik.core;
 
-import javafx.concurrent.Task;
+import com.vamsik.metrics.Counter;
+import com.vamsik.metrics.LatencyHistogram;
+import com.vamsik.metrics.Metrics;
+import com.vamsik.utils.Config;
 import com.vamsik.utils.FileUtils;
+import com.vamsik.protocol.ContentKey;
+import com.vamsik.protocol.FramedClient;
+import com.vamsik.protocol.Opcode;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
-public class ClientHandler {
+public class ClientHandler implements Closeable {
     private static final Logger logger = Logger.getLogger(ClientHandler.class.getName());
+    // how many catalog entries to ask for per LISTPAGE request
+    private static final int PAGE_SIZE = 200;
+    // how many file names go into one SOURCES request, the discovery service accepts up to 1000
+    private static final int QUERY_BATCH = 1000;
+    private static final LatencyHistogram LOOKUP_LATENCY = Metrics.histogram("client_lookup_seconds", "Time for one discovery node to answer a lookup");
+    private static final Counter LOOKUP_FAILURES = Metrics.counter("client_lookup_failures_total", "Lookups a discovery node failed to answer");
 
     // to remember peer info from QUERY
-    private String lastKnownHost;
-    private int lastKnownPort;
-    private String lastKnownFile;
+    private volatile List<InetSocketAddress> lastKnownPeers = List.of();
+    private volatile String lastKnownFile;
     private final String sharedDirectory;
 
     private final String discoveryHost;
     private final int discoveryPort;
+    // connections to the discovery service and to peers, kept open between tasks
+    private final ConnectionPool pool = new ConnectionPool(Config.PEER_TIMEOUT_MILLIS, Config.POOL_MAX_IDLE,
+            Config.POOL_IDLE_TIMEOUT_MILLIS, Config.POOL_HEALTH_CHECK_MILLIS);
+    // made on first use, the constructor must not hand this::queryPeers to another object
+    private DownloadManager downloads;
+    private final ReentrantLock downloadsLock = new ReentrantLock();
+    // the discovery nodes, a single one unless app.discoveryNodes lists several
+    private final DiscoveryCluster cluster;
+    // multiplexed connections for lookups, per node, opened on the first lookup; nodes that only
+    // speak the readUTF protocol are remembered so they are not asked to upgrade again
+    private final Map<InetSocketAddress, FramedClient> framedDiscovery = new HashMap<>();
+    private final Set<InetSocketAddress> legacyDiscovery = new HashSet<>();
+    // a lock rather than synchronized, lookups run on virtual threads
+    private final ReentrantLock framedLock = new ReentrantLock();
 
     public ClientHandler(String dirName) {
         this.sharedDirectory = dirName;
         this.discoveryHost = "localhost";
         this.discoveryPort = 3969;
+        this.cluster = DiscoveryCluster.of(Config.DISCOVERY_NODES, discoveryHost, discoveryPort, Config.DISCOVERY_REPLICAS);
     }
 
     public ClientHandler(String discoveryHost, int discoveryPort, String dirName) {
         this.discoveryHost = discoveryHost;
         this.discoveryPort = discoveryPort;
         this.sharedDirectory = dirName;
+        this.cluster = DiscoveryCluster.of(Config.DISCOVERY_NODES, discoveryHost, discoveryPort, Config.DISCOVERY_REPLICAS);
     }
 
-    private String getDiscoveryHost() {
-        return discoveryHost;
+    /**
+     * The download queue, started by the caller once it has set a listener.
+     */
+    public DownloadManager getDownloads() {
+        downloadsLock.lock();
+        try {
+            if (downloads == null) {
+                downloads = new DownloadManager(this::queryPeers, pool, sharedDirectory,
+                        Config.MAX_ACTIVE_DOWNLOADS, Config.MAX_DOWNLOADS_PER_PEER, Config.DISCOVERY_RETRY_MILLIS);
+            }
+            return downloads;
+        } finally {
+            downloadsLock.unlock();
+        }
+    }
+
+    /**
+     * Fetches one page of the catalog from the discovery service. The filter is applied there:
+     * a trailing '*' matches names starting with the text before it, anything else matches names
+     * containing it. Pass the cursor of the previous page to continue, or "" to start over. With
+     * several discovery nodes the page is merged from all of them. Blocks until the nodes
+     * answered, callers on a UI thread run it in the background.
+     */
+    public FilePage listFiles(String filter, String cursor) {
+        String trimmed = filter == null ? "" : filter.trim();
+        String mode = trimmed.endsWith("*") ? "PREFIX" : "CONTAINS";
+        String text = trimmed.endsWith("*") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+
+        List<NodePage> pages = new ArrayList<>();
+
+        for (InetSocketAddress node : cluster.getNodes()) {
+            try {
+                pages.add(fetchPage(node, cursor, mode, text));
+            } catch (EOFException | SocketException e) {
+                logger.info("Discovery service " + node + " is not running.");
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (pages.isEmpty()) {
+            logger.info("Discovery service is not running. Please start it first.");
+            return new FilePage(List.of(), "");
+        }
+
+        FilePage page = pages.size() == 1 ? pages.get(0).page() : mergePages(pages);
+        logger.info("Discovery Service Response: " + page.getFiles().size() + " files" + (page.hasMore() ? ", more available" : ""));
+        return page;
+    }
+
+    private record NodePage(FilePage page, List<String> keys) {
+    }
+
+    /**
+     * Asks the discovery service for the {@code limit} files best matching the query: a trailing
+     * '*' finds names starting with the text before it, anything else names containing it, or
+     * something close to it when it has a typo. Best matches come first. Blocks until the nodes
+     * answered, like {@link #listFiles}.
+     */
+    public List<RemoteFile> searchFiles(String query, int limit) {
+        String trimmed = query == null ? "" : query.trim();
+        String mode = trimmed.endsWith("*") ? "PREFIX" : "FUZZY";
+        String text = trimmed.endsWith("*") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+
+        // every node searches its own part of the catalog, a file kept by several nodes comes once
+        Map<String, SearchHit> merged = new HashMap<>();
+        for (InetSocketAddress node : cluster.getNodes()) {
+            try {
+                for (SearchHit hit : this.search(node, mode, text, limit)) {
+                    merged.merge(catalogKey(hit.file().getName()), hit,
+                            (a, b) -> a.file().getSeeders() >= b.file().getSeeders() ? a : b);
+                }
+            } catch (EOFException | SocketException e) {
+                logger.info("Discovery service " + node + " is not running.");
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        List<RemoteFile> files = merged.values().stream()
+                .sorted(Comparator.comparingInt(SearchHit::score)
+                        .thenComparingInt(hit -> hit.file().getName().length())
+                        .thenComparing(hit -> catalogKey(hit.file().getName())))
+                .limit(limit)
+                .map(SearchHit::file)
+                .toList();
+        logger.info("Discovery Service Response: " + files.size() + " files matching " + trimmed);
+        return files;
     }
 
-    private int getDiscoveryPort() {
-        return discoveryPort;
+    private record SearchHit(RemoteFile file, int score) {
     }
 
-    public Task<List<String>> getAllFiles() {
-        return new Task<>() {
-            @Override
-            protected List<String> call() {
-                try (Socket discoverySocket = new Socket(getDiscoveryHost(), getDiscoveryPort());
-                     DataOutputStream dos = new DataOutputStream(discoverySocket.getOutputStream());
-                     DataInputStream dis = new DataInputStream(discoverySocket.getInputStream())) {
+    private List<SearchHit> search(InetSocketAddress node, String mode, String text, int limit) throws IOException {
+        PeerConnection discovery = pool.borrow(node);
+
+        try {
+            DataOutputStream dos = discovery.getOutput();
+            DataInputStream dis = discovery.getInput();
+
+            dos.writeUTF("SEARCH");
+            dos.writeUTF(mode);
+            dos.writeUTF(text);
+            dos.writeInt(limit);
+            dos.flush();
 
-                    logger.info("Connected to Discovery Service");
+            int resultSize = dis.readInt();
+            List<SearchHit> hits = new ArrayList<>(resultSize);
+            for (int i = 0; i < resultSize; i++) {
+                RemoteFile file = new RemoteFile(dis.readUTF(), dis.readLong(), dis.readInt());
+                hits.add(new SearchHit(file, dis.readInt()));
+            }
+
+            pool.release(discovery);
+            return hits;
+        } catch (IOException | RuntimeException e) {
+            pool.invalidate(discovery);
+            throw e;
+        }
+    }
 
-                    dos.writeUTF("LIST");
-                    dos.flush();
+    private NodePage fetchPage(InetSocketAddress node, String cursor, String mode, String text) throws IOException {
+        PeerConnection discovery = pool.borrow(node);
 
-                    int resultSize = dis.readInt();
-                    logger.info("Discovery Service Response: " + resultSize + " files found.");
+        try {
+            DataOutputStream dos = discovery.getOutput();
+            DataInputStream dis = discovery.getInput();
 
-                    List<String> fileList = new ArrayList<>();
+            dos.writeUTF("LISTPAGE");
+            dos.writeUTF(cursor);
+            dos.writeInt(PAGE_SIZE);
+            dos.writeUTF(mode);
+            dos.writeUTF(text);
+            dos.flush();
 
-                    for (int i = 0; i < resultSize; i++) {
-                        String[] fileNames = dis.readUTF().split(",");
-                        for (String fileName : fileNames) {
-                            fileName = fileName.trim();
-                            if (!fileName.isEmpty()) {
-                                fileList.add(fileName);
-                                logger.info("File: " + fileName);
-                            }
-                        }
-                    }
+            int resultSize = dis.readInt();
+            List<RemoteFile> files = new ArrayList<>(resultSize);
+            List<String> keys = new ArrayList<>(resultSize);
+
+            for (int i = 0; i < resultSize; i++) {
+                RemoteFile file = new RemoteFile(dis.readUTF(), dis.readLong(), dis.readInt());
+                files.add(file);
+                keys.add(catalogKey(file.getName()));
+            }
+
+            String nextCursor = dis.readUTF();
+            pool.release(discovery);
+
+            return new NodePage(new FilePage(files, nextCursor), keys);
+        } catch (IOException | RuntimeException e) {
+            pool.invalidate(discovery);
+            throw e;
+        }
+    }
 
-                    return fileList;
-                } catch (EOFException | SocketException e) {
-                    logger.info("Discovery service is not running. Please start it first.");
-                    return List.of();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return List.of();
+    /**
+     * Merges the pages the nodes returned for the same cursor. Every node lists its files in key
+     * order, so the merged page is only complete up to the smallest cursor a node stopped at;
+     * files past it are dropped here and come again with the next page. A file kept by its owner
+     * and a follower appears once.
+     */
+    private static FilePage mergePages(List<NodePage> pages) {
+        String bound = null;
+        for (NodePage page : pages) {
+            String next = page.page().getNextCursor();
+            if (!next.isEmpty() && (bound == null || next.compareTo(bound) < 0)) {
+                bound = next;
+            }
+        }
+
+        TreeMap<String, RemoteFile> merged = new TreeMap<>();
+        for (NodePage page : pages) {
+            for (int i = 0; i < page.keys().size(); i++) {
+                String key = page.keys().get(i);
+                RemoteFile file = page.page().getFiles().get(i);
+
+                if (bound == null || key.compareTo(bound) <= 0) {
+                    // nodes that missed a peer's registration while they were down count fewer seeders
+                    merged.merge(key, file, (a, b) -> a.getSeeders() >= b.getSeeders() ? a : b);
                 }
             }
-        };
+        }
+
+        List<RemoteFile> files = new ArrayList<>(Math.min(merged.size(), PAGE_SIZE));
+        String last = null;
+        for (Map.Entry<String, RemoteFile> entry : merged.entrySet()) {
+            if (files.size() == PAGE_SIZE) {
+                return new FilePage(files, last);
+            }
+            files.add(entry.getValue());
+            last = entry.getKey();
+        }
+
+        return new FilePage(files, bound == null ? "" : bound);
     }
 
-    public Task<String> checkFileExist(String fileName) {
-        return new Task<>() {
-            @Override
-            protected String call() {
-                try (Socket discoverySocket = new Socket(getDiscoveryHost(), getDiscoveryPort());
-                     DataOutputStream dos = new DataOutputStream(discoverySocket.getOutputStream());
-                     DataInputStream dis = new DataInputStream(discoverySocket.getInputStream())) {
+    // the discovery service orders and matches the catalog by this key
+    private static String catalogKey(String fileName) {
+        return fileName.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * QUERY for one file, remembering its peers for {@link #downloadFile}.
+     *
+     * @return FOUND, NOTFOUND or ERROR
+     */
+    public String checkFileExist(String fileName) {
+        // the owner of the file first, its followers when the owner is down
+        for (InetSocketAddress node : cluster.nodesFor(fileName)) {
+            try {
+                List<InetSocketAddress> peers = new ArrayList<>();
+                String response = query(node, fileName, peers);
+                logger.info("Discovery Service Response: " + response);
+
+                lastKnownPeers = peers;
+                lastKnownFile = fileName;
+
+                return response;
+            } catch (IOException e) {
+                logger.info("Discovery service " + node + " is not reachable: " + e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                return "ERROR";
+            }
+        }
+
+        logger.info("Discovery service is not running. Please start it first.");
+        return "NOTFOUND";
+    }
 
-                    logger.info("Connected to Discovery Service");
+    private String query(InetSocketAddress node, String fileName, List<InetSocketAddress> peers) throws IOException {
+        PeerConnection discovery = pool.borrow(node);
 
-                    dos.writeUTF("QUERY");
-                    dos.writeUTF(fileName);
-                    dos.flush();
+        try {
+            DataOutputStream dos = discovery.getOutput();
+            DataInputStream dis = discovery.getInput();
 
-                    String response = dis.readUTF();
-                    logger.info("Discovery Service Response: " + response);
-                    int hostPorts = dis.readInt();
+            dos.writeUTF("QUERY");
+            dos.writeUTF(fileName);
+            dos.flush();
 
-                    for (int i = 0; i < hostPorts; i++) {
-                        String hostPort = dis.readUTF();
-                        String[] parts = hostPort.split(":");
-                        lastKnownHost = parts[0];
-                        lastKnownPort = Integer.parseInt(parts[1]);
-                    }
+            String response = dis.readUTF();
 
-                    lastKnownFile = fileName;
+            if (response.equals("FOUND")) {
+                int hostPorts = dis.readInt();
 
-                    return response;
-                } catch (EOFException | SocketException e) {
-                    logger.info("Discovery service is not running. Please start it first.");
-                    return "NOTFOUND";
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return "ERROR";
+                for (int i = 0; i < hostPorts; i++) {
+                    peers.add(parsePeer(dis.readUTF()));
                 }
             }
-        };
+
+            pool.release(discovery);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            pool.invalidate(discovery);
+            throw e;
+        }
     }
 
-    public Task<Boolean> downloadFile(String fileName) {
-        return new Task<>() {
-            @Override
-            protected Boolean call() throws Exception {
-                if (lastKnownHost == null || lastKnownFile == null) {
-                    logger.info("No peer information available. Please use QUERY first.");
-                    return false;
+    /**
+     * Looks up the sources of many files at once with SOURCES, one request per
+     * {@value #QUERY_BATCH} names and discovery node. Each name goes to the node owning it, and to
+     * the next follower when that node can not be reached. Files nobody shares map to no peers.
+     * With several nodes, the others are asked for the peers holding the same content under
+     * names they keep.
+     */
+    public Map<String, FileSources> queryPeers(Collection<String> fileNames) throws IOException {
+        Map<String, FileSources> result = new HashMap<>();
+        Map<String, InetSocketAddress> answeredBy = new HashMap<>();
+        List<String> unresolved = new ArrayList<>(fileNames);
+        IOException failure = null;
+
+        for (int replica = 0; !unresolved.isEmpty(); replica++) {
+            Map<InetSocketAddress, List<String>> byNode = new LinkedHashMap<>();
+            for (String name : unresolved) {
+                List<InetSocketAddress> nodes = cluster.nodesFor(name);
+                if (replica < nodes.size()) {
+                    byNode.computeIfAbsent(nodes.get(replica), node -> new ArrayList<>()).add(name);
+                }
+            }
+
+            if (byNode.isEmpty()) {
+                // every node keeping these files failed, or there was no node to ask at all
+                throw failure != null ? failure : new IOException("No discovery node to ask for " + unresolved);
+            }
+
+            unresolved = new ArrayList<>();
+            for (Map.Entry<InetSocketAddress, List<String>> group : byNode.entrySet()) {
+                long start = System.nanoTime();
+                try {
+                    result.putAll(this.queryNode(group.getKey(), group.getValue()));
+                    group.getValue().forEach(name -> answeredBy.put(name, group.getKey()));
+                    LOOKUP_LATENCY.recordSince(start);
+                } catch (IOException e) {
+                    LOOKUP_FAILURES.increment();
+                    logger.info("Discovery service " + group.getKey() + " failed: " + e.getMessage());
+                    failure = e;
+                    unresolved.addAll(group.getValue());
                 }
+            }
+        }
 
-                try (Socket peerSocket = new Socket(lastKnownHost, lastKnownPort);
-                     DataOutputStream dos = new DataOutputStream(peerSocket.getOutputStream());
-                     DataInputStream dis = new DataInputStream(peerSocket.getInputStream())
-                ) {
-                    dos.writeUTF("DOYOUHAVE");
-                    dos.writeUTF(fileName);
-                    dos.flush();
+        if (cluster.getNodes().size() > 1) {
+            this.addContentHolders(result, answeredBy);
+        }
+        return result;
+    }
+
+    // a node only knows the names it keeps, the same bytes may be registered under names another keeps
+    private void addContentHolders(Map<String, FileSources> result, Map<String, InetSocketAddress> answeredBy) {
+        Map<InetSocketAddress, Set<String>> keysByNode = new LinkedHashMap<>();
+        for (Map.Entry<String, FileSources> file : result.entrySet()) {
+            if (file.getValue().digest() == null) {
+                continue;
+            }
+            for (InetSocketAddress node : cluster.getNodes()) {
+                if (!node.equals(answeredBy.get(file.getKey()))) {
+                    keysByNode.computeIfAbsent(node, key -> new LinkedHashSet<>()).add(ContentKey.of(file.getValue().digest()));
+                }
+            }
+        }
+
+        for (Map.Entry<InetSocketAddress, Set<String>> group : keysByNode.entrySet()) {
+            Map<String, FileSources> holders;
+            try {
+                holders = this.queryNode(group.getKey(), new ArrayList<>(group.getValue()));
+            } catch (IOException e) {
+                // the owners' answers are enough to download from
+                logger.info("Discovery service " + group.getKey() + " failed: " + e.getMessage());
+                continue;
+            }
 
-                    String response = dis.readUTF();
+            result.replaceAll((name, sources) -> {
+                FileSources more = sources.digest() != null ? holders.get(ContentKey.of(sources.digest())) : null;
+                return more != null ? sources.with(more.peers()) : sources;
+            });
+        }
+    }
 
-                    boolean hasFound = response.equalsIgnoreCase("YES");
+    // over a framed connection all batches are sent at once and answered concurrently,
+    // otherwise they take one round trip each
+    private Map<String, FileSources> queryNode(InetSocketAddress node, List<String> names) throws IOException {
+        FramedClient framed = this.getFramedDiscovery(node);
+
+        if (framed != null) {
+            try {
+                return this.queryPeersFramed(framed, names);
+            } catch (IOException e) {
+                logger.info("Framed lookup failed, falling back to one request at a time: " + e.getMessage());
+                this.dropFramedDiscovery(node, framed);
+            }
+        }
 
-                    if (!hasFound) {
-                        return false;
-                    }
+        Map<String, FileSources> result = new HashMap<>();
 
-                    dos.writeUTF("DOWNLOAD");
-                    dos.writeUTF(fileName);
-                    dos.flush();
+        for (int from = 0; from < names.size(); from += QUERY_BATCH) {
+            List<String> batch = names.subList(from, Math.min(names.size(), from + QUERY_BATCH));
+            PeerConnection discovery = pool.borrow(node);
 
-                    String gotFileName = dis.readUTF();
-                    long fileSize = dis.readLong();
+            try {
+                DataOutputStream dos = discovery.getOutput();
+                DataInputStream dis = discovery.getInput();
 
-                    try (FileOutputStream fos = new FileOutputStream(FileUtils.getFullPath(sharedDirectory, "received_" + gotFileName))) {
-                        byte[] buffer = new byte[1024]; // Smaller buffer for more frequent updates
-                        int bytesRead;
+                dos.writeUTF("SOURCES");
+                dos.writeInt(batch.size());
+                for (String name : batch) {
+                    dos.writeUTF(name);
+                }
+                dos.flush();
 
-                        logger.info("Downloading file: " + gotFileName + " of size: " + fileSize + " bytes");
+                readSources(dis, batch, result);
+            } catch (IOException | RuntimeException e) {
+                pool.invalidate(discovery);
+                throw e;
+            }
 
-                        while ((bytesRead = dis.read(buffer)) != -1) {
-                            fos.write(buffer, 0, bytesRead);
-                        }
+            pool.release(discovery);
+        }
 
-                        fos.flush(); // Ensure all data is written to the file
-                    }
+        logger.info("Looked up peers of " + names.size() + " files");
+        return result;
+    }
 
-                    logger.info("File downloaded successfully: received_" + fileName);
+    private Map<String, FileSources> queryPeersFramed(FramedClient framed, List<String> names) throws IOException {
+        Map<List<String>, CompletableFuture<DataInputStream>> replies = new LinkedHashMap<>();
 
-                    return true;
-                } catch (EOFException | SocketException e) {
-                    logger.info("Peer is not available. Please use QUERY to find another peer.");
-                    return false;
-                } catch (Exception e) {
-                    return false;
+        for (int from = 0; from < names.size(); from += QUERY_BATCH) {
+            List<String> batch = names.subList(from, Math.min(names.size(), from + QUERY_BATCH));
+            replies.put(batch, framed.request(Opcode.SOURCES, dos -> {
+                dos.writeInt(batch.size());
+                for (String name : batch) {
+                    dos.writeUTF(name);
                 }
+            }));
+        }
+
+        Map<String, FileSources> result = new HashMap<>();
+
+        for (Map.Entry<List<String>, CompletableFuture<DataInputStream>> reply : replies.entrySet()) {
+            readSources(awaitReply(reply.getValue()), reply.getKey(), result);
+        }
+
+        logger.info("Looked up peers of " + names.size() + " files in " + replies.size() + " concurrent requests");
+        return result;
+    }
+
+    // the SOURCES reply: per name its digest, "" when unknown, and its peers
+    private static void readSources(DataInputStream dis, List<String> batch, Map<String, FileSources> result) throws IOException {
+        int count = dis.readInt();
+        for (int i = 0; i < count; i++) {
+            String digest = dis.readUTF();
+            int hostPorts = dis.readInt();
+            List<InetSocketAddress> peers = new ArrayList<>(hostPorts);
+
+            for (int j = 0; j < hostPorts; j++) {
+                peers.add(parsePeer(dis.readUTF()));
+            }
+            result.put(batch.get(i), new FileSources(digest.isEmpty() ? null : digest, peers));
+        }
+    }
+
+    private static DataInputStream awaitReply(CompletableFuture<DataInputStream> reply) throws IOException {
+        try {
+            return reply.get(Config.PEER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("No reply from the discovery service within " + Config.PEER_TIMEOUT_MILLIS + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the discovery service");
+        }
+    }
+
+    // connects and upgrades on first use; a node that does not know frames is not asked again
+    private FramedClient getFramedDiscovery(InetSocketAddress node) {
+        framedLock.lock();
+        try {
+            if (legacyDiscovery.contains(node)) {
+                return null;
+            }
+
+            FramedClient framed = framedDiscovery.get(node);
+            if (framed != null && !framed.isClosed()) {
+                return framed;
+            }
+
+            Socket socket = new Socket();
+            try {
+                socket.connect(node, Config.PEER_TIMEOUT_MILLIS);
+                socket.setSoTimeout(Config.PEER_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                framed = FramedClient.upgrade(socket);
+            } catch (IOException e) {
+                // unreachable for now, the pooled path reports the error and the next lookup retries
+                closeQuietly(socket);
+                return null;
+            }
+
+            if (framed == null) {
+                closeQuietly(socket);
+                legacyDiscovery.add(node);
+                logger.info("Discovery service " + node + " does not support framed requests");
+                return null;
+            }
+
+            framedDiscovery.put(node, framed);
+            return framed;
+        } finally {
+            framedLock.unlock();
+        }
+    }
+
+    private void dropFramedDiscovery(InetSocketAddress node, FramedClient framed) {
+        framed.close();
+        framedLock.lock();
+        try {
+            framedDiscovery.remove(node, framed);
+        } finally {
+            framedLock.unlock();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+    // discovery lists peers as host:port:cpu
+    private static InetSocketAddress parsePeer(String hostPort) {
+        String[] parts = hostPort.split(":");
+        return new InetSocketAddress(parts[0], Integer.parseInt(parts[1]));
+    }
+
+    /**
+     * Downloads the file last looked up with {@link #checkFileExist} from its peers, reporting
+     * bytes done and the file size as pieces arrive.
+     */
+    public boolean downloadFile(String fileName, BiConsumer<Long, Long> progressListener) {
+        List<InetSocketAddress> peers = lastKnownPeers;
+
+        if (peers.isEmpty() || !fileName.equals(lastKnownFile)) {
+            logger.info("No peer information available. Please use QUERY first.");
+            return false;
+        }
+
+        try {
+            Path targetPath = FileUtils.getDownloadPath(sharedDirectory, fileName);
+            SwarmDownloader downloader = new SwarmDownloader(fileName, peers, targetPath, pool, progressListener);
+
+            if (!downloader.download()) {
+                return false;
+            }
+
+            logger.info("File downloaded successfully: " + targetPath);
+
+            return true;
+        } catch (EOFException | SocketException e) {
+            logger.info("Peer is not available. Please use QUERY to find another peer.");
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves the download queue and closes the pooled connections, call once the application
+     * shuts down.
+     */
+    @Override
+    public void close() {
+        downloadsLock.lock();
+        try {
+            if (downloads != null) {
+                downloads.close();
             }
-        };
+        } finally {
+            downloadsLock.unlock();
+        }
+        pool.close();
+
+        framedLock.lock();
+        try {
+            framedDiscovery.values().forEach(FramedClient::close);
+        } finally {
+            framedLock.unlock();
+        }
     }
 }
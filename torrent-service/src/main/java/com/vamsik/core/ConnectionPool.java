@@ -0,0 +1,141 @@
+package com.vamsik.core;
+
+import com.vamsik.metrics.Counter;
+import com.vamsik.metrics.LatencyHistogram;
+import com.vamsik.metrics.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Keeps idle connections to peers and to the discovery service open between tasks, keyed by
+ * address. A connection that sat idle for a while is pinged before it is handed out again, and
+ * connections nobody asked for within the idle timeout are closed by a background sweep.
+ * Borrowed connections belong to the caller until they are released (healthy, back to the pool)
+ * or invalidated (after an error, closed).
+ */
+public class ConnectionPool implements Closeable {
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+    private static final Counter REUSED = Metrics.counter("pool_borrows_total", "Connections handed out by the pool", "source", "idle");
+    private static final Counter OPENED = Metrics.counter("pool_borrows_total", "Connections handed out by the pool", "source", "new");
+    private static final LatencyHistogram CONNECT_LATENCY = Metrics.histogram("pool_connect_seconds", "Time to open a new connection");
+
+    private final Map<InetSocketAddress, Deque<PeerConnection>> idle = new ConcurrentHashMap<>();
+    private final int connectTimeoutMillis;
+    private final int maxIdlePerAddress;
+    private final long idleTimeoutNanos;
+    private final long healthCheckAfterNanos;
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "connection-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ConnectionPool(int connectTimeoutMillis, int maxIdlePerAddress, long idleTimeoutMillis, long healthCheckAfterMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.maxIdlePerAddress = maxIdlePerAddress;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.healthCheckAfterNanos = TimeUnit.MILLISECONDS.toNanos(healthCheckAfterMillis);
+
+        long sweepMillis = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public PeerConnection borrow(InetSocketAddress address) throws IOException {
+        Deque<PeerConnection> connections = idle.get(address);
+
+        if (connections != null) {
+            PeerConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                if (this.isHealthy(connection)) {
+                    REUSED.increment();
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+
+        long start = System.nanoTime();
+        PeerConnection connection = new PeerConnection(address, connectTimeoutMillis);
+        CONNECT_LATENCY.recordSince(start);
+        OPENED.increment();
+        return connection;
+    }
+
+    /**
+     * Returns a connection whose last reply was read completely, so the next borrower starts on a
+     * clean stream.
+     */
+    public void release(PeerConnection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+
+        connection.markIdle();
+        Deque<PeerConnection> connections = idle.computeIfAbsent(connection.getAddress(), key -> new ConcurrentLinkedDeque<>());
+
+        if (connections.size() >= maxIdlePerAddress) {
+            connection.close();
+            return;
+        }
+
+        // most recently used first, so the warmest connections are reused and the rest age out
+        connections.offerFirst(connection);
+    }
+
+    public void invalidate(PeerConnection connection) {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    private boolean isHealthy(PeerConnection connection) {
+        if (connection.isClosed()) {
+            return false;
+        }
+
+        if (System.nanoTime() - connection.getIdleSince() < healthCheckAfterNanos) {
+            return true;
+        }
+
+        try {
+            connection.ping();
+            return true;
+        } catch (IOException e) {
+            logger.info("Dropping stale connection to " + connection + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+
+        for (Deque<PeerConnection> connections : idle.values()) {
+            Iterator<PeerConnection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                PeerConnection connection = iterator.next();
+                if (now - connection.getIdleSince() > idleTimeoutNanos && connections.removeFirstOccurrence(connection)) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+
+        for (Deque<PeerConnection> connections : idle.values()) {
+            PeerConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+}
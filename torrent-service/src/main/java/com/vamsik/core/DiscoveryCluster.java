@@ -0,0 +1,83 @@
+package com.vamsik.core;
+
+import com.vamsik.cluster.HashRing;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The discovery nodes and which of them are responsible for a file. File names are split over
+ * the nodes by consistent hashing; every file is registered with its owner and with the next
+ * {@code replicas - 1} nodes on the ring, so a lookup can go to a follower while the owner is
+ * down. A single node is simply the owner of everything.
+ */
+public class DiscoveryCluster {
+    private final List<InetSocketAddress> nodes;
+    private final int replicas;
+    private final HashRing<InetSocketAddress> ring;
+
+    public DiscoveryCluster(List<InetSocketAddress> nodes, int replicas) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No discovery nodes");
+        }
+
+        this.nodes = List.copyOf(nodes);
+        this.replicas = Math.max(1, Math.min(replicas, nodes.size()));
+        // placed by the host:port as configured, so every peer given the same list agrees
+        this.ring = new HashRing<>(this.nodes, node -> node.getHostString() + ":" + node.getPort());
+    }
+
+    /**
+     * Uses the comma separated host:port list when one is given, otherwise the single node.
+     */
+    public static DiscoveryCluster of(String nodeList, String host, int port, int replicas) {
+        List<InetSocketAddress> nodes = new ArrayList<>();
+
+        if (nodeList != null) {
+            for (String node : nodeList.split(",")) {
+                if (node.isBlank()) {
+                    continue;
+                }
+                int colon = node.lastIndexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Discovery node without a port: " + node);
+                }
+                nodes.add(new InetSocketAddress(node.substring(0, colon).trim(), Integer.parseInt(node.substring(colon + 1).trim())));
+            }
+        }
+
+        if (nodes.isEmpty()) {
+            nodes.add(new InetSocketAddress(host, port));
+        }
+
+        return new DiscoveryCluster(nodes, replicas);
+    }
+
+    public List<InetSocketAddress> getNodes() {
+        return nodes;
+    }
+
+    public boolean isSingleNode() {
+        return nodes.size() == 1;
+    }
+
+    /**
+     * @return the nodes that keep the file, owner first
+     */
+    public List<InetSocketAddress> nodesFor(String fileName) {
+        if (isSingleNode()) {
+            return nodes;
+        }
+        // the discovery service matches names case-insensitively, so the ring must as well
+        return ring.nodesFor(fileName.trim().toLowerCase(Locale.ROOT), replicas);
+    }
+
+    /**
+     * @return whether the node keeps the file, as owner or follower
+     */
+    public boolean isResponsible(InetSocketAddress node, String fileName) {
+        return nodesFor(fileName).contains(node);
+    }
+}
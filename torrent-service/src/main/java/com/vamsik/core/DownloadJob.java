@@ -0,0 +1,111 @@
+package com.vamsik.core;
+
+import com.vamsik.utils.FileUtils;
+
+/**
+ * One file in the {@link DownloadManager} queue. Jobs with a higher priority start first, jobs
+ * with the same priority in the order they were queued.
+ */
+public class DownloadJob implements Comparable<DownloadJob> {
+    public enum Priority {HIGH, NORMAL, LOW}
+
+    public enum State {QUEUED, DOWNLOADING, DONE, FAILED}
+
+    private final String fileName;
+    private final Priority priority;
+    private final long sequence;
+
+    // everything below is guarded by the DownloadManager lock, volatile so the UI can read it
+    private volatile State state = State.QUEUED;
+    private volatile long bytesDone;
+    private volatile long fileSize;
+    private volatile String failure;
+    private FileSources sources;
+    private int attempts;
+
+    DownloadJob(String fileName, Priority priority, long sequence) {
+        this.fileName = fileName;
+        this.priority = priority;
+        this.sequence = sequence;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return between 0 and 1, or -1 while the size of the file is not known yet
+     */
+    public double getProgress() {
+        long size = fileSize;
+        return size > 0 ? (double) bytesDone / size : -1;
+    }
+
+    /**
+     * @return why the last attempt failed, or null
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    void setFailure(String failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * @return true when the progress moved to the next whole percent, so listeners are not called
+     * for every piece
+     */
+    boolean setProgress(long bytesDone, long fileSize) {
+        long before = this.fileSize > 0 ? this.bytesDone * 100 / this.fileSize : -1;
+        this.bytesDone = bytesDone;
+        this.fileSize = fileSize;
+        return fileSize > 0 && bytesDone * 100 / fileSize != before;
+    }
+
+    // null until the peers were looked up, and again after a failed attempt so they are looked up anew
+    FileSources getSources() {
+        return sources;
+    }
+
+    void setSources(FileSources sources) {
+        this.sources = sources;
+    }
+
+    int nextAttempt() {
+        return ++attempts;
+    }
+
+    @Override
+    public int compareTo(DownloadJob other) {
+        int byPriority = priority.compareTo(other.priority);
+        return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(fileName).append(" - ").append(state);
+
+        if (state == State.DOWNLOADING && fileSize > 0) {
+            sb.append(' ').append(bytesDone * 100 / fileSize).append("% of ").append(FileUtils.formatSize(fileSize));
+        } else if (state == State.FAILED && failure != null) {
+            sb.append(": ").append(failure);
+        } else if (state == State.QUEUED && priority != Priority.NORMAL) {
+            sb.append(" (").append(priority).append(')');
+        }
+
+        return sb.toString();
+    }
+}
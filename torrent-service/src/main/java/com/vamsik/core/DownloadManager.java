@@ -0,0 +1,488 @@
+package com.vamsik.core;
+
+import com.vamsik.utils.Config;
+import com.vamsik.utils.FileUtils;
+import com.vamsik.utils.Threads;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Queue of files to download. At most {@code maxActive} files download at the same time and no
+ * peer serves more than {@code maxPerPeer} of them, so queueing thousands of files opens a bounded
+ * number of connections. The peers of every newly queued file are looked up together, in as few
+ * discovery round trips as possible. The queue is saved under {@code .downloads} in the shared
+ * directory and picked up again on the next start.
+ * <p>
+ * A file is downloaded by its content digest when discovery knows it, from every peer holding
+ * those bytes under any name. When a file with that digest is already shared here, it is linked
+ * or copied instead of downloaded.
+ */
+public class DownloadManager implements Closeable {
+    private static final Logger logger = Logger.getLogger(DownloadManager.class.getName());
+    private static final String QUEUE_FOLDER = ".downloads";
+    // how often a file is tried, with freshly looked up peers each time, before it is given up
+    private static final int MAX_ATTEMPTS = 3;
+    // queue changes are collected this long before the queue file is rewritten
+    private static final long SAVE_DELAY_MILLIS = 1000;
+
+    /**
+     * Finds the peers sharing each of the given files, see {@link ClientHandler#queryPeers}.
+     */
+    public interface PeerLookup {
+        Map<String, FileSources> lookup(Collection<String> fileNames) throws IOException;
+    }
+
+    /**
+     * Finds a shared file by its content digest, see {@link Peer#findContent}.
+     */
+    public interface LocalContent {
+        Path find(String digest);
+    }
+
+    private final PeerLookup peerLookup;
+    private final ConnectionPool pool;
+    private final String sharedDirectory;
+    private final Path queuePath;
+    private final int maxActive;
+    private final int maxPerPeer;
+    private final long lookupRetryNanos;
+
+    // a lock rather than synchronized, the dispatcher waits on it while workers run on virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final TreeSet<DownloadJob> queued = new TreeSet<>();
+    private final Map<String, DownloadJob> jobs = new LinkedHashMap<>();
+    private final Map<InetSocketAddress, Integer> activePerPeer = new HashMap<>();
+    private int active;
+    private long nextSequence;
+    private boolean unresolved;
+    private long lookupNotBefore = System.nanoTime();
+    private boolean saveScheduled;
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "download-queue-saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Thread dispatcher;
+    private volatile boolean running;
+    private volatile Consumer<DownloadJob> listener = job -> {};
+    private volatile LocalContent localContent = digest -> null;
+
+    public DownloadManager(PeerLookup peerLookup, ConnectionPool pool, String sharedDirectory,
+                           int maxActive, int maxPerPeer, long lookupRetryMillis) {
+        this.peerLookup = peerLookup;
+        this.pool = pool;
+        this.sharedDirectory = sharedDirectory;
+        this.queuePath = Path.of(sharedDirectory, QUEUE_FOLDER, "queue");
+        this.maxActive = maxActive;
+        this.maxPerPeer = maxPerPeer;
+        this.lookupRetryNanos = TimeUnit.MILLISECONDS.toNanos(lookupRetryMillis);
+        this.workers = Threads.newConnectionExecutor(maxActive);
+    }
+
+    /**
+     * Called whenever a job is queued, changes state or moves on by a percent. It runs with the
+     * manager lock held and must return quickly, e.g. by handing the update to the UI thread.
+     */
+    public void setListener(Consumer<DownloadJob> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Where to look for files that are already here under another name, usually the peer serving
+     * the same shared directory. Without it every file is downloaded.
+     */
+    public void setLocalContent(LocalContent localContent) {
+        this.localContent = localContent;
+    }
+
+    /**
+     * Loads the queue saved by the last run and starts downloading.
+     */
+    public void start() {
+        running = true;
+
+        if (Files.exists(queuePath)) {
+            try (BufferedReader reader = Files.newBufferedReader(queuePath)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        DownloadJob.Priority priority = DownloadJob.Priority.valueOf(line.substring(0, tab));
+                        this.enqueue(List.of(URLDecoder.decode(line.substring(tab + 1), StandardCharsets.UTF_8)), priority);
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                logger.info("Ignoring unreadable download queue: " + e.getMessage());
+            }
+        }
+
+        dispatcher = new Thread(this::dispatch, "download-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queues the files that are not already queued or downloading.
+     *
+     * @return the job of every given file, including the ones that were already queued
+     */
+    public List<DownloadJob> enqueue(Collection<String> fileNames, DownloadJob.Priority priority) {
+        List<DownloadJob> result = new ArrayList<>(fileNames.size());
+
+        lock.lock();
+        try {
+            for (String fileName : fileNames) {
+                DownloadJob existing = jobs.get(fileName);
+                if (existing != null && (existing.getState() == DownloadJob.State.QUEUED || existing.getState() == DownloadJob.State.DOWNLOADING)) {
+                    result.add(existing);
+                    continue;
+                }
+
+                DownloadJob job = new DownloadJob(fileName, priority, nextSequence++);
+                jobs.remove(fileName); // keeps the job list in queueing order
+                jobs.put(fileName, job);
+                queued.add(job);
+                result.add(job);
+                listener.accept(job);
+            }
+
+            unresolved = true;
+            this.scheduleSave();
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        return result;
+    }
+
+    /**
+     * @return every job of this session, in the order they were queued
+     */
+    public List<DownloadJob> getJobs() {
+        lock.lock();
+        try {
+            return new ArrayList<>(jobs.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        lock.lock();
+        try {
+            while (running) {
+                if (unresolved && System.nanoTime() - lookupNotBefore >= 0) {
+                    this.resolvePeers();
+                    continue;
+                }
+
+                if (active < maxActive && this.startNext()) {
+                    continue;
+                }
+
+                if (unresolved) {
+                    changed.awaitNanos(lookupNotBefore - System.nanoTime());
+                } else {
+                    changed.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // looks up the peers of every queued job that has none, the lock is released during the lookup
+    private void resolvePeers() {
+        unresolved = false;
+
+        List<DownloadJob> batch = new ArrayList<>();
+        for (DownloadJob job : queued) {
+            if (job.getSources() == null) {
+                batch.add(job);
+            }
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<String> fileNames = new ArrayList<>(batch.size());
+        for (DownloadJob job : batch) {
+            fileNames.add(job.getFileName());
+        }
+
+        Map<String, FileSources> found;
+        lock.unlock();
+        try {
+            found = peerLookup.lookup(fileNames);
+        } catch (IOException e) {
+            logger.info("Could not look up peers for " + batch.size() + " queued downloads: " + e.getMessage());
+            found = null;
+        } finally {
+            lock.lock();
+        }
+
+        if (found == null) {
+            unresolved = true;
+            lookupNotBefore = System.nanoTime() + lookupRetryNanos;
+            return;
+        }
+
+        for (DownloadJob job : batch) {
+            if (!queued.contains(job)) {
+                continue;
+            }
+
+            FileSources sources = found.getOrDefault(job.getFileName(), new FileSources(null, List.of()));
+            // discovery leaves out peers on this host, the content may be shared right here
+            if (sources.peers().isEmpty() && sources.digest() == null) {
+                queued.remove(job);
+                this.fail(job, "no peer shares this file");
+            } else {
+                job.setSources(sources);
+            }
+        }
+        this.scheduleSave();
+    }
+
+    // starts the first queued job with at least one peer that is below its limit, or with none
+    // at all when it can only come from a local copy
+    private boolean startNext() {
+        Iterator<DownloadJob> iterator = queued.iterator();
+
+        while (iterator.hasNext()) {
+            DownloadJob job = iterator.next();
+            if (job.getSources() == null) {
+                continue;
+            }
+
+            List<InetSocketAddress> available = new ArrayList<>();
+            for (InetSocketAddress peer : job.getSources().peers()) {
+                if (activePerPeer.getOrDefault(peer, 0) < maxPerPeer) {
+                    available.add(peer);
+                }
+            }
+
+            if (available.isEmpty() && !job.getSources().peers().isEmpty()) {
+                continue;
+            }
+
+            iterator.remove();
+            active++;
+            for (InetSocketAddress peer : available) {
+                activePerPeer.merge(peer, 1, Integer::sum);
+            }
+
+            job.setState(DownloadJob.State.DOWNLOADING);
+            listener.accept(job);
+            workers.execute(() -> this.download(job, available));
+            return true;
+        }
+
+        return false;
+    }
+
+    private void download(DownloadJob job, List<InetSocketAddress> peers) {
+        // stays set if the download dies of an Error, finish still frees its slot and peers
+        String failure = "aborted";
+
+        try {
+            failure = this.fetch(job, peers);
+        } catch (IOException e) {
+            failure = e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = "interrupted";
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            failure = e.toString();
+        } finally {
+            this.finish(job, peers, failure);
+        }
+    }
+
+    /**
+     * @return why the file could not be fetched, or null once it is in place
+     */
+    private String fetch(DownloadJob job, List<InetSocketAddress> peers) throws IOException, InterruptedException {
+        Path targetPath = FileUtils.getDownloadPath(sharedDirectory, job.getFileName());
+        FileSources sources = job.getSources();
+        Path local = sources.digest() != null ? localContent.find(sources.digest()) : null;
+
+        if (local != null && this.copyLocal(local, targetPath)) {
+            logger.info(job.getFileName() + " is already shared as " + local.getFileName() + ", not downloading it");
+            return null;
+        }
+        if (peers.isEmpty()) {
+            return "no peer shares this file";
+        }
+
+        SwarmDownloader downloader = new SwarmDownloader(sources.remoteName(job.getFileName()), peers, targetPath, pool, (done, size) -> {
+            if (job.setProgress(done, size)) {
+                this.notifyListener(job);
+            }
+        });
+
+        return downloader.download() ? null : "every peer dropped out";
+    }
+
+    /**
+     * Puts a file with the same content at the target: a hard link, which takes no space, or a
+     * copy where the file system has none. A hard link shares later changes with the original.
+     *
+     * @return false when neither worked and the file has to be downloaded after all
+     */
+    private boolean copyLocal(Path existing, Path targetPath) {
+        try {
+            if (Files.exists(targetPath) && Files.isSameFile(existing, targetPath)) {
+                return true;
+            }
+
+            // hidden, so the shared directory index does not pick it up before it is complete
+            Path temporary = targetPath.resolveSibling("." + targetPath.getFileName() + ".link");
+            Files.deleteIfExists(temporary);
+            if (!Config.LINK_DUPLICATES || !link(temporary, existing)) {
+                Files.copy(existing, temporary);
+            }
+            Files.move(temporary, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            logger.info("Could not reuse " + existing + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean link(Path link, Path existing) {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (UnsupportedOperationException | IOException e) {
+            // another file system, or one without hard links
+            return false;
+        }
+    }
+
+    private void finish(DownloadJob job, List<InetSocketAddress> peers, String failure) {
+        lock.lock();
+        try {
+            active--;
+            for (InetSocketAddress peer : peers) {
+                activePerPeer.computeIfPresent(peer, (key, count) -> count > 1 ? count - 1 : null);
+            }
+
+            if (failure == null) {
+                job.setState(DownloadJob.State.DONE);
+                listener.accept(job);
+                logger.info("Downloaded " + job.getFileName());
+            } else if (!running) {
+                // shutting down, the job stays in the saved queue and resumes on the next start
+                job.setState(DownloadJob.State.QUEUED);
+            } else if (job.nextAttempt() < MAX_ATTEMPTS) {
+                logger.info("Download of " + job.getFileName() + " failed (" + failure + "), queueing it again");
+                job.setFailure(failure);
+                job.setSources(null);
+                job.setState(DownloadJob.State.QUEUED);
+                queued.add(job);
+                unresolved = true;
+                listener.accept(job);
+            } else {
+                this.fail(job, failure);
+            }
+
+            this.scheduleSave();
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(DownloadJob job, String failure) {
+        logger.info("Giving up on " + job.getFileName() + ": " + failure);
+        job.setFailure(failure);
+        job.setState(DownloadJob.State.FAILED);
+        listener.accept(job);
+    }
+
+    private void notifyListener(DownloadJob job) {
+        lock.lock();
+        try {
+            listener.accept(job);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleSave() {
+        if (!saveScheduled && running) {
+            saveScheduled = true;
+            saver.schedule(this::save, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // writes every job that is not finished yet, one "PRIORITY<tab>url-encoded name" per line
+    private void save() {
+        StringBuilder sb = new StringBuilder();
+
+        lock.lock();
+        try {
+            saveScheduled = false;
+            for (DownloadJob job : jobs.values()) {
+                if (job.getState() == DownloadJob.State.QUEUED || job.getState() == DownloadJob.State.DOWNLOADING) {
+                    sb.append(job.getPriority()).append('\t')
+                            .append(URLEncoder.encode(job.getFileName(), StandardCharsets.UTF_8)).append('\n');
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            Files.createDirectories(queuePath.getParent());
+            Path tempPath = queuePath.resolveSibling("queue.tmp");
+            Files.writeString(tempPath, sb);
+            Files.move(tempPath, queuePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the running downloads and saves the queue, unfinished files resume on the next start.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+        workers.shutdownNow();
+
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        saver.shutdownNow();
+        this.save();
+    }
+}
@@ -0,0 +1,139 @@
+package com.vamsik.core;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.logging.Logger;
+
+/**
+ * Progress sidecar kept next to a partially downloaded file. It remembers the size of the
+ * remote file, the piece size and which pieces were already flushed to disk, so an interrupted
+ * download only fetches the pieces that are still missing.
+ */
+public class DownloadProgress {
+    private static final Logger logger = Logger.getLogger(DownloadProgress.class.getName());
+    private static final String SUFFIX = ".progress";
+
+    private final Path sidecarPath;
+    private final long fileSize;
+    private final int pieceSize;
+    private final int pieceCount;
+    private final BitSet completed;
+
+    private DownloadProgress(Path sidecarPath, long fileSize, int pieceSize, BitSet completed) {
+        this.sidecarPath = sidecarPath;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+        this.completed = completed;
+    }
+
+    public static Path sidecarFor(Path targetPath) {
+        return targetPath.resolveSibling(targetPath.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Loads the sidecar of the given target, or starts a fresh one when there is none or when it
+     * was written for a file of a different size or piece layout.
+     */
+    public static DownloadProgress open(Path targetPath, long fileSize, int pieceSize) {
+        Path sidecarPath = sidecarFor(targetPath);
+
+        if (Files.exists(sidecarPath) && Files.exists(targetPath)) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecarPath)))) {
+                long savedSize = dis.readLong();
+                int savedPieceSize = dis.readInt();
+                byte[] bits = new byte[dis.readInt()];
+                dis.readFully(bits);
+
+                if (savedSize == fileSize && savedPieceSize == pieceSize) {
+                    BitSet completed = BitSet.valueOf(bits);
+                    logger.info("Resuming " + targetPath.getFileName() + " with " + completed.cardinality() + " pieces on disk");
+                    return new DownloadProgress(sidecarPath, fileSize, pieceSize, completed);
+                }
+
+                logger.info("Discarding stale progress for " + targetPath.getFileName());
+            } catch (IOException e) {
+                logger.info("Unreadable progress file for " + targetPath.getFileName() + ", starting over");
+            }
+        }
+
+        return new DownloadProgress(sidecarPath, fileSize, pieceSize, new BitSet());
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    public long pieceOffset(int piece) {
+        return (long) piece * pieceSize;
+    }
+
+    public int pieceLength(int piece) {
+        return (int) Math.min(pieceSize, fileSize - pieceOffset(piece));
+    }
+
+    public synchronized boolean isComplete(int piece) {
+        return completed.get(piece);
+    }
+
+    public synchronized boolean isComplete() {
+        return completed.cardinality() == pieceCount;
+    }
+
+    public synchronized int completedCount() {
+        return completed.cardinality();
+    }
+
+    /**
+     * @return false when the piece was already marked, e.g. by a duplicate endgame request
+     */
+    public synchronized boolean markComplete(int piece) {
+        if (completed.get(piece)) {
+            return false;
+        }
+        completed.set(piece);
+        return true;
+    }
+
+    public synchronized BitSet snapshot() {
+        return (BitSet) completed.clone();
+    }
+
+    public synchronized void markMissing(int piece) {
+        completed.clear(piece);
+    }
+
+    /**
+     * Persists a snapshot of the completed pieces. Callers must take the snapshot and then force
+     * the file data to disk before saving it, otherwise a crash could leave the sidecar claiming
+     * pieces that were never written.
+     */
+    public void save(BitSet durable) throws IOException {
+        Path tempPath = sidecarPath.resolveSibling(sidecarPath.getFileName() + ".tmp");
+        byte[] bits = durable.toByteArray();
+
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+            dos.writeLong(fileSize);
+            dos.writeInt(pieceSize);
+            dos.writeInt(bits.length);
+            dos.write(bits);
+        }
+
+        Files.move(tempPath, sidecarPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(sidecarPath);
+    }
+}
@@ -0,0 +1,158 @@
+package com.vamsik.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * Where a download is written to. The data goes to a hidden part file next to the target, which
+ * the shared directory index skips, so other peers never see a half downloaded file. The part
+ * file is sized up front and pieces are written at their offset in any order, in large blocks
+ * from pooled direct buffers. {@link #commit} forces it to disk once and renames it to the
+ * target in one step.
+ */
+class DownloadSink implements Closeable {
+    private static final Logger logger = Logger.getLogger(DownloadSink.class.getName());
+    // bytes written by a single positional write
+    private static final int BLOCK_BYTES = 1024 * 1024;
+    // direct buffers kept for the next writes, all downloads share them
+    private static final int MAX_POOLED_BUFFERS = 16;
+    private static final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private final Path targetPath;
+    private final Path partPath;
+    private final long fileSize;
+    private final FileChannel channel;
+
+    private DownloadSink(Path targetPath, Path partPath, long fileSize, FileChannel channel) {
+        this.targetPath = targetPath;
+        this.partPath = partPath;
+        this.fileSize = fileSize;
+        this.channel = channel;
+    }
+
+    /**
+     * @return the file a download into {@code targetPath} writes to until it is complete
+     */
+    static Path partFor(Path targetPath) {
+        return targetPath.resolveSibling("." + targetPath.getFileName() + ".part");
+    }
+
+    /**
+     * Opens the part file of {@code targetPath}, keeping what an earlier attempt wrote to it, and
+     * sets its length to {@code fileSize}.
+     */
+    static DownloadSink open(Path targetPath, long fileSize) throws IOException {
+        Path partPath = partFor(targetPath);
+        FileChannel channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            if (channel.size() > fileSize) {
+                channel.truncate(fileSize); // drop the stale tail of an older, bigger download
+            } else if (channel.size() < fileSize) {
+                // extends the file to its final length in one step instead of growing it piece by piece
+                channel.write(ByteBuffer.allocate(1), fileSize - 1);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return new DownloadSink(targetPath, partPath, fileSize, channel);
+    }
+
+    Path getPartPath() {
+        return partPath;
+    }
+
+    /**
+     * Writes {@code length} bytes at {@code position}. Safe to call from several threads at once
+     * for different ranges.
+     */
+    void write(long position, byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = borrowBuffer();
+        try {
+            for (int done = 0; done < length; ) {
+                int chunk = Math.min(length - done, buffer.capacity());
+                buffer.clear();
+                buffer.put(data, offset + done, chunk).flip();
+
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + done + buffer.position());
+                }
+                done += chunk;
+            }
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    /**
+     * Reads back {@code length} bytes at {@code position}, e.g. to verify pieces of an earlier
+     * attempt.
+     *
+     * @return false when the file ended before
+     */
+    boolean read(long position, byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forces what was written so far to disk, so it can be recorded as done.
+     */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Forces the complete file to disk and moves it to the target, replacing an older copy.
+     */
+    void commit() throws IOException {
+        channel.force(true);
+        channel.close();
+
+        Files.move(partPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(targetPath.toAbsolutePath().getParent());
+        logger.info("Saved " + targetPath.getFileName() + " (" + fileSize + " bytes)");
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // makes the rename itself durable, not every platform lets a directory be opened for that
+    private static void forceDirectory(Path directory) {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            logger.fine("Could not sync " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private static ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BLOCK_BYTES);
+    }
+
+    private static void returnBuffer(ByteBuffer buffer) {
+        // the size check is racy, at worst a few more buffers are kept than the limit
+        if (buffers.size() < MAX_POOLED_BUFFERS) {
+            buffers.offer(buffer);
+        }
+    }
+}
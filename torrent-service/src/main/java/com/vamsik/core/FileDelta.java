@@ -0,0 +1,39 @@
+package com.vamsik.core;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Files that appeared in, disappeared from or changed size in the shared directory since the last
+ * batch, and files whose content digest became known. When the watcher lost track of events,
+ * {@code resync} asks for the whole list to be registered again.
+ */
+public record FileDelta(Set<String> added, Set<String> removed, Set<String> changed, boolean resync, Set<String> hashed) {
+    public FileDelta(Set<String> added, Set<String> removed, Set<String> changed, boolean resync) {
+        this(added, removed, changed, resync, Set.of());
+    }
+
+    /**
+     * @return this batch and a later one as a single batch, a file ending up as the later one left it
+     */
+    public FileDelta followedBy(FileDelta later) {
+        Set<String> added = new LinkedHashSet<>(this.added);
+        added.removeAll(later.removed);
+        added.addAll(later.added);
+
+        Set<String> removed = new LinkedHashSet<>(this.removed);
+        removed.removeAll(later.added);
+        removed.addAll(later.removed);
+
+        // a file added in this batch is announced with its latest size anyway
+        Set<String> changed = new LinkedHashSet<>(this.changed);
+        changed.addAll(later.changed);
+        changed.removeAll(added);
+        changed.removeAll(removed);
+
+        Set<String> hashed = new LinkedHashSet<>(this.hashed);
+        hashed.addAll(later.hashed);
+
+        return new FileDelta(added, removed, changed, resync || later.resync, hashed);
+    }
+}
@@ -0,0 +1,28 @@
+package com.vamsik.core;
+
+import java.util.List;
+
+/**
+ * One page of the discovery catalog. An empty {@code nextCursor} means there are no more pages.
+ */
+public class FilePage {
+    private final List<RemoteFile> files;
+    private final String nextCursor;
+
+    public FilePage(List<RemoteFile> files, String nextCursor) {
+        this.files = files;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<RemoteFile> getFiles() {
+        return files;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return !nextCursor.isEmpty();
+    }
+}
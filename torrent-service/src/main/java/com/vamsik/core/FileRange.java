@@ -0,0 +1,13 @@
+package com.vamsik.core;
+
+import java.nio.file.Path;
+
+/**
+ * The part of a shared file that follows a DOWNLOAD or DOWNLOADRANGE reply header. The file is
+ * null, and the count 0, when the requested name is not shared.
+ */
+record FileRange(SharedIndex.SharedFile file, long offset, long count) {
+    Path path() {
+        return file.path();
+    }
+}
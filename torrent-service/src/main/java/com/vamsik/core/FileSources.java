@@ -0,0 +1,31 @@
+package com.vamsik.core;
+
+import com.vamsik.protocol.ContentKey;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Where to download a file from: the peers holding it and the SHA-256 of the content they hold,
+ * null when none of them hashed it yet. With a digest the peers may know the file by other names,
+ * it is asked for by its {@link ContentKey}.
+ */
+public record FileSources(String digest, List<InetSocketAddress> peers) {
+    /**
+     * @return the name to ask the peers for
+     */
+    public String remoteName(String fileName) {
+        return digest != null ? ContentKey.of(digest) : fileName;
+    }
+
+    /**
+     * @return these sources with more peers holding the same content
+     */
+    public FileSources with(List<InetSocketAddress> more) {
+        Set<InetSocketAddress> all = new LinkedHashSet<>(peers);
+        all.addAll(more);
+        return new FileSources(digest, List.copyOf(all));
+    }
+}
@@ -0,0 +1,161 @@
+package com.vamsik.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Memory maps the shared files that are being uploaded, so a file that many peers download at
+ * once is read from disk a single time and every connection sends it from the same pages. The
+ * mapped files are kept in LRU order within a byte budget. Connections lease a file while they
+ * send from it; a file that is evicted stays mapped until its last lease is closed, and its
+ * bytes count against the budget until then.
+ */
+class HotFileCache {
+    private final long budget;
+    // a lock rather than synchronized, the blocking server may run on virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes;
+
+    /**
+     * @param budget bytes of files that may be mapped at the same time, 0 disables the cache
+     */
+    HotFileCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Leases the mapped contents of a shared file, close the lease when done with it.
+     *
+     * @return null when the file is empty, larger than the budget or can not be mapped, the
+     * caller reads it from disk as before
+     */
+    Lease acquire(SharedIndex.SharedFile file) throws IOException {
+        if (file == null || file.size() == 0 || file.size() > Math.min(budget, Integer.MAX_VALUE)) {
+            return null;
+        }
+
+        lock.lock();
+        try {
+            Entry entry = entries.get(file.path());
+            if (entry != null && entry.file.equals(file)) {
+                entry.refs++;
+                return new Lease(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // mapping only sets up page tables, the pages are read when a connection first sends them
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.path(), StandardOpenOption.READ)) {
+            if (channel.size() < file.size()) {
+                // the file shrank since it was indexed, reading past its end would crash the sender
+                return null;
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        }
+
+        lock.lock();
+        try {
+            Entry entry = entries.get(file.path());
+            if (entry == null || !entry.file.equals(file)) {
+                if (entry != null) {
+                    this.evict(entry);
+                }
+                if (!this.makeRoom(file.size())) {
+                    // the budget is taken by files that are being sent, this one is read from disk
+                    return null;
+                }
+                entry = new Entry(file, mapped);
+                entries.put(file.path(), entry);
+                mappedBytes += file.size();
+            }
+            entry.refs++;
+            return new Lease(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // evicts least recently used files until another {@code bytes} fit into the budget
+    private boolean makeRoom(long bytes) {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (mappedBytes + bytes > budget && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            this.retire(entry);
+        }
+        return mappedBytes + bytes <= budget;
+    }
+
+    private void evict(Entry entry) {
+        entries.remove(entry.file.path());
+        this.retire(entry);
+    }
+
+    // the JDK unmaps a buffer once it is unreachable, the cache only has to let go of it
+    private void retire(Entry entry) {
+        entry.evicted = true;
+        if (entry.refs == 0) {
+            mappedBytes -= entry.file.size();
+        }
+    }
+
+    private void release(Entry entry) {
+        lock.lock();
+        try {
+            if (--entry.refs == 0 && entry.evicted) {
+                mappedBytes -= entry.file.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Entry {
+        private final SharedIndex.SharedFile file;
+        private final MappedByteBuffer mapped;
+        // guarded by the cache lock
+        private int refs;
+        private boolean evicted;
+
+        Entry(SharedIndex.SharedFile file, MappedByteBuffer mapped) {
+            this.file = file;
+            this.mapped = mapped;
+        }
+    }
+
+    class Lease implements Closeable {
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * @return a buffer over {@code count} bytes of the file starting at {@code offset}, with
+         * its own position so connections do not disturb each other
+         */
+        ByteBuffer slice(long offset, long count) {
+            return entry.mapped.slice((int) offset, (int) count);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(entry);
+            }
+        }
+    }
+}
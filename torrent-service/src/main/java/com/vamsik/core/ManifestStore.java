@@ -0,0 +1,186 @@
+package com.vamsik.core;
+
+import com.vamsik.utils.Config;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the {@link PieceManifest} of every shared file. Manifests are hashed on a background
+ * thread and cached under {@code .manifests} in the shared directory, keyed by the file size and
+ * modification time, so a restart only rehashes files that changed in the meantime. The whole
+ * file digests are indexed too, so a file can be found by its content.
+ */
+public class ManifestStore {
+    private static final Logger logger = Logger.getLogger(ManifestStore.class.getName());
+    private static final String CACHE_FOLDER = ".manifests";
+
+    private final SharedIndex index;
+    private final Path cacheDirectory;
+    private final Map<String, CompletableFuture<PieceManifest>> manifests = new ConcurrentHashMap<>();
+    // file digest -> names that had it when hashed, checked against the manifests when used
+    private final Map<String, Set<String>> namesByDigest = new ConcurrentHashMap<>();
+    private final Consumer<String> hashedListener;
+    private final ExecutorService hashExecutor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "manifest-hasher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param hashedListener called with the name of a file once its manifest is ready, on a
+     *                       hashing thread
+     */
+    public ManifestStore(String sharedDirectory, SharedIndex index, Consumer<String> hashedListener) {
+        this.index = index;
+        this.cacheDirectory = Path.of(sharedDirectory, CACHE_FOLDER);
+        this.hashedListener = hashedListener;
+    }
+
+    /**
+     * Queues every currently shared file for hashing, so the manifests are ready before anyone asks.
+     */
+    public void refreshAll() {
+        for (SharedIndex.SharedFile file : index.getFiles()) {
+            this.manifestFor(file.name());
+        }
+    }
+
+    /**
+     * Queues a single file for hashing, e.g. one that just appeared in the shared directory.
+     */
+    public void refresh(String fileName) {
+        this.manifestFor(fileName);
+    }
+
+    /**
+     * Returns the manifest of a shared file, hashing it first when there is no up to date one.
+     *
+     * @return null when the file does not exist, could not be read, or is still being hashed
+     * after waiting for {@code timeoutMillis}
+     */
+    public PieceManifest get(String fileName, long timeoutMillis) throws InterruptedException {
+        try {
+            return this.manifestFor(fileName).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.info("Manifest for " + fileName + " is not ready yet");
+            return null;
+        } catch (ExecutionException e) {
+            logger.info("Could not build manifest for " + fileName + ": " + e.getCause().getMessage());
+            manifests.remove(fileName);
+            return null;
+        }
+    }
+
+    /**
+     * @return the SHA-256 of the file in lowercase hex, or null while it is not hashed, without
+     * waiting for it
+     */
+    public String digestOf(String fileName) {
+        CompletableFuture<PieceManifest> future = manifests.get(fileName);
+        SharedIndex.SharedFile file = index.get(fileName);
+        if (future == null || file == null || future.isCompletedExceptionally() || !isFresh(future, file)) {
+            return null;
+        }
+        return future.getNow(null).getFileDigestHex();
+    }
+
+    /**
+     * @return a shared file whose content has the digest, or null when none is known to have it
+     */
+    public SharedIndex.SharedFile findByDigest(String digest) {
+        Set<String> names = namesByDigest.get(digest);
+        if (names == null) {
+            return null;
+        }
+
+        for (String name : names) {
+            if (digest.equals(this.digestOf(name))) {
+                return index.get(name);
+            }
+            // changed or gone since, rehashing it records the new digest
+            names.remove(name);
+        }
+        namesByDigest.computeIfPresent(digest, (key, remaining) -> remaining.isEmpty() ? null : remaining);
+        return null;
+    }
+
+    private CompletableFuture<PieceManifest> manifestFor(String fileName) {
+        SharedIndex.SharedFile file = index.get(fileName);
+        if (file == null) {
+            return CompletableFuture.failedFuture(new NoSuchFileException(fileName));
+        }
+
+        return manifests.compute(fileName, (name, existing) -> {
+            if (existing != null && (!existing.isDone() || isFresh(existing, file))) {
+                return existing;
+            }
+            CompletableFuture<PieceManifest> future = CompletableFuture.supplyAsync(() -> this.loadOrCompute(fileName, file.path()), hashExecutor);
+            // runs once the future is done, so digestOf already sees the manifest
+            future.thenAccept(manifest -> {
+                namesByDigest.compute(manifest.getFileDigestHex(), (key, names) -> {
+                    Set<String> holding = names != null ? names : ConcurrentHashMap.newKeySet();
+                    holding.add(fileName);
+                    return holding;
+                });
+                hashedListener.accept(fileName);
+            });
+            return future;
+        });
+    }
+
+    // compares against the index, so asking for an up to date manifest does not touch the disk
+    private static boolean isFresh(CompletableFuture<PieceManifest> future, SharedIndex.SharedFile file) {
+        PieceManifest manifest = future.getNow(null);
+        return manifest != null && manifest.matches(file.size(), file.modified());
+    }
+
+    private PieceManifest loadOrCompute(String fileName, Path filePath) {
+        try {
+            long size = Files.size(filePath);
+            long modified = Files.getLastModifiedTime(filePath).toMillis();
+            Path cachePath = cacheDirectory.resolve(URLEncoder.encode(fileName, StandardCharsets.UTF_8) + ".manifest");
+
+            if (Files.exists(cachePath)) {
+                try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(cachePath)))) {
+                    PieceManifest cached = PieceManifest.read(dis);
+                    if (cached.matches(size, modified) && cached.getPieceSize() == Config.PIECE_SIZE) {
+                        return cached;
+                    }
+                } catch (IOException e) {
+                    logger.info("Ignoring unreadable manifest cache for " + fileName);
+                }
+            }
+
+            long start = System.nanoTime();
+            PieceManifest manifest = PieceManifest.compute(filePath, Config.PIECE_SIZE);
+            logger.info("Hashed " + fileName + " (" + manifest.getPieceCount() + " pieces) in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+            Files.createDirectories(cacheDirectory);
+            Path tempPath = cachePath.resolveSibling(cachePath.getFileName() + ".tmp");
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                manifest.write(dos);
+            }
+            Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            return manifest;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void shutdown() {
+        hashExecutor.shutdownNow();
+    }
+}
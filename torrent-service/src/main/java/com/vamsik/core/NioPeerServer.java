@@ -0,0 +1,600 @@
+package com.vamsik.core;
+
+import com.vamsik.utils.Threads;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking alternative to the thread-per-connection server in {@link Peer}. Accepted sockets
+ * are spread over a few selector threads, and every connection is a small state machine that
+ * reads one command, writes its reply (file bodies go out with {@link FileChannel#transferTo}, or
+ * from the mapped pages of the {@link HotFileCache}) and then goes back to reading. Idle
+ * connections cost a buffer and a selection key, not a thread.
+ * Only replies that may block for a while (LIST, MANIFEST and compressed pieces) are built on a
+ * worker pool. Uploads are paced by the peer's {@link UploadThrottle}: a connection that has to
+ * wait stops writing and is woken up by a timer on its event loop, no thread blocks.
+ */
+public class NioPeerServer implements Closeable {
+    private static final Logger logger = Logger.getLogger(NioPeerServer.class.getName());
+    // the largest request is DOWNLOADRANGE with a 64 KB file name: two UTF strings and two longs
+    private static final int MAX_REQUEST_BYTES = 2 * (2 + 65535) + 16;
+    // replies up to this size go out without asking the upload throttle
+    private static final int UNTHROTTLED_REPLY_BYTES = 4096;
+
+    private final Peer peer;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ExecutorService workers = Executors.newFixedThreadPool(8);
+    private volatile boolean running = true;
+
+    public NioPeerServer(Peer peer, int port, int loopCount) throws IOException {
+        this.peer = peer;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port), 1024);
+        this.loops = new EventLoop[loopCount];
+
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop();
+        }
+        Threads.monitor("peer-nio-" + port, workers);
+    }
+
+    /**
+     * Accepts connections on the calling thread until {@link #close()} is called.
+     */
+    public void run() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "peer-nio-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int next = 0;
+
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                logger.info("Peer connected from " + channel.getRemoteAddress());
+
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next++ % loops.length].register(channel);
+            } catch (ClosedChannelException e) {
+                logger.info("Server socket closed");
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+
+        workers.shutdownNow();
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // only touched by the loop thread
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // runs the task on this loop's thread, which owns every connection registered with it
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // runs the task on this loop's thread after the delay, must be called from that thread
+        void schedule(Runnable task, long delayNanos) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        void register(SocketChannel channel) {
+            this.execute(() -> {
+                try {
+                    Connection connection = new Connection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    Timer next = timers.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        long waitNanos = next.deadline() - System.nanoTime();
+                        // select(0) would wait forever, a due timer must not
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                    }
+                } catch (IOException | ClosedSelectorException e) {
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    runGuarded(task);
+                }
+
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().deadline() - now <= 0) {
+                    runGuarded(timers.poll().task());
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Connection connection = (Connection) key.attachment();
+
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        // a bug in one connection must not stop the loop serving all the others
+                        e.printStackTrace();
+                        connection.close();
+                    }
+                }
+
+                selector.selectedKeys().clear();
+            }
+        }
+
+        private static void runGuarded(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void close() {
+            selector.wakeup();
+
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                logger.info("Error closing selector: " + e.getMessage());
+            }
+        }
+    }
+
+    private enum State {
+        READING,    // waiting for the next complete command
+        PROCESSING, // a worker is building the reply
+        WRITING,    // sending the reply header and file body
+        CLOSING     // sending BYE, then closing
+    }
+
+    private record Request(String command, String fileName, long offset, long length) {
+    }
+
+    private record Timer(long deadline, Runnable task) {
+    }
+
+    @FunctionalInterface
+    private interface ReplyWriter {
+        void write(DataOutputStream dos) throws IOException;
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private SelectionKey key;
+        private State state = State.READING;
+
+        private ByteBuffer in = ByteBuffer.allocate(512);
+        private ByteBuffer out;
+        private FileChannel bodyChannel;
+        // set instead of bodyChannel when the file is in the hot file cache
+        private HotFileCache.Lease bodyLease;
+        private ByteBuffer bodyBuffer;
+        private long bodyPosition;
+        private long bodyEnd;
+        private final UploadThrottle.Upload upload = peer.getUploadThrottle().open(1);
+        // bytes reserved from the throttle that may be sent without asking again
+        private long granted;
+        private boolean outCharged;
+        private boolean throttled;
+        // the body being sent and when it started, for its latency and transfer event
+        private FileRange bodyRange;
+        private long bodyStart;
+        private TransferEvent transfer;
+        private boolean closed;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            peer.getOpenConnections().increment();
+        }
+
+        void onReadable() throws IOException {
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_REQUEST_BYTES) {
+                    throw new IOException("Request too large");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_REQUEST_BYTES));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+
+            if (channel.read(in) == -1) {
+                logger.info("Peer disconnected");
+                this.close();
+                return;
+            }
+
+            this.processBuffered();
+        }
+
+        // handles the buffered commands one after another for as long as their replies go out
+        // right away; the rest wait in the buffer until the pending reply has been written
+        private void processBuffered() throws IOException {
+            while (state == State.READING) {
+                in.flip();
+                Request request = parse(in);
+                in.compact();
+
+                if (request == null) {
+                    return;
+                }
+                this.dispatch(request);
+            }
+        }
+
+        private void dispatch(Request request) throws IOException {
+            switch (request.command()) {
+                case "DISCONNECT":
+                    state = State.CLOSING;
+                    this.reply(encode(dos -> peer.sendMessage(dos, "BYE")), null);
+                    break;
+                case "DOYOUHAVE":
+                    this.reply(encode(dos -> peer.sendMessage(dos, peer.hasFile(request.fileName()) ? "YES" : "NO")), null);
+                    break;
+                case "DOWNLOAD": {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    FileRange range = peer.writeFileHeader(new DataOutputStream(bytes), request.fileName());
+                    logger.info("Sending file: " + request.fileName() + " of size: " + range.count());
+                    this.reply(ByteBuffer.wrap(bytes.toByteArray()), range);
+                    break;
+                }
+                case "DOWNLOADRANGE": {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    FileRange range = peer.writeRangeHeader(new DataOutputStream(bytes), request.fileName(), request.offset(), request.length());
+                    this.reply(ByteBuffer.wrap(bytes.toByteArray()), range);
+                    break;
+                }
+                case "DOWNLOADRANGEZ":
+                    // compressing is too slow for the event loop
+                    this.replyCompressedLater(request);
+                    break;
+                case "COMPRESSION":
+                    this.reply(encode(dos -> peer.sendMessage(dos, "DEFLATE")), null);
+                    break;
+                case "MANIFEST":
+                    this.replyLater(dos -> peer.sendManifest(dos, request.fileName()));
+                    break;
+                case "LIST":
+                    this.replyLater(peer::handleAllFilesRequest);
+                    break;
+                default:
+                    this.reply(encode(dos -> peer.sendMessage(dos, "OK")), null);
+                    break;
+            }
+        }
+
+        private void replyLater(ReplyWriter writer) {
+            state = State.PROCESSING;
+            key.interestOps(0);
+
+            workers.execute(() -> {
+                try {
+                    ByteBuffer reply = encode(writer);
+                    loop.execute(() -> this.replyAndContinue(reply, null));
+                } catch (IOException e) {
+                    loop.execute(this::close);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    loop.execute(this::close);
+                }
+            });
+        }
+
+        private void replyCompressedLater(Request request) {
+            state = State.PROCESSING;
+            key.interestOps(0);
+
+            workers.execute(() -> {
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    FileRange raw = peer.writeCompressedRange(new DataOutputStream(bytes), request.fileName(), request.offset(), request.length());
+                    ByteBuffer reply = ByteBuffer.wrap(bytes.toByteArray());
+                    if (raw == null) {
+                        Peer.UPLOADED_BYTES.add(reply.remaining());
+                    }
+                    loop.execute(() -> this.replyAndContinue(reply, raw));
+                } catch (IOException e) {
+                    loop.execute(this::close);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    loop.execute(this::close);
+                }
+            });
+        }
+
+        // sends a reply built on a worker, then the commands that arrived in the meantime
+        private void replyAndContinue(ByteBuffer header, FileRange body) {
+            try {
+                this.reply(header, body);
+                this.processBuffered();
+            } catch (IOException | CancelledKeyException e) {
+                this.close();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                this.close();
+            }
+        }
+
+        private void reply(ByteBuffer header, FileRange body) throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+
+            out = header;
+            outCharged = out.remaining() <= UNTHROTTLED_REPLY_BYTES;
+
+            if (body != null && body.count() > 0) {
+                bodyLease = peer.getHotFiles().acquire(body.file());
+                if (bodyLease != null) {
+                    bodyBuffer = bodyLease.slice(body.offset(), body.count());
+                } else {
+                    bodyChannel = FileChannel.open(body.path(), StandardOpenOption.READ);
+                }
+                bodyPosition = body.offset();
+                bodyEnd = body.offset() + body.count();
+
+                bodyRange = body;
+                bodyStart = System.nanoTime();
+                transfer = new TransferEvent();
+                transfer.begin();
+            }
+
+            if (state != State.CLOSING) {
+                state = State.WRITING;
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+            // most replies fit into the socket buffer right away; the caller reads on from there
+            this.writePending();
+        }
+
+        void onWritable() throws IOException {
+            if (this.writePending()) {
+                this.processBuffered();
+            }
+        }
+
+        // returns true once the whole reply has been written and the connection reads again
+        private boolean writePending() throws IOException {
+            if (throttled) {
+                return false;
+            }
+
+            if (out != null) {
+                if (!outCharged) {
+                    // large replies such as deflated pieces are paid for as a whole
+                    outCharged = true;
+                    if (this.pause(upload.reserve(out.remaining()))) {
+                        return false;
+                    }
+                }
+
+                channel.write(out);
+                if (out.hasRemaining()) {
+                    return false;
+                }
+                out = null;
+            }
+
+            if (bodyChannel != null || bodyBuffer != null) {
+                if (granted == 0) {
+                    granted = Math.min(bodyEnd - bodyPosition, upload.chunkSize());
+                    if (this.pause(upload.reserve(granted))) {
+                        return false;
+                    }
+                }
+
+                long sent = bodyBuffer != null ? this.writeMapped() : bodyChannel.transferTo(bodyPosition, granted, channel);
+                granted -= sent;
+
+                if (bodyChannel != null && sent == 0 && bodyPosition >= bodyChannel.size()) {
+                    // the file shrank while we were sending it, the client can not stay in sync
+                    throw new IOException("File truncated while sending");
+                }
+
+                bodyPosition += sent;
+                Peer.UPLOADED_BYTES.add(sent);
+                if (bodyPosition < bodyEnd) {
+                    // the next chunk waits for the next select round, which interleaves the uploads
+                    return false;
+                }
+
+                Peer.UPLOAD_LATENCY.recordSince(bodyStart);
+                transfer.finish(TransferEvent.UPLOAD, bodyRange.file().name(), channel.getRemoteAddress(), bodyRange.count());
+                transfer = null;
+                this.closeBody();
+            }
+
+            if (state == State.CLOSING) {
+                this.close();
+                return false;
+            }
+
+            state = State.READING;
+            key.interestOps(SelectionKey.OP_READ);
+            return true;
+        }
+
+        // writes at most the granted bytes of the mapped body
+        private int writeMapped() throws IOException {
+            int limit = bodyBuffer.limit();
+            bodyBuffer.limit(bodyBuffer.position() + (int) granted);
+            try {
+                return Peer.writeMapped(channel, bodyBuffer);
+            } finally {
+                bodyBuffer.limit(limit);
+            }
+        }
+
+        private void closeBody() throws IOException {
+            if (bodyLease != null) {
+                bodyLease.close();
+                bodyLease = null;
+                bodyBuffer = null;
+            }
+            if (bodyChannel != null) {
+                bodyChannel.close();
+                bodyChannel = null;
+            }
+        }
+
+        // stops writing for the given time, returns false when there is nothing to wait for
+        private boolean pause(long waitNanos) {
+            if (waitNanos <= 0) {
+                return false;
+            }
+
+            throttled = true;
+            key.interestOps(0);
+            loop.schedule(this::resume, waitNanos);
+            return true;
+        }
+
+        private void resume() {
+            throttled = false;
+            if (!channel.isOpen()) {
+                return;
+            }
+
+            try {
+                key.interestOps(SelectionKey.OP_WRITE);
+                this.onWritable();
+            } catch (IOException | CancelledKeyException e) {
+                this.close();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                this.close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            peer.getOpenConnections().decrement();
+            upload.close();
+            try {
+                this.closeBody();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static ByteBuffer encode(ReplyWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        writer.write(new DataOutputStream(bytes));
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Decodes one command with its arguments in the same format {@link DataInputStream} reads them.
+     *
+     * @return null, with the buffer position untouched, when the command is not complete yet
+     */
+    private static Request parse(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        String command = readUTF(buffer);
+
+        if (command == null) {
+            return null;
+        }
+
+        Request request = switch (command) {
+            case "DOYOUHAVE", "DOWNLOAD", "MANIFEST" -> {
+                String fileName = readUTF(buffer);
+                yield fileName == null ? null : new Request(command, fileName, 0, 0);
+            }
+            case "DOWNLOADRANGE", "DOWNLOADRANGEZ" -> {
+                String fileName = readUTF(buffer);
+                yield fileName == null || buffer.remaining() < 16
+                        ? null
+                        : new Request(command, fileName, buffer.getLong(), buffer.getLong());
+            }
+            default -> new Request(command, null, 0, 0);
+        };
+
+        if (request == null) {
+            buffer.position(start);
+        }
+
+        return request;
+    }
+
+    private static String readUTF(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+
+        int length = 2 + (buffer.getShort(buffer.position()) & 0xFFFF);
+        if (buffer.remaining() < length) {
+            return null;
+        }
+
+        String value = DataInputStream.readUTF(new DataInputStream(
+                new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), length)));
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
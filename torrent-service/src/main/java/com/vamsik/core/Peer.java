@@ -1,19 +1,46 @@
 package com.vamsik.core;
 
+import com.vamsik.metrics.Counter;
+import com.vamsik.metrics.LatencyHistogram;
+import com.vamsik.metrics.Metrics;
+import com.vamsik.protocol.ContentKey;
 import com.vamsik.utils.Config;
 import com.vamsik.utils.FileUtils;
+import com.vamsik.utils.Threads;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 public class Peer extends Thread {
     private static final Logger logger = Logger.getLogger(Peer.class.getName());
+    static final Counter UPLOADED_BYTES = Metrics.counter("peer_upload_bytes_total", "File bytes sent to other peers");
+    static final LatencyHistogram UPLOAD_LATENCY = Metrics.histogram("peer_upload_seconds", "Time to send one file body or piece, throttling included");
     private final String discoveryHost;
     private final int discoveryPort;
 
@@ -21,7 +48,16 @@ public class Peer extends Thread {
     private final String sharedDirectory;
 
     private ServerSocket server;
+    private volatile NioPeerServer nioServer;
+    private volatile DiscoveryCluster cluster;
+    private final List<DiscoverySession> discoverySessions = new CopyOnWriteArrayList<>();
+    private volatile SharedIndex sharedIndex;
+    private volatile ManifestStore manifestStore;
+    private final HotFileCache hotFiles = new HotFileCache(Config.HOT_CACHE_BYTES);
+    private final PieceCompressor compressor = new PieceCompressor(Config.COMPRESSION_CACHE_BYTES, hotFiles);
+    private final UploadThrottle uploadThrottle = new UploadThrottle(Config.UPLOAD_RATE, Config.UPLOAD_CONNECTION_RATE);
     private volatile boolean running = true;
+    private final LongAdder openConnections = new LongAdder();
 
     public Peer(String disHost, int disPort, int port, String dirName) {
         this.discoveryHost = disHost;
@@ -61,6 +97,15 @@ public class Peer extends Thread {
             if (server != null && !server.isClosed()) {
                 server.close();  // This will cause server.accept() to throw an exception
             }
+            if (nioServer != null) {
+                nioServer.close();
+            }
+            if (sharedIndex != null) {
+                sharedIndex.close();
+            }
+            for (DiscoverySession session : discoverySessions) {
+                session.close();
+            }
             logger.info("Disconnecting from peer...");
             this.interrupt();  // Interrupt the thread if it's blocked elsewhere
             this.join(1000);   // Wait for thread to finish
@@ -72,39 +117,242 @@ public class Peer extends Thread {
         }
     }
 
-    private void registerWithDiscovery() {
-        try (Socket sock = new Socket(this.discoveryHost, this.discoveryPort);
-             DataOutputStream dos = new DataOutputStream(sock.getOutputStream());
-             DataInputStream dis = new DataInputStream(sock.getInputStream())
-        ) {
+    /**
+     * Keeps one connection to a discovery node open for as long as the peer runs: registers the
+     * shared files the node is responsible for, then sends ANNOUNCE/WITHDRAW for files that come
+     * and go, DIGESTS once their content is hashed, and renews the lease with HEARTBEAT when there
+     * is nothing else to send. The
+     * registration is dropped by the node when this connection closes, so it reconnects and
+     * registers again after any failure. Every node has a session of its own, a node that is down
+     * does not hold up the others.
+     */
+    private class DiscoverySession implements Runnable {
+        private final InetSocketAddress node;
+        private final BlockingQueue<FileDelta> pendingDeltas = new LinkedBlockingQueue<>();
+        private volatile Socket socket;
+
+        DiscoverySession(InetSocketAddress node) {
+            this.node = node;
+        }
+
+        // keeps only the files this node is responsible for
+        void offer(FileDelta delta) {
+            if (delta.resync()) {
+                pendingDeltas.add(delta);
+                return;
+            }
+
+            Set<String> added = this.responsibleFor(delta.added());
+            Set<String> removed = this.responsibleFor(delta.removed());
+            Set<String> changed = this.responsibleFor(delta.changed());
+            Set<String> hashed = this.responsibleFor(delta.hashed());
+
+            if (!added.isEmpty() || !removed.isEmpty() || !changed.isEmpty() || !hashed.isEmpty()) {
+                pendingDeltas.add(new FileDelta(added, removed, changed, false, hashed));
+            }
+        }
+
+        private Set<String> responsibleFor(Collection<String> files) {
+            Set<String> result = new HashSet<>();
+            for (String file : files) {
+                if (cluster.isResponsible(node, file)) {
+                    result.add(file);
+                }
+            }
+            return result;
+        }
+
+        void close() throws IOException {
+            Socket sock = socket;
+            if (sock != null) {
+                sock.close(); // the node drops our registration right away
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try (Socket sock = new Socket(node.getHostString(), node.getPort());
+                     DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+                     DataInputStream dis = new DataInputStream(sock.getInputStream())
+                ) {
+                    socket = sock;
+                    logger.info("Connected to Discovery Service " + node);
+
+                    String host = Config.IS_DEBUG
+                            ? sock.getInetAddress().getHostAddress()
+                            : InetAddress.getLocalHost().getHostAddress();
+
+                    while (running) {
+                        // the full list sent by REGISTER already covers every change queued so far
+                        pendingDeltas.clear();
+                        long heartbeatMillis = this.registerWithDiscovery(dos, dis, host);
+
+                        // until the discovery service no longer knows us, then register again
+                        while (running && this.sendNextUpdate(dos, dis, host, heartbeatMillis)) {
+                            // keep going
+                        }
+
+                        logger.info("Discovery Service lost our registration, registering again");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (running) {
+                        logger.info("Discovery service " + node + " is not reachable, retrying in " + Config.DISCOVERY_RETRY_MILLIS + " ms");
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+
+                try {
+                    Thread.sleep(Config.DISCOVERY_RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Waits up to one heartbeat interval for changes in the shared directory and sends them, or a
+         * HEARTBEAT when nothing changed.
+         *
+         * @return false when the registration has to be sent again
+         */
+        private boolean sendNextUpdate(DataOutputStream dos, DataInputStream dis, String host, long heartbeatMillis) throws IOException, InterruptedException {
+            FileDelta delta = pendingDeltas.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+
+            if (delta == null) {
+                dos.writeUTF("HEARTBEAT");
+                dos.writeUTF(host);
+                dos.writeInt(serverPort);
+                dos.flush();
+
+                return dis.readUTF().equals("OK");
+            }
+
+            // whatever queued up meanwhile goes along, hashing a full directory is one batch or a few
+            for (FileDelta later; (later = pendingDeltas.poll()) != null; ) {
+                delta = delta.followedBy(later);
+            }
+
+            if (delta.resync()) {
+                return false;
+            }
+
+            // announcing a changed file again replaces its size, and drops its old digest until rehashed
+            Set<String> announced = new LinkedHashSet<>(delta.added());
+            announced.addAll(delta.changed());
+
+            Set<String> hashed = new LinkedHashSet<>(announced);
+            hashed.addAll(delta.hashed());
+            hashed.removeAll(delta.removed());
+
+            return this.sendFileChanges(dos, dis, host, "ANNOUNCE2", announced)
+                    && this.sendFileChanges(dos, dis, host, "WITHDRAW", delta.removed())
+                    && this.sendDigests(dos, dis, host, hashed);
+        }
+
+        // the digests of those files that are hashed, the others follow once they are
+        private boolean sendDigests(DataOutputStream dos, DataInputStream dis, String host, Collection<String> files) throws IOException {
+            Map<String, String> digests = new LinkedHashMap<>();
+            for (String file : files) {
+                String digest = manifestStore.digestOf(file);
+                if (digest != null) {
+                    digests.put(file, digest);
+                }
+            }
+
+            if (digests.isEmpty()) {
+                return true;
+            }
 
-            logger.info("Connected to Discovery Service");
+            dos.writeUTF("DIGESTS");
+            dos.writeUTF(host);
+            dos.writeInt(serverPort);
+            dos.writeInt(digests.size());
+            for (Map.Entry<String, String> digest : digests.entrySet()) {
+                dos.writeUTF(digest.getKey());
+                dos.writeUTF(digest.getValue());
+            }
+            dos.flush();
 
-            dos.writeUTF("REGISTER");
+            return dis.readUTF().equals("OK");
+        }
 
-            if (Config.IS_DEBUG) {
-                dos.writeUTF(sock.getInetAddress().getHostAddress());
-            } else {
-                dos.writeUTF(InetAddress.getLocalHost().getHostAddress());
+        private boolean sendFileChanges(DataOutputStream dos, DataInputStream dis, String host, String command, Collection<String> files) throws IOException {
+            if (files.isEmpty()) {
+                return true;
             }
 
-            dos.writeInt(this.serverPort);
+            logger.info(command + " " + files.size() + " files to Discovery Service " + node);
 
-            String[] files = FileUtils.walkDirectory(sharedDirectory);
-            dos.writeInt(files.length); // send the length of the file list
+            dos.writeUTF(command);
+            dos.writeUTF(host);
+            dos.writeInt(serverPort);
+            dos.writeInt(files.size());
 
             for (String file : files) {
                 dos.writeUTF(file);
+                if (command.equals("ANNOUNCE2")) {
+                    SharedIndex.SharedFile shared = sharedIndex.get(file);
+                    dos.writeLong(shared != null ? shared.size() : 0); // removed again, the next batch withdraws it
+                }
+            }
+
+            dos.flush();
+
+            return dis.readUTF().equals("OK");
+        }
+
+        // sends the full file list and the digests known so far, returns how often the lease has to be renewed
+        private long registerWithDiscovery(DataOutputStream dos, DataInputStream dis, String host) throws IOException {
+            dos.writeUTF("REGISTER2");
+            dos.writeUTF(host);
+            dos.writeInt(serverPort);
+
+            List<SharedIndex.SharedFile> files = new ArrayList<>();
+            for (SharedIndex.SharedFile file : sharedIndex.getFiles()) {
+                if (cluster.isResponsible(node, file.name())) {
+                    files.add(file);
+                }
+            }
+            dos.writeInt(files.size()); // send the length of the file list
+
+            for (SharedIndex.SharedFile file : files) {
+                dos.writeUTF(file.name());
+                dos.writeLong(file.size());
             }
 
             dos.flush();
 
             String response = dis.readUTF();
-            logger.info("Discovery Service Response: " + response);
-        } catch (EOFException | SocketException e) {
-            logger.info("Discovery service is not running. Please start it first.");
-        } catch (Exception e) {
-            e.printStackTrace();
+            int leaseSeconds = dis.readInt();
+            logger.info("Discovery Service " + node + " Response: " + response + ", lease " + leaseSeconds + "s");
+
+            // the files hashed so far, the others follow as they are
+            if (!this.sendDigests(dos, dis, host, files.stream().map(SharedIndex.SharedFile::name).toList())) {
+                throw new IOException("Discovery Service " + node + " lost our registration right away");
+            }
+
+            // renewing three times per lease so a single lost heartbeat does not expire us
+            return Math.max(1000, leaseSeconds * 1000L / 3);
+        }
+    }
+
+    private void onSharedFilesChanged(FileDelta delta) {
+        for (DiscoverySession session : discoverySessions) {
+            session.offer(delta);
+        }
+        delta.added().forEach(manifestStore::refresh);
+        delta.changed().forEach(manifestStore::refresh);
+    }
+
+    // the discovery nodes learn the digest of a file once it is hashed
+    private void onFileHashed(String fileName) {
+        FileDelta delta = new FileDelta(Set.of(), Set.of(), Set.of(), false, Set.of(fileName));
+        for (DiscoverySession session : discoverySessions) {
+            session.offer(delta);
         }
     }
 
@@ -113,12 +361,41 @@ public class Peer extends Thread {
         // creating directory if not exists
         FileUtils.createFolder(sharedDirectory);
 
+        // every lookup of a shared file goes through the index, which follows the tree from now on
+        sharedIndex = new SharedIndex(Path.of(sharedDirectory), Config.ANNOUNCE_BATCH_MILLIS, this::onSharedFilesChanged);
+        manifestStore = new ManifestStore(sharedDirectory, sharedIndex, this::onFileHashed);
+        sharedIndex.start();
+
+        // hashing shared files in the background so manifests are ready when clients ask for them
+        manifestStore.refreshAll();
+
         // for handling clients
-        ExecutorService executorService = Executors.newFixedThreadPool(10);
-        executorService.execute(this::registerWithDiscovery);
+        ExecutorService executorService = Threads.newConnectionExecutor(10);
+        // labelled by port, several peers may share a process
+        Metrics.gauge("peer_connections_open", "Connections from other peers being served", openConnections::sum, "port", String.valueOf(serverPort));
+        Threads.monitor("peer-" + serverPort, executorService);
+
+        cluster = DiscoveryCluster.of(Config.DISCOVERY_NODES, discoveryHost, discoveryPort, Config.DISCOVERY_REPLICAS);
+        for (InetSocketAddress node : cluster.getNodes()) {
+            DiscoverySession session = new DiscoverySession(node);
+            discoverySessions.add(session);
+
+            Thread discoveryThread = new Thread(session, "discovery-session-" + node);
+            discoveryThread.setDaemon(true);
+            discoveryThread.start();
+        }
 
         try {
-            server = new ServerSocket(this.serverPort);
+            if ("nio".equalsIgnoreCase(Config.SERVER_ENGINE)) {
+                nioServer = new NioPeerServer(this, this.serverPort, Config.NIO_LOOPS);
+                logger.info("Peer server (nio) started on " + this.serverPort);
+                nioServer.run();
+                return;
+            }
+
+            // opening through a channel so that accepted sockets expose a SocketChannel for zero-copy sends
+            server = ServerSocketChannel.open().socket();
+            server.bind(new InetSocketAddress(this.serverPort));
             logger.info("Peer server started on " + this.serverPort);
 
             while (running) {
@@ -140,13 +417,17 @@ public class Peer extends Thread {
             e.printStackTrace();
         } finally {
             executorService.shutdown();
+            manifestStore.shutdown();
         }
     }
 
     private void handleMessages(Socket sock) {
+        openConnections.increment();
 
         try (DataInputStream ds = new DataInputStream(sock.getInputStream());
-             DataOutputStream dos = new DataOutputStream(sock.getOutputStream())) {
+             // buffered, every reply is flushed before a file body goes out on the raw channel
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+             UploadThrottle.Upload upload = uploadThrottle.open(1)) {
 
             label:
             while (true) {
@@ -158,13 +439,35 @@ public class Peer extends Thread {
                         break label;
                     case "DOYOUHAVE": {
                         String fileName = ds.readUTF();
-                        boolean hasFile = FileUtils.checkFile(sharedDirectory, fileName);
-                        this.sendMessage(dos, hasFile ? "YES" : "NO");
+                        this.sendMessage(dos, this.hasFile(fileName) ? "YES" : "NO");
                         break;
                     }
                     case "DOWNLOAD": {
                         String fileName = ds.readUTF();
-                        this.sendFile(dos, fileName);
+                        this.sendFile(sock, dos, upload, fileName);
+                        break;
+                    }
+                    case "DOWNLOADRANGE": {
+                        String fileName = ds.readUTF();
+                        long offset = ds.readLong();
+                        long length = ds.readLong();
+                        this.sendFileRange(sock, dos, upload, fileName, offset, length);
+                        break;
+                    }
+                    case "DOWNLOADRANGEZ": {
+                        String fileName = ds.readUTF();
+                        long offset = ds.readLong();
+                        long length = ds.readLong();
+                        this.sendCompressedRange(sock, dos, upload, fileName, offset, length);
+                        break;
+                    }
+                    case "COMPRESSION":
+                        // older peers answer OK here, which tells the client to stick to DOWNLOADRANGE
+                        this.sendMessage(dos, "DEFLATE");
+                        break;
+                    case "MANIFEST": {
+                        String fileName = ds.readUTF();
+                        this.sendManifest(dos, fileName);
                         break;
                     }
                     case "LIST": {
@@ -183,6 +486,7 @@ public class Peer extends Thread {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            openConnections.decrement();
             try {
                 sock.close();
             } catch (Exception e) {
@@ -191,13 +495,65 @@ public class Peer extends Thread {
         }
     }
 
-    private void handleAllFilesRequest(DataOutputStream dos) {
+    // mapped files shared by every connection, the nio engine serves from them too
+    HotFileCache getHotFiles() {
+        return hotFiles;
+    }
+
+    // connections served by the nio engine, counted along with the blocking ones
+    LongAdder getOpenConnections() {
+        return openConnections;
+    }
+
+    /**
+     * The upload limits of this peer, they can be changed while transfers are running.
+     */
+    public UploadThrottle getUploadThrottle() {
+        return uploadThrottle;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    /**
+     * @return how many files this peer shares, 0 until the shared directory was scanned
+     */
+    public int getSharedFileCount() {
+        SharedIndex index = sharedIndex;
+        return index == null ? 0 : index.size();
+    }
+
+    boolean hasFile(String fileName) {
+        return this.resolve(fileName) != null;
+    }
+
+    /**
+     * @return the path of a shared file with the given content digest, or null when there is none
+     */
+    public Path findContent(String digest) {
+        ManifestStore store = manifestStore;
+        SharedIndex.SharedFile file = store == null ? null : store.findByDigest(digest);
+        return file == null ? null : file.path();
+    }
+
+    // a shared file by name, or by content for a ContentKey, whatever it is called here
+    private SharedIndex.SharedFile resolve(String fileName) {
+        String digest = ContentKey.digestOf(fileName);
+        if (digest == null) {
+            return sharedIndex.get(fileName);
+        }
+        ManifestStore store = manifestStore;
+        return store == null ? null : store.findByDigest(digest);
+    }
+
+    void handleAllFilesRequest(DataOutputStream dos) {
         try {
-            String[] files = FileUtils.walkDirectory(sharedDirectory);
-            dos.writeInt(files.length); // send the length of the file list
+            List<SharedIndex.SharedFile> files = List.copyOf(sharedIndex.getFiles());
+            dos.writeInt(files.size()); // send the length of the file list
 
-            for (String file : files) {
-                dos.writeUTF(file);
+            for (SharedIndex.SharedFile file : files) {
+                dos.writeUTF(file.name());
             }
 
             dos.flush();
@@ -206,38 +562,236 @@ public class Peer extends Thread {
         }
     }
 
-    private void sendMessage(DataOutputStream dos, String message) {
+    // replies YES followed by the piece hashes of the file, or NO when the file is not shared or
+    // is still being hashed; the wait stays well below the client's read timeout
+    void sendManifest(DataOutputStream dos, String fileName) {
         try {
-            dos.writeUTF(message);
+            SharedIndex.SharedFile file = this.resolve(fileName);
+            PieceManifest manifest = file != null
+                    ? manifestStore.get(file.name(), Config.PEER_TIMEOUT_MILLIS / 3)
+                    : null;
+
+            if (manifest == null) {
+                this.sendMessage(dos, "NO");
+                return;
+            }
+
+            dos.writeUTF("YES");
+            manifest.write(dos);
             dos.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private void sendFile(DataOutputStream dos, String fileName) {
+    void sendMessage(DataOutputStream dos, String message) {
         try {
-            String fullPath = FileUtils.getFullPath(sharedDirectory, fileName);
-            long fileSize = FileUtils.getFileSize(sharedDirectory, fileName);
+            dos.writeUTF(message);
+            dos.flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // once a header went out the client waits for exactly that many body bytes, so a body that
+    // fails halfway is thrown up to handleMessages, which closes the connection like the nio engine
+    private void sendFile(Socket sock, DataOutputStream dos, UploadThrottle.Upload upload, String fileName) throws IOException {
+        FileRange range = this.writeFileHeader(dos, fileName);
+        dos.flush();
+
+        logger.info("Sending file: " + fileName + " of size: " + range.count());
+        this.sendBytes(sock, dos, upload, range);
+    }
+
+    private void sendFileRange(Socket sock, DataOutputStream dos, UploadThrottle.Upload upload, String fileName, long offset, long length) throws IOException {
+        FileRange range = this.writeRangeHeader(dos, fileName, offset, length);
+        dos.flush();
+
+        logger.info("Sending range of file: " + fileName + " [" + range.offset() + ", " + (range.offset() + range.count()) + ")");
+        this.sendBytes(sock, dos, upload, range);
+    }
+
+    private void sendCompressedRange(Socket sock, DataOutputStream dos, UploadThrottle.Upload upload, String fileName, long offset, long length) throws IOException {
+        // built apart from the connection's stream, whose size() stops counting at 2 GiB
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        FileRange raw = this.writeCompressedRange(new DataOutputStream(reply), fileName, offset, length);
+
+        if (raw == null) {
+            // the deflated piece goes out in one write and is paid for as a whole, as in the nio engine
+            upload.acquire(reply.size());
+        }
+        reply.writeTo(dos);
+        dos.flush();
+
+        if (raw != null) {
+            this.sendBytes(sock, dos, upload, raw);
+        } else {
+            UPLOADED_BYTES.add(reply.size());
+        }
+    }
+
+    // the DOWNLOADRANGEZ reply is the DOWNLOADRANGE header and an encoding byte, followed by the
+    // deflated length and bytes, or by the raw body which is left to the caller to send
+    FileRange writeCompressedRange(DataOutputStream dos, String fileName, long offset, long length) throws IOException {
+        FileRange range = this.writeRangeHeader(dos, fileName, offset, length);
+        PieceCompressor.Encoded encoded = compressor.encode(range);
+
+        if (!encoded.isCompressed()) {
+            dos.writeByte(PieceCompressor.RAW);
+            return range;
+        }
+
+        dos.writeByte(PieceCompressor.DEFLATE);
+        dos.writeInt(encoded.length());
+        dos.write(encoded.data(), 0, encoded.length());
+        return null;
+    }
+
+    // the DOWNLOAD reply header is the filename and fileSize, followed by the whole file; a file
+    // that is not shared has size 0, only names in the index can ever be opened
+    FileRange writeFileHeader(DataOutputStream dos, String fileName) throws IOException {
+        SharedIndex.SharedFile file = this.resolve(fileName);
+        long fileSize = file != null ? file.size() : 0;
+
+        dos.writeUTF(fileName);
+        dos.writeLong(fileSize);
 
-            // send the filename and fileSize first
-            dos.writeUTF(fileName);
-            dos.writeLong(fileSize);
+        return new FileRange(file, 0, fileSize);
+    }
+
+    // replies with fileName, fileSize, offset and the number of bytes that follow, so the client
+    // knows exactly where the body ends and can keep using the connection afterwards
+    FileRange writeRangeHeader(DataOutputStream dos, String fileName, long offset, long length) throws IOException {
+        SharedIndex.SharedFile file = this.resolve(fileName);
+        long fileSize = file != null ? file.size() : 0;
+
+        long start = Math.max(0, Math.min(offset, fileSize));
+        long count = Math.max(0, Math.min(length, fileSize - start));
+
+        dos.writeUTF(fileName);
+        dos.writeLong(fileSize);
+        dos.writeLong(start);
+        dos.writeLong(count);
+
+        return new FileRange(file, start, count);
+    }
+
+    private void sendBytes(Socket sock, DataOutputStream dos, UploadThrottle.Upload upload, FileRange range) throws IOException {
+        if (range.count() == 0) {
+            return;
+        }
+
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        long start = System.nanoTime();
+
+        this.writeBody(sock, dos, upload, range);
+
+        UPLOAD_LATENCY.recordSince(start);
+        event.finish(TransferEvent.UPLOAD, range.file().name(), sock.getRemoteSocketAddress(), range.count());
+    }
+
+    private void writeBody(Socket sock, DataOutputStream dos, UploadThrottle.Upload upload, FileRange range) throws IOException {
+        SocketChannel socketChannel = sock.getChannel();
+
+        try (HotFileCache.Lease lease = hotFiles.acquire(range.file())) {
+            if (lease != null) {
+                this.sendMapped(lease.slice(range.offset(), range.count()), dos, socketChannel, upload);
+                return;
+            }
+        }
+
+        if (Config.ZERO_COPY && socketChannel != null) {
+            this.transferFile(range.path(), range.offset(), range.count(), socketChannel, upload);
+            return;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(range.path().toFile(), "r")) {
+            file.seek(range.offset());
+
+            byte[] buffer = new byte[4096]; // 4KB chunks
+            long remaining = range.count();
+            int bytesRead;
+
+            while (remaining > 0 && (bytesRead = file.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                upload.acquire(bytesRead);
+                dos.write(buffer, 0, bytesRead);
+                dos.flush(); // ensure the chunk is actually sent
+                UPLOADED_BYTES.add(bytesRead);
+                remaining -= bytesRead;
+            }
+
+            if (remaining > 0) {
+                throw new IOException("File truncated while sending");
+            }
+        }
+    }
+
+    // every connection sends a popular file from the same mapped pages instead of reading it again
+    private void sendMapped(ByteBuffer body, DataOutputStream dos, SocketChannel socketChannel, UploadThrottle.Upload upload) throws IOException {
+        byte[] buffer = socketChannel == null ? new byte[Math.min(body.remaining(), 64 * 1024)] : null;
+
+        while (body.hasRemaining()) {
+            int chunk = Math.min(body.remaining(), upload.chunkSize());
+            upload.acquire(chunk);
+
+            if (socketChannel != null) {
+                ByteBuffer piece = body.slice(body.position(), chunk);
+                while (piece.hasRemaining()) {
+                    writeMapped(socketChannel, piece);
+                }
+                body.position(body.position() + chunk);
+                UPLOADED_BYTES.add(chunk);
+                continue;
+            }
+
+            for (int end = body.position() + chunk; body.position() < end; ) {
+                int length = Math.min(buffer.length, end - body.position());
+                try {
+                    body.get(buffer, 0, length);
+                } catch (InternalError e) {
+                    // the JDK reports a page of a truncated file this way
+                    throw new IOException("File truncated while sending", e);
+                }
+                dos.write(buffer, 0, length);
+            }
             dos.flush();
+            UPLOADED_BYTES.add(chunk);
+        }
+    }
 
-            try (FileInputStream fileInputStream = new FileInputStream(fullPath)) {
-                logger.info("Sending file: " + fileName + " of size: " + fileSize);
+    static int writeMapped(WritableByteChannel channel, ByteBuffer mapped) throws IOException {
+        try {
+            return channel.write(mapped);
+        } catch (InternalError e) {
+            // the JDK reports a page of a truncated file this way
+            throw new IOException("File truncated while sending", e);
+        }
+    }
 
-                byte[] buffer = new byte[4096]; // 4KB chunks
-                int bytesRead;
+    // lets the kernel move the file straight onto the socket (sendfile) instead of copying it through the heap
+    private void transferFile(Path filePath, long offset, long count, SocketChannel socketChannel, UploadThrottle.Upload upload) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long position = offset;
+            long end = offset + count;
 
-                while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                    dos.write(buffer, 0, bytesRead);
-                    dos.flush(); // ensure the chunk is actually sent
+            while (position < end) {
+                // sent chunk by chunk so the throttle can interleave this upload with the others
+                long chunk = Math.min(end - position, upload.chunkSize());
+                upload.acquire(chunk);
+
+                long sent = fileChannel.transferTo(position, chunk, socketChannel);
+
+                if (sent <= 0 && position >= fileChannel.size()) {
+                    // the file shrank while we were sending it, the client can not stay in sync
+                    throw new IOException("File truncated while sending: " + filePath.getFileName());
                 }
+
+                position += sent;
+                UPLOADED_BYTES.add(sent);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
     }
 }
@@ -0,0 +1,220 @@
+package com.vamsik.core;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A client side connection to another peer's server, or to the discovery service. Wraps the
+ * socket and its data streams and speaks the commands understood by {@link Peer}; connections
+ * are reused across tasks through a {@link ConnectionPool}.
+ */
+public class PeerConnection implements Closeable {
+    private final InetSocketAddress address;
+    private final Socket socket;
+    private final DataInputStream dis;
+    private final DataOutputStream dos;
+    private volatile long idleSince = System.nanoTime();
+    // set once the peer agreed to send deflated pieces
+    private boolean deflate;
+    private Inflater inflater;
+    private byte[] compressed;
+
+    public PeerConnection(InetSocketAddress address, int timeoutMillis) throws IOException {
+        this.address = address;
+        this.socket = new Socket();
+        this.socket.connect(address, timeoutMillis);
+        this.socket.setSoTimeout(timeoutMillis);
+        this.dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public DataInputStream getInput() {
+        return dis;
+    }
+
+    public DataOutputStream getOutput() {
+        return dos;
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    long getIdleSince() {
+        return idleSince;
+    }
+
+    void markIdle() {
+        idleSince = System.nanoTime();
+    }
+
+    /**
+     * Round trip used as a health check. Peers answer commands they do not know with OK and the
+     * discovery service answers PING with PONG, any reply proves the connection still works.
+     */
+    public void ping() throws IOException {
+        dos.writeUTF("PING");
+        dos.flush();
+        dis.readUTF();
+    }
+
+    /**
+     * Asks the peer to send pieces deflated from now on. Peers without compression answer OK and
+     * keep getting plain DOWNLOADRANGE requests.
+     *
+     * @return whether the peer agreed
+     */
+    public boolean negotiateCompression() throws IOException {
+        if (!deflate) {
+            dos.writeUTF("COMPRESSION");
+            dos.flush();
+            deflate = dis.readUTF().equals("DEFLATE");
+        }
+        return deflate;
+    }
+
+    public boolean hasFile(String fileName) throws IOException {
+        dos.writeUTF("DOYOUHAVE");
+        dos.writeUTF(fileName);
+        dos.flush();
+
+        return dis.readUTF().equalsIgnoreCase("YES");
+    }
+
+    /**
+     * @return the piece hashes of the remote file, or null when the peer does not share it
+     */
+    public PieceManifest requestManifest(String fileName) throws IOException {
+        dos.writeUTF("MANIFEST");
+        dos.writeUTF(fileName);
+        dos.flush();
+
+        if (!dis.readUTF().equalsIgnoreCase("YES")) {
+            return null;
+        }
+
+        return PieceManifest.read(dis);
+    }
+
+    /**
+     * Sends an uncompressed DOWNLOADRANGE request and reads the reply header. The caller must then
+     * read exactly {@code length} body bytes from {@link #getInput()}.
+     *
+     * @return the total size of the remote file
+     */
+    public long requestRange(String fileName, long offset, long length) throws IOException {
+        this.writeRangeRequest("DOWNLOADRANGE", fileName, offset, length);
+        dos.flush();
+
+        return this.readRangeHeader(fileName, offset, length, false);
+    }
+
+    /**
+     * Queues a range request without flushing, so several can be pipelined. It asks for a
+     * deflated reply once {@link #negotiateCompression} succeeded. The replies arrive in request
+     * order and are read with {@link #readRangeReply} and {@link #readRangeBody}.
+     */
+    public void sendRangeRequest(String fileName, long offset, long length) throws IOException {
+        this.writeRangeRequest(deflate ? "DOWNLOADRANGEZ" : "DOWNLOADRANGE", fileName, offset, length);
+    }
+
+    private void writeRangeRequest(String command, String fileName, long offset, long length) throws IOException {
+        dos.writeUTF(command);
+        dos.writeUTF(fileName);
+        dos.writeLong(offset);
+        dos.writeLong(length);
+    }
+
+    /**
+     * @return the total size of the remote file
+     */
+    public long readRangeReply(String fileName, long offset, long length) throws IOException {
+        return this.readRangeHeader(fileName, offset, length, deflate);
+    }
+
+    private long readRangeHeader(String fileName, long offset, long length, boolean compressedBody) throws IOException {
+        dis.readUTF(); // file name
+        long fileSize = dis.readLong();
+        long start = dis.readLong();
+        long count = dis.readLong();
+
+        if (start != offset || count != length) {
+            // skip whatever was sent so the connection stays in sync, a compressed body can not be
+            // skipped without decoding it and leaves the connection unusable
+            if (!compressedBody) {
+                dis.skipNBytes(count);
+            }
+            throw new IOException("Peer " + address + " answered with range [" + start + ", " + (start + count) + ") of " + fileName);
+        }
+
+        return fileSize;
+    }
+
+    /**
+     * Reads the body of the range reply whose header {@link #readRangeReply} just read, inflating
+     * it when the peer sent it deflated.
+     */
+    public void readRangeBody(byte[] buffer, int length) throws IOException {
+        if (!deflate || dis.readByte() == PieceCompressor.RAW) {
+            dis.readFully(buffer, 0, length);
+            return;
+        }
+
+        int compressedLength = dis.readInt();
+        if (compressedLength < 0 || compressedLength > length) {
+            throw new IOException("Peer " + address + " sent " + compressedLength + " compressed bytes for a " + length + " byte piece");
+        }
+
+        if (compressed == null || compressed.length < compressedLength) {
+            compressed = new byte[length];
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        dis.readFully(compressed, 0, compressedLength);
+
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+
+        try {
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(buffer, inflated, length - inflated);
+                if (count == 0 && inflater.needsInput()) {
+                    break;
+                }
+                inflated += count;
+            }
+
+            if (inflated != length || !inflater.finished()) {
+                throw new IOException("Peer " + address + " sent a piece that inflates to " + inflated + " instead of " + length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Peer " + address + " sent a corrupt compressed piece", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (inflater != null) {
+                inflater.end();
+            }
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address.getHostString() + ":" + address.getPort();
+    }
+}
@@ -0,0 +1,170 @@
+package com.vamsik.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates pieces for DOWNLOADRANGEZ. A piece is only compressed when deflating a small sample
+ * of it pays off, so media and archives are sent as they are without compressing them in full.
+ * Results are kept in an LRU cache keyed by the file's size and modification time, which spares
+ * popular files from being compressed again for every peer that asks.
+ */
+class PieceCompressor {
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+
+    // bytes of a piece that are deflated first to decide whether the rest is worth it
+    private static final int SAMPLE_BYTES = 16 * 1024;
+    // the sample must shrink below this fraction of its size for the piece to be compressed
+    private static final double SAMPLE_RATIO = 0.9;
+    // the whole piece is sent raw anyway unless it shrank below this fraction
+    private static final double PIECE_RATIO = 0.95;
+    // ranges larger than this are never compressed, they would have to be held in memory
+    private static final int MAX_RANGE_BYTES = 8 * 1024 * 1024;
+    // what a cached decision costs besides the compressed bytes
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private record Key(Path path, long offset, long length, long fileSize, long modified) {
+    }
+
+    /**
+     * The deflated bytes of a piece, or {@code data == null} when the piece is sent raw.
+     */
+    record Encoded(byte[] data, int length) {
+        static final Encoded UNCOMPRESSED = new Encoded(null, 0);
+
+        boolean isCompressed() {
+            return data != null;
+        }
+    }
+
+    private final long cacheBudget;
+    private final HotFileCache hotFiles;
+    // a lock rather than synchronized, the blocking server may run on virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Key, Encoded> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    PieceCompressor(long cacheBudget, HotFileCache hotFiles) {
+        this.cacheBudget = cacheBudget;
+        this.hotFiles = hotFiles;
+    }
+
+    Encoded encode(FileRange range) throws IOException {
+        if (range.count() == 0 || range.count() > MAX_RANGE_BYTES) {
+            return Encoded.UNCOMPRESSED;
+        }
+
+        Key key = new Key(range.path(), range.offset(), range.count(), range.file().size(), range.file().modified());
+
+        lock.lock();
+        try {
+            Encoded cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Encoded encoded = compress(this.read(range));
+        this.remember(key, encoded);
+        return encoded;
+    }
+
+    private byte[] read(FileRange range) throws IOException {
+        byte[] bytes = new byte[(int) range.count()];
+
+        try (HotFileCache.Lease lease = hotFiles.acquire(range.file())) {
+            if (lease != null) {
+                try {
+                    lease.slice(range.offset(), range.count()).get(bytes);
+                } catch (InternalError e) {
+                    // the JDK reports a page of a truncated file this way
+                    throw new IOException("File truncated while compressing", e);
+                }
+                return bytes;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        try (FileChannel channel = FileChannel.open(range.path(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, range.offset() + buffer.position()) == -1) {
+                    throw new IOException("File truncated while compressing");
+                }
+            }
+        }
+
+        return bytes;
+    }
+
+    private static Encoded compress(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            if (raw.length > SAMPLE_BYTES) {
+                int sampled = deflate(deflater, raw, SAMPLE_BYTES, new byte[SAMPLE_BYTES]);
+                if (sampled < 0 || sampled > SAMPLE_BYTES * SAMPLE_RATIO) {
+                    return Encoded.UNCOMPRESSED;
+                }
+                deflater.reset();
+            }
+
+            int limit = (int) (raw.length * PIECE_RATIO);
+            byte[] out = new byte[limit];
+            int length = deflate(deflater, raw, raw.length, out);
+
+            return length < 0 ? Encoded.UNCOMPRESSED : new Encoded(Arrays.copyOf(out, length), length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // deflates the first count bytes into out, -1 when they do not fit
+    private static int deflate(Deflater deflater, byte[] raw, int count, byte[] out) {
+        deflater.setInput(raw, 0, count);
+        deflater.finish();
+
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                return -1;
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+
+        return length;
+    }
+
+    private void remember(Key key, Encoded encoded) {
+        long cost = ENTRY_OVERHEAD + encoded.length();
+        if (cost > cacheBudget) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (cache.put(key, encoded) == null) {
+                cachedBytes += cost;
+            }
+
+            Iterator<Map.Entry<Key, Encoded>> eldest = cache.entrySet().iterator();
+            while (cachedBytes > cacheBudget && eldest.hasNext()) {
+                cachedBytes -= ENTRY_OVERHEAD + eldest.next().getValue().length();
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
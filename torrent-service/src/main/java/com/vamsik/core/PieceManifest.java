@@ -0,0 +1,128 @@
+package com.vamsik.core;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * SHA-256 digests of a shared file: one for the whole content and one per fixed-size piece.
+ * The size and modification time the hashes were computed for are kept alongside, so a cached
+ * manifest can be reused as long as the file has not changed.
+ */
+public class PieceManifest {
+    public static final int DIGEST_LENGTH = 32;
+
+    private final long fileSize;
+    private final long lastModified;
+    private final int pieceSize;
+    private final byte[] fileDigest;
+    private final byte[][] pieceDigests;
+
+    public PieceManifest(long fileSize, long lastModified, int pieceSize, byte[] fileDigest, byte[][] pieceDigests) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.pieceSize = pieceSize;
+        this.fileDigest = fileDigest;
+        this.pieceDigests = pieceDigests;
+    }
+
+    public static PieceManifest compute(Path filePath, int pieceSize) throws IOException {
+        long fileSize = Files.size(filePath);
+        long lastModified = Files.getLastModifiedTime(filePath).toMillis();
+        int pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+
+        MessageDigest fileHash = newDigest();
+        MessageDigest pieceHash = newDigest();
+        byte[][] pieceDigests = new byte[pieceCount][];
+        byte[] buffer = new byte[pieceSize];
+
+        try (InputStream in = Files.newInputStream(filePath)) {
+            for (int piece = 0; piece < pieceCount; piece++) {
+                int length = (int) Math.min(pieceSize, fileSize - (long) piece * pieceSize);
+                if (in.readNBytes(buffer, 0, length) != length) {
+                    throw new IOException(filePath.getFileName() + " changed while it was being hashed");
+                }
+
+                fileHash.update(buffer, 0, length);
+                pieceHash.update(buffer, 0, length);
+                pieceDigests[piece] = pieceHash.digest();
+            }
+        }
+
+        return new PieceManifest(fileSize, lastModified, pieceSize, fileHash.digest(), pieceDigests);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public boolean matches(long size, long modified) {
+        return fileSize == size && lastModified == modified;
+    }
+
+    public boolean verifyPiece(int piece, byte[] data, int offset, int length) {
+        MessageDigest digest = newDigest();
+        digest.update(data, offset, length);
+        return Arrays.equals(digest.digest(), pieceDigests[piece]);
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    public int getPieceCount() {
+        return pieceDigests.length;
+    }
+
+    public byte[] getFileDigest() {
+        return fileDigest.clone();
+    }
+
+    public String getFileDigestHex() {
+        return HexFormat.of().formatHex(fileDigest);
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeLong(fileSize);
+        dos.writeLong(lastModified);
+        dos.writeInt(pieceSize);
+        dos.write(fileDigest);
+        dos.writeInt(pieceDigests.length);
+        for (byte[] pieceDigest : pieceDigests) {
+            dos.write(pieceDigest);
+        }
+    }
+
+    public static PieceManifest read(DataInputStream dis) throws IOException {
+        long fileSize = dis.readLong();
+        long lastModified = dis.readLong();
+        int pieceSize = dis.readInt();
+
+        byte[] fileDigest = new byte[DIGEST_LENGTH];
+        dis.readFully(fileDigest);
+
+        int pieceCount = dis.readInt();
+        if (pieceSize <= 0 || pieceCount < 0 || pieceCount != (int) ((fileSize + pieceSize - 1) / pieceSize)) {
+            throw new IOException("Malformed manifest: " + pieceCount + " pieces of " + pieceSize + " for " + fileSize + " bytes");
+        }
+
+        byte[][] pieceDigests = new byte[pieceCount][DIGEST_LENGTH];
+        for (byte[] pieceDigest : pieceDigests) {
+            dis.readFully(pieceDigest);
+        }
+
+        return new PieceManifest(fileSize, lastModified, pieceSize, fileDigest, pieceDigests);
+    }
+}
@@ -0,0 +1,35 @@
+package com.vamsik.core;
+
+import com.vamsik.utils.FileUtils;
+
+/**
+ * A file in the discovery catalog together with its size and the number of peers seeding it.
+ */
+public class RemoteFile {
+    private final String name;
+    private final long size;
+    private final int seeders;
+
+    public RemoteFile(String name, long size, int seeders) {
+        this.name = name;
+        this.size = size;
+        this.seeders = seeders;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getSeeders() {
+        return seeders;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + FileUtils.formatSize(size) + ", " + seeders + (seeders == 1 ? " seeder)" : " seeders)");
+    }
+}
@@ -0,0 +1,322 @@
+package com.vamsik.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * In-memory index of every file in the shared directory tree, with its size and modification
+ * time. It is built by one walk on start and then kept current by a {@link WatchService} on every
+ * directory of the tree, so looking up, listing and sizing shared files never touches the disk.
+ * Files are named by their path relative to the shared directory with '/' separators, e.g.
+ * {@code logs/2026/app.log}. Hidden files and directories (starting with '.') are left out, which
+ * also keeps the manifest cache and the download queue private.
+ * <p>
+ * Added and removed files are reported in batches: events are collected for a short window
+ * after the first one, so copying a folder full of files turns into one {@link FileDelta}. A file
+ * that changes is reported once it has been left alone for that long, so one still being written
+ * is announced with its final size rather than every size on the way.
+ */
+public class SharedIndex implements Closeable {
+    private static final Logger logger = Logger.getLogger(SharedIndex.class.getName());
+
+    /**
+     * A shared file as of the last event seen for it.
+     */
+    public record SharedFile(String name, Path path, long size, long modified) {
+    }
+
+    private final Path root;
+    private final long batchMillis;
+    private final Consumer<FileDelta> listener;
+    private final Map<String, SharedFile> files = new ConcurrentHashMap<>();
+    // only touched by the watcher thread once start() returned
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private WatchService watchService;
+    private Thread thread;
+
+    // collected by the watcher thread until the batch is handed to the listener
+    private Set<String> added = new LinkedHashSet<>();
+    private Set<String> removed = new LinkedHashSet<>();
+    private boolean resync;
+    // changed files by the time of their last event, oldest first
+    private final Map<String, Long> changed = new LinkedHashMap<>();
+
+    public SharedIndex(Path root, long batchMillis, Consumer<FileDelta> listener) {
+        this.root = root.toAbsolutePath().normalize();
+        this.batchMillis = batchMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Indexes the tree and starts watching it. When the tree can not be watched the index still
+     * works, but only reflects the files that were there on start.
+     */
+    public void start() {
+        try {
+            watchService = root.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            logger.info("Could not watch " + root + ", new files will only be shared after a restart");
+        }
+
+        long start = System.nanoTime();
+        this.scan(root, null);
+        logger.info("Indexed " + files.size() + " shared files in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        if (watchService != null) {
+            thread = new Thread(this::watch, "shared-index");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public SharedFile get(String name) {
+        return files.get(name);
+    }
+
+    public boolean contains(String name) {
+        return files.containsKey(name);
+    }
+
+    public Collection<SharedFile> getFiles() {
+        return files.values();
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    // walks a directory, registering it and its subdirectories with the watch service, and
+    // records each file it finds in discovered when given
+    private void scan(Path directory, Set<String> discovered) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (!dir.equals(root) && isHidden(dir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (watchService != null) {
+                        directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY, OVERFLOW), dir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && !isHidden(file)) {
+                        String name = nameOf(file);
+                        files.put(name, new SharedFile(name, file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                        if (discovered != null) {
+                            discovered.add(name);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // vanished or unreadable, the watcher reports it if it comes back
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.info("Could not index " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private void watch() {
+        boolean batching = false;
+        long flushAt = 0;
+
+        try {
+            while (true) {
+                WatchKey key = batching
+                        ? watchService.poll(Math.max(0, TimeUnit.NANOSECONDS.toMillis(flushAt - System.nanoTime())), TimeUnit.MILLISECONDS)
+                        : watchService.take();
+
+                if (key != null) {
+                    this.handleEvents(key);
+
+                    if (!batching && (resync || !added.isEmpty() || !removed.isEmpty() || !changed.isEmpty())) {
+                        batching = true;
+                        flushAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchMillis);
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (batching && now - flushAt >= 0) {
+                    Set<String> settled = this.takeSettled(now);
+                    if (resync || !added.isEmpty() || !removed.isEmpty() || !settled.isEmpty()) {
+                        listener.accept(new FileDelta(added, removed, settled, resync));
+                    }
+                    added = new LinkedHashSet<>();
+                    removed = new LinkedHashSet<>();
+                    resync = false;
+
+                    // files still being written are looked at again once the oldest could have settled
+                    batching = !changed.isEmpty();
+                    if (batching) {
+                        flushAt = changed.values().iterator().next() + TimeUnit.MILLISECONDS.toNanos(batchMillis);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.info("Stopped watching " + root);
+        }
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path directory = directories.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || directory == null) {
+                this.rescan();
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+            if (isHidden(path)) {
+                continue;
+            }
+
+            if (event.kind() == ENTRY_DELETE) {
+                this.removeTree(nameOf(path));
+            } else {
+                this.update(path, event.kind() == ENTRY_CREATE);
+            }
+        }
+
+        if (!key.reset()) {
+            directories.remove(key);
+            if (directory != null && directory.equals(root)) {
+                logger.info("Shared directory is no longer accessible: " + root);
+            }
+        }
+    }
+
+    // a new directory is indexed with everything already in it; a known file whose size or time
+    // changed is announced again once it settles
+    private void update(Path path, boolean created) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return; // gone again already, its delete event follows
+        }
+
+        if (attrs.isDirectory()) {
+            if (created) {
+                Set<String> discovered = new LinkedHashSet<>();
+                this.scan(path, discovered);
+                this.markAdded(discovered);
+            }
+            return;
+        }
+
+        if (!attrs.isRegularFile()) {
+            return;
+        }
+
+        String name = nameOf(path);
+        SharedFile previous = files.put(name, new SharedFile(name, path, attrs.size(), attrs.lastModifiedTime().toMillis()));
+        if (previous == null) {
+            this.markAdded(List.of(name));
+        } else if (previous.size() != attrs.size() || previous.modified() != attrs.lastModifiedTime().toMillis()) {
+            this.markChanged(name);
+        }
+    }
+
+    private void markAdded(Collection<String> names) {
+        for (String name : names) {
+            removed.remove(name);
+            changed.remove(name);
+            added.add(name);
+        }
+    }
+
+    // a file about to be announced as added goes out with its latest size anyway
+    private void markChanged(String name) {
+        if (!added.contains(name)) {
+            changed.remove(name);
+            changed.put(name, System.nanoTime());
+        }
+    }
+
+    // the changed files without an event for a whole batch window, taken out of the pending ones
+    private Set<String> takeSettled(long now) {
+        Set<String> settled = new LinkedHashSet<>();
+        long quietNanos = TimeUnit.MILLISECONDS.toNanos(batchMillis);
+
+        for (Iterator<Map.Entry<String, Long>> iterator = changed.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Long> change = iterator.next();
+            if (now - change.getValue() < quietNanos) {
+                break; // the rest changed even later
+            }
+            settled.add(change.getKey());
+            iterator.remove();
+        }
+        return settled;
+    }
+
+    // the name is a file or a whole directory, every file below it goes
+    private void removeTree(String name) {
+        String prefix = name + "/";
+
+        for (Iterator<String> iterator = files.keySet().iterator(); iterator.hasNext(); ) {
+            String fileName = iterator.next();
+            if (fileName.equals(name) || fileName.startsWith(prefix)) {
+                iterator.remove();
+                added.remove(fileName);
+                changed.remove(fileName);
+                removed.add(fileName);
+            }
+        }
+    }
+
+    // events were lost, so the whole tree is indexed again and registered from scratch
+    private void rescan() {
+        for (WatchKey key : directories.keySet()) {
+            key.cancel();
+        }
+        directories.clear();
+
+        Set<String> before = new HashSet<>(files.keySet());
+        Set<String> found = new HashSet<>();
+        this.scan(root, found);
+
+        before.removeAll(found);
+        files.keySet().removeAll(before);
+        changed.clear(); // the new registration carries every size
+        resync = true;
+    }
+
+    private String nameOf(Path path) {
+        StringJoiner name = new StringJoiner("/");
+        for (Path part : root.relativize(path)) {
+            name.add(part.toString());
+        }
+        return name.toString();
+    }
+
+    private static boolean isHidden(Path path) {
+        Path fileName = path.getFileName();
+        return fileName != null && fileName.toString().startsWith(".");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.vamsik.core;
+
+import com.vamsik.metrics.Counter;
+import com.vamsik.metrics.LatencyHistogram;
+import com.vamsik.metrics.Metrics;
+import com.vamsik.protocol.ContentKey;
+import com.vamsik.utils.Config;
+import com.vamsik.utils.Threads;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Downloads one file from every peer that has it at the same time. The file is split into fixed
+ * size pieces and every peer connection pulls the next missing piece as soon as it finished the
+ * previous one, so faster peers naturally end up serving more of the file. Pieces are written
+ * at their offset into a {@link DownloadSink}, and a peer that errors out or stops sending gives
+ * its piece back to the queue. When a peer can provide the {@link PieceManifest},
+ * every piece is checked against its hash and fetched again if it does not match. Connections
+ * come from a {@link ConnectionPool} and keep up to {@link Config#PIPELINE_DEPTH} piece requests
+ * outstanding, so a peer never sits idle waiting for the next request to arrive. The file may be
+ * named by its {@link ContentKey}, to download it from peers that share it under other names.
+ */
+public class SwarmDownloader {
+    private static final Logger logger = Logger.getLogger(SwarmDownloader.class.getName());
+    // how many bytes to write between flushing the partial file and updating its progress sidecar
+    private static final long CHECKPOINT_BYTES = 8 * 1024 * 1024;
+    // once the queue is empty, an idle peer re-requests a piece that has been in flight this long
+    private static final long ENDGAME_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // a peer that sends this many pieces failing their hash is not asked again
+    private static final int MAX_BAD_PIECES = 3;
+
+    private static final Counter DOWNLOADED_BYTES = Metrics.counter("peer_download_bytes_total", "Piece bytes received from other peers");
+    private static final LatencyHistogram PIECE_LATENCY = Metrics.histogram("peer_piece_seconds", "Time from requesting a piece to having it verified");
+    private static final Counter BAD_PIECES = Metrics.counter("peer_piece_failures_total", "Pieces that did not match their hash");
+    private static final Counter COMPLETED = Metrics.counter("peer_downloads_total", "Downloads that ended", "result", "complete");
+    private static final Counter INCOMPLETE = Metrics.counter("peer_downloads_total", "Downloads that ended", "result", "incomplete");
+
+    private final String fileName;
+    private final List<InetSocketAddress> peers;
+    private final Path targetPath;
+    private final BiConsumer<Long, Long> progressListener;
+    private final ConnectionPool pool;
+
+    private final Deque<Integer> pending = new ConcurrentLinkedDeque<>();
+    private final Map<Integer, Long> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicLong bytesSinceCheckpoint = new AtomicLong();
+    // a lock rather than synchronized, a virtual thread blocked in force() would pin its carrier
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+
+    private long fileSize = -1;
+    private PieceManifest manifest;
+    private DownloadProgress progress;
+    private DownloadSink sink;
+
+    public SwarmDownloader(String fileName, List<InetSocketAddress> peers, Path targetPath, ConnectionPool pool, BiConsumer<Long, Long> progressListener) {
+        this.fileName = fileName;
+        this.pool = pool;
+        this.peers = peers;
+        this.targetPath = targetPath;
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * @return true when the whole file is on disk, false when every peer dropped out before that.
+     * Pieces that did arrive are kept and picked up again by the next attempt.
+     */
+    public boolean download() throws IOException, InterruptedException {
+        List<PeerConnection> connections = connectAll();
+
+        if (connections.isEmpty()) {
+            logger.info("None of the " + peers.size() + " peers can serve " + fileName);
+            INCOMPLETE.increment();
+            return false;
+        }
+
+        manifest = fetchManifest(connections);
+        if (manifest == null) {
+            logger.info("No peer has a manifest for " + fileName + ", pieces will not be verified");
+        }
+
+        // the progress is looked at before the sink creates the part file it belongs to
+        progress = DownloadProgress.open(DownloadSink.partFor(targetPath), fileSize, manifest != null ? manifest.getPieceSize() : Config.PIECE_SIZE);
+        ExecutorService workers = Threads.newConnectionExecutor(connections.size());
+
+        try (DownloadSink opened = DownloadSink.open(targetPath, fileSize)) {
+            sink = opened;
+            verifyResumedPieces();
+
+            for (int piece = 0; piece < progress.getPieceCount(); piece++) {
+                if (progress.isComplete(piece)) {
+                    bytesDone.addAndGet(progress.pieceLength(piece));
+                } else {
+                    pending.add(piece);
+                }
+            }
+
+            logger.info("Downloading " + fileName + " (" + fileSize + " bytes, " + pending.size() + " pieces left) from " + connections.size() + " peers");
+
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            for (PeerConnection connection : connections) {
+                tasks.add(() -> this.work(connection));
+            }
+            workers.invokeAll(tasks);
+
+            if (!progress.isComplete()) {
+                BitSet durable = progress.snapshot();
+                sink.force();
+                progress.save(durable);
+                logger.info("All peers dropped out, " + progress.completedCount() + "/" + progress.getPieceCount() + " pieces of " + fileName + " saved");
+                INCOMPLETE.increment();
+                return false;
+            }
+
+            sink.commit();
+        } finally {
+            workers.shutdownNow();
+        }
+
+        progress.delete();
+        COMPLETED.increment();
+        return true;
+    }
+
+    // connects to every peer in parallel and keeps the ones that have the file with a consistent size
+    private List<PeerConnection> connectAll() throws InterruptedException {
+        ExecutorService connectors = Threads.newConnectionExecutor(Math.min(peers.size(), 16));
+        List<Future<PeerConnection>> futures = new ArrayList<>();
+
+        for (InetSocketAddress peer : peers) {
+            futures.add(connectors.submit(() -> this.connect(peer)));
+        }
+        connectors.shutdown();
+
+        List<PeerConnection> connections = new ArrayList<>();
+
+        for (Future<PeerConnection> future : futures) {
+            PeerConnection connection;
+            try {
+                connection = future.get();
+            } catch (ExecutionException e) {
+                continue;
+            }
+
+            if (connection == null) {
+                continue;
+            }
+
+            try {
+                long size = connection.requestRange(fileName, 0, 0);
+                if (fileSize == -1) {
+                    fileSize = size;
+                }
+                if (size == fileSize) {
+                    if (Config.COMPRESSION && !connection.negotiateCompression()) {
+                        logger.info("Peer " + connection + " does not support compression, pieces come uncompressed");
+                    }
+                    connections.add(connection);
+                    continue;
+                }
+                logger.info("Skipping peer " + connection + ", it has a different " + fileName + " (" + size + " bytes)");
+                pool.release(connection);
+            } catch (IOException e) {
+                logger.info("Peer " + connection + " failed: " + e.getMessage());
+                pool.invalidate(connection);
+            }
+        }
+
+        return connections;
+    }
+
+    // a file asked for by its content key only takes a manifest of that content
+    private PieceManifest fetchManifest(List<PeerConnection> connections) {
+        String digest = ContentKey.digestOf(fileName);
+
+        for (PeerConnection connection : connections) {
+            try {
+                PieceManifest candidate = connection.requestManifest(fileName);
+                if (candidate != null && candidate.getFileSize() == fileSize
+                        && (digest == null || digest.equals(candidate.getFileDigestHex()))) {
+                    return candidate;
+                }
+            } catch (IOException e) {
+                logger.info("Peer " + connection + " could not send the manifest: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    // pieces from an earlier attempt were only flushed, not checked, so read them back once
+    private void verifyResumedPieces() throws IOException {
+        if (manifest == null || progress.completedCount() == 0) {
+            return;
+        }
+
+        byte[] buffer = new byte[progress.getPieceSize()];
+        int bad = 0;
+
+        for (int piece = 0; piece < progress.getPieceCount(); piece++) {
+            if (!progress.isComplete(piece)) {
+                continue;
+            }
+
+            int length = progress.pieceLength(piece);
+
+            if (!sink.read(progress.pieceOffset(piece), buffer, length) || !manifest.verifyPiece(piece, buffer, 0, length)) {
+                progress.markMissing(piece);
+                bad++;
+            }
+        }
+
+        if (bad > 0) {
+            logger.info(bad + " resumed pieces of " + fileName + " failed verification and will be fetched again");
+        }
+    }
+
+    private PeerConnection connect(InetSocketAddress peer) {
+        PeerConnection connection = null;
+        try {
+            connection = pool.borrow(peer);
+            if (connection.hasFile(fileName)) {
+                return connection;
+            }
+            pool.release(connection);
+        } catch (IOException e) {
+            logger.info("Could not reach peer " + peer + ": " + e.getMessage());
+            pool.invalidate(connection);
+        }
+        return null;
+    }
+
+    private int work(PeerConnection connection) {
+        byte[] buffer = new byte[progress.getPieceSize()];
+        // pieces requested on this connection whose replies have not been read yet, in request order
+        Deque<Integer> outstanding = new ArrayDeque<>();
+        int served = 0;
+        int badPieces = 0;
+        boolean healthy = false;
+
+        try {
+            while (!outstanding.isEmpty() || !progress.isComplete()) {
+                requestMore(connection, outstanding);
+
+                if (outstanding.isEmpty()) {
+                    // the remaining pieces are in flight on other peers
+                    Thread.sleep(50);
+                    continue;
+                }
+
+                int piece = outstanding.peekFirst();
+                boolean verified = fetchPiece(connection, piece, buffer);
+                outstanding.pollFirst();
+                inFlight.remove(piece);
+
+                if (verified) {
+                    served++;
+                } else if (++badPieces >= MAX_BAD_PIECES) {
+                    pending.addLast(piece);
+                    logger.info("Dropping peer " + connection + " after " + badPieces + " corrupt pieces");
+                    return served;
+                } else {
+                    // to the back of the queue so that another peer is likely to pick it up
+                    pending.addLast(piece);
+                }
+            }
+            healthy = true;
+        } catch (IOException e) {
+            logger.info("Dropping peer " + connection + " after " + served + " pieces: " + e.getMessage());
+            return served;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // whatever is still outstanding goes back to the front of the queue
+            Integer piece;
+            while ((piece = outstanding.pollLast()) != null) {
+                inFlight.remove(piece);
+                if (!progress.isComplete(piece)) {
+                    pending.addFirst(piece);
+                }
+            }
+
+            // only a connection with every reply read can be handed to the next download
+            if (healthy) {
+                pool.release(connection);
+            } else {
+                pool.invalidate(connection);
+            }
+        }
+
+        logger.info("Peer " + connection + " served " + served + " pieces of " + fileName);
+        return served;
+    }
+
+    // tops the connection up to the pipeline depth and sends the new requests in one flush
+    private void requestMore(PeerConnection connection, Deque<Integer> outstanding) throws IOException {
+        int sent = 0;
+
+        while (outstanding.size() < Config.PIPELINE_DEPTH && !progress.isComplete()) {
+            Integer piece = nextPiece();
+            if (piece == null) {
+                break;
+            }
+
+            connection.sendRangeRequest(fileName, progress.pieceOffset(piece), progress.pieceLength(piece));
+            outstanding.addLast(piece);
+            sent++;
+        }
+
+        if (sent > 0) {
+            connection.getOutput().flush();
+        }
+    }
+
+    private Integer nextPiece() {
+        Integer piece;
+        while ((piece = pending.poll()) != null) {
+            if (!progress.isComplete(piece)) {
+                inFlight.put(piece, System.nanoTime());
+                return piece;
+            }
+        }
+
+        // endgame: take over the oldest piece that has been stuck on another peer for too long
+        long now = System.nanoTime();
+        Integer oldest = null;
+        long oldestStart = Long.MAX_VALUE;
+
+        for (Map.Entry<Integer, Long> entry : inFlight.entrySet()) {
+            if (entry.getValue() < oldestStart && now - entry.getValue() > ENDGAME_NANOS) {
+                oldest = entry.getKey();
+                oldestStart = entry.getValue();
+            }
+        }
+
+        if (oldest != null && inFlight.replace(oldest, oldestStart, now)) {
+            return oldest;
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the reply to a range request sent earlier by {@link #requestMore}.
+     *
+     * @return false when the piece arrived but did not match its hash
+     */
+    private boolean fetchPiece(PeerConnection connection, int piece, byte[] buffer) throws IOException {
+        long offset = progress.pieceOffset(piece);
+        int length = progress.pieceLength(piece);
+        TransferEvent event = new TransferEvent();
+        event.begin();
+
+        connection.readRangeReply(fileName, offset, length);
+        connection.readRangeBody(buffer, length);
+        DOWNLOADED_BYTES.add(length);
+
+        if (manifest != null && !manifest.verifyPiece(piece, buffer, 0, length)) {
+            logger.info("Piece " + piece + " of " + fileName + " from " + connection + " failed verification");
+            BAD_PIECES.increment();
+            return false;
+        }
+
+        Long requested = inFlight.get(piece);
+        if (requested != null) {
+            PIECE_LATENCY.recordSince(requested);
+        }
+        event.finish(TransferEvent.DOWNLOAD, fileName, connection.getAddress(), length);
+
+        sink.write(offset, buffer, 0, length);
+
+        if (progress.markComplete(piece)) {
+            progressListener.accept(bytesDone.addAndGet(length), progress.getFileSize());
+
+            if (bytesSinceCheckpoint.addAndGet(length) >= CHECKPOINT_BYTES) {
+                checkpoint();
+            }
+        }
+
+        return true;
+    }
+
+    private void checkpoint() throws IOException {
+        checkpointLock.lock();
+        try {
+            if (bytesSinceCheckpoint.get() < CHECKPOINT_BYTES) {
+                return; // another peer just did it
+            }
+            bytesSinceCheckpoint.set(0);
+
+            // only pieces that were written before the force may be recorded as durable
+            BitSet durable = progress.snapshot();
+            sink.force();
+            progress.save(durable);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+}
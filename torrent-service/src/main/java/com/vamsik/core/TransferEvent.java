@@ -0,0 +1,49 @@
+package com.vamsik.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One file body sent to a peer or one piece received from one, for flight recordings
+ * ({@code -XX:StartFlightRecording}). With the remote peer on every event a recording shows which
+ * peers are slow, something the process-wide metrics average away. Costs next to nothing while
+ * no recording is running.
+ */
+@Name("com.vamsik.Transfer")
+@Label("File Transfer")
+@Category({"Peer 2 Peer File Share", "Transfers"})
+@Description("A file body sent to another peer, or a piece received from one")
+@StackTrace(false)
+class TransferEvent extends Event {
+    static final String UPLOAD = "upload";
+    static final String DOWNLOAD = "download";
+
+    @Label("Direction")
+    String direction;
+
+    @Label("File")
+    String file;
+
+    @Label("Peer")
+    String peer;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    void finish(String direction, String file, Object peer, long bytes) {
+        this.end();
+        if (this.shouldCommit()) {
+            this.direction = direction;
+            this.file = file;
+            this.peer = String.valueOf(peer);
+            this.bytes = bytes;
+            this.commit();
+        }
+    }
+}
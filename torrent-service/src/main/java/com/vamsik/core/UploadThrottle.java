@@ -0,0 +1,181 @@
+package com.vamsik.core;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps the upload rate of a peer, both in total and per connection. Every upload sends its data
+ * in chunks and reserves each chunk from a token bucket before sending it. A reservation that
+ * finds the bucket empty books the next free slot on the bucket's timeline, so waiting uploads
+ * are served in the order they asked and none of them can starve the others. An upload with a
+ * higher weight reserves bigger chunks and so gets a proportionally bigger share. Rates can be
+ * changed at any time and apply to the next chunk of every running upload.
+ */
+public class UploadThrottle {
+    // bytes an upload of weight 1 reserves at a time
+    static final int QUANTUM = 64 * 1024;
+    // chunk size while no limit is set, small chunks would only add system calls
+    private static final int UNLIMITED_CHUNK = 8 * 1024 * 1024;
+
+    private final Bucket global;
+    private volatile long connectionRate;
+    private final Set<Upload> uploads = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param globalRate     bytes per second for all uploads together, 0 for no limit
+     * @param connectionRate bytes per second for each connection, 0 for no limit
+     */
+    public UploadThrottle(long globalRate, long connectionRate) {
+        this.global = new Bucket(globalRate);
+        this.connectionRate = connectionRate;
+    }
+
+    public long getGlobalRate() {
+        return global.getRate();
+    }
+
+    public void setGlobalRate(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+    }
+
+    public long getConnectionRate() {
+        return connectionRate;
+    }
+
+    public void setConnectionRate(long bytesPerSecond) {
+        connectionRate = bytesPerSecond;
+        for (Upload upload : uploads) {
+            upload.bucket.setRate(bytesPerSecond);
+        }
+    }
+
+    /**
+     * Starts tracking a connection that uploads data, close it when the connection ends.
+     */
+    Upload open(int weight) {
+        Upload upload = new Upload(Math.max(1, weight), connectionRate);
+        uploads.add(upload);
+        return upload;
+    }
+
+    class Upload implements Closeable {
+        private final int weight;
+        private final Bucket bucket;
+
+        private Upload(int weight, long rate) {
+            this.weight = weight;
+            this.bucket = new Bucket(rate);
+        }
+
+        /**
+         * @return how many bytes to send between two reservations
+         */
+        int chunkSize() {
+            return bucket.rate > 0 || global.rate > 0 ? QUANTUM * weight : UNLIMITED_CHUNK;
+        }
+
+        /**
+         * Books {@code bytes} in the connection's and in the global bucket.
+         *
+         * @return how many nanoseconds to wait before sending them, 0 to send right away
+         */
+        long reserve(long bytes) {
+            return Math.max(bucket.reserve(bytes), global.reserve(bytes));
+        }
+
+        /**
+         * Books {@code bytes} and blocks until they may be sent.
+         */
+        void acquire(long bytes) throws InterruptedIOException {
+            long waitNanos = this.reserve(bytes);
+
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            uploads.remove(this);
+        }
+    }
+
+    /**
+     * Token bucket that holds at most {@link #burst} unused bytes and lends the rest against the
+     * future: {@code nextFree} is the moment all bytes reserved so far have been paid for.
+     */
+    private static class Bucket {
+        // a lock rather than synchronized, the blocking server may run on virtual threads
+        private final ReentrantLock lock = new ReentrantLock();
+        // written under the lock, read without it to pick the chunk size
+        private volatile long rate;
+        private long burst;
+        private double stored;
+        private long nextFree = System.nanoTime();
+
+        Bucket(long rate) {
+            this.setRate(rate);
+        }
+
+        long getRate() {
+            return rate;
+        }
+
+        void setRate(long bytesPerSecond) {
+            lock.lock();
+            try {
+                this.refill(System.nanoTime());
+                rate = Math.max(0, bytesPerSecond);
+                // 50 ms worth of data, so a connection that was idle does not get a big burst
+                burst = Math.max(QUANTUM, rate / 20);
+                stored = Math.min(stored, burst);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long reserve(long bytes) {
+            if (rate == 0) {
+                return 0;
+            }
+
+            lock.lock();
+            try {
+                if (rate == 0) {
+                    return 0;
+                }
+
+                long now = System.nanoTime();
+                this.refill(now);
+
+                long waitNanos = Math.max(0, nextFree - now);
+                double fromStored = Math.min(bytes, stored);
+                stored -= fromStored;
+                nextFree = Math.max(nextFree, now) + (long) ((bytes - fromStored) * 1e9 / rate);
+
+                return waitNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // bytes not used while the bucket was idle are saved up to the burst size
+        private void refill(long now) {
+            if (now > nextFree) {
+                if (rate > 0) {
+                    stored = Math.min(burst, stored + (now - nextFree) * rate / 1e9);
+                }
+                nextFree = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.vamsik.daemon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Plain text HTTP API of the seed daemon, for scripts and curl:
+ * <pre>
+ * GET  /status
+ * GET  /files?filter=report*&amp;cursor=...
+ * GET  /search?q=reprot&amp;limit=20    best matches first, typos allowed, "report*" for a prefix
+ * GET  /downloads
+ * POST /downloads?priority=HIGH     file names in the body, one per line
+ * PUT  /upload-rate?kbps=512        0 for no limit
+ * </pre>
+ * POST and PUT need an {@code X-Seed-Control} header, and requests with an {@code Origin} are
+ * refused: a web page can not add the header without a preflight this server never allows, so
+ * pages open in the operator's browser can not queue downloads or change the rate.
+ * Requests are answered one at a time on a single daemon thread, like {@code /metrics}.
+ */
+public final class ControlServer implements Closeable {
+    private static final Logger logger = Logger.getLogger(ControlServer.class.getName());
+    private static final String CONTENT_TYPE = "text/plain; charset=utf-8";
+    // any value will do, only scripts can set it without the browser asking this server first
+    private static final String CONTROL_HEADER = "X-Seed-Control";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private ControlServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * @param host the address to listen on; the API takes no credentials, keep it on loopback
+     */
+    public static ControlServer start(String host, int port, DaemonControl control) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "control-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server.createContext("/status", exchange -> handle(exchange, "GET", query -> control.status()));
+        server.createContext("/files", exchange -> handle(exchange, "GET",
+                query -> control.files(query.getOrDefault("filter", ""), query.getOrDefault("cursor", ""))));
+        server.createContext("/search", exchange -> handle(exchange, "GET",
+                query -> control.search(query.getOrDefault("q", ""), Integer.parseInt(query.getOrDefault("limit", "20")))));
+        server.createContext("/downloads", exchange -> {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                List<String> fileNames = Arrays.stream(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).split("\n"))
+                        .map(String::strip)
+                        .filter(name -> !name.isEmpty())
+                        .toList();
+                handle(exchange, "POST", query -> control.download(fileNames, DaemonControl.parsePriority(query.get("priority"))));
+            } else {
+                handle(exchange, "GET", query -> control.downloads());
+            }
+        });
+        server.createContext("/upload-rate", exchange -> handle(exchange, "PUT",
+                query -> control.uploadRate(Long.parseLong(query.getOrDefault("kbps", "")))));
+        server.setExecutor(executor);
+        server.start();
+
+        logger.info("Control API served on http://" + host + ":" + server.getAddress().getPort() + "/");
+        return new ControlServer(server, executor);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private interface Command {
+        String run(Map<String, String> query);
+    }
+
+    // bad parameters are the caller's fault and answered with 400, anything else with 500
+    private static void handle(HttpExchange exchange, String method, Command command) throws IOException {
+        try (exchange) {
+            if (!method.equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            int status = 200;
+            String text;
+            try {
+                if (exchange.getRequestHeaders().containsKey("Origin")) {
+                    // sent by browsers, never by curl; no page is served from here
+                    status = 403;
+                    text = "Cross-origin requests are refused\n";
+                } else if (!"GET".equals(method) && !exchange.getRequestHeaders().containsKey(CONTROL_HEADER)) {
+                    status = 403;
+                    text = method + " needs an " + CONTROL_HEADER + " header\n";
+                } else {
+                    text = command.run(parseQuery(exchange.getRequestURI().getRawQuery()));
+                }
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                text = "Bad request: " + e.getMessage() + "\n";
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                status = 500;
+                text = "Failed: " + e + "\n";
+            }
+
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,105 @@
+package com.vamsik.daemon;
+
+import com.vamsik.core.ClientHandler;
+import com.vamsik.core.DownloadJob;
+import com.vamsik.core.FilePage;
+import com.vamsik.core.Peer;
+import com.vamsik.core.RemoteFile;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * What can be asked of a running seed daemon, answered as plain text, one item per line. Both the
+ * console and {@link ControlServer} go through here so they never disagree.
+ */
+public class DaemonControl {
+    private static final Logger logger = Logger.getLogger(DaemonControl.class.getName());
+
+    private final Peer peer;
+    private final ClientHandler clientHandler;
+    private final long startedAt = System.currentTimeMillis();
+
+    public DaemonControl(Peer peer, ClientHandler clientHandler) {
+        this.peer = peer;
+        this.clientHandler = clientHandler;
+    }
+
+    public String status() {
+        List<DownloadJob> jobs = clientHandler.getDownloads().getJobs();
+        long uploadRate = peer.getUploadThrottle().getGlobalRate();
+
+        return "port " + peer.getServerPort() + "\n"
+                + "shared " + peer.getSharedFileCount() + "\n"
+                + "downloads " + count(jobs, DownloadJob.State.DOWNLOADING) + " active, "
+                + count(jobs, DownloadJob.State.QUEUED) + " queued, "
+                + count(jobs, DownloadJob.State.DONE) + " done, "
+                + count(jobs, DownloadJob.State.FAILED) + " failed\n"
+                + "uploadRate " + (uploadRate > 0 ? uploadRate / 1024 + " KB/s" : "unlimited") + "\n"
+                + "uptime " + (System.currentTimeMillis() - startedAt) / 1000 + " s\n";
+    }
+
+    /**
+     * One page of the discovery catalog, followed by a "next" line with the cursor of the
+     * following page when there is one.
+     */
+    public String files(String filter, String cursor) {
+        FilePage page = clientHandler.listFiles(filter, cursor == null ? "" : cursor);
+        StringBuilder sb = new StringBuilder();
+
+        for (RemoteFile file : page.getFiles()) {
+            sb.append(file).append('\n');
+        }
+        if (page.hasMore()) {
+            sb.append("next ").append(page.getNextCursor()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The best matches for the query, best first; see {@link ClientHandler#searchFiles}.
+     */
+    public String search(String query, int limit) {
+        StringBuilder sb = new StringBuilder();
+        for (RemoteFile file : clientHandler.searchFiles(query, limit)) {
+            sb.append(file).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public String downloads() {
+        StringBuilder sb = new StringBuilder();
+        for (DownloadJob job : clientHandler.getDownloads().getJobs()) {
+            sb.append(job).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public String download(Collection<String> fileNames, DownloadJob.Priority priority) {
+        List<DownloadJob> queued = clientHandler.getDownloads().enqueue(fileNames, priority);
+        logger.info("Queued " + queued.size() + " of " + fileNames.size() + " files for download");
+        return "queued " + queued.size() + "\n";
+    }
+
+    /**
+     * @param kilobytes total upload rate in KB/s, 0 for no limit; applies to running uploads too
+     */
+    public String uploadRate(long kilobytes) {
+        peer.getUploadThrottle().setGlobalRate(Math.max(0, kilobytes) * 1024);
+        logger.info("Upload limit set to " + (kilobytes > 0 ? kilobytes + " KB/s" : "unlimited"));
+        return "uploadRate " + (kilobytes > 0 ? kilobytes + " KB/s" : "unlimited") + "\n";
+    }
+
+    /**
+     * @throws IllegalArgumentException for a name that is not a priority
+     */
+    public static DownloadJob.Priority parsePriority(String text) {
+        return text == null || text.isBlank() ? DownloadJob.Priority.NORMAL : DownloadJob.Priority.valueOf(text.trim().toUpperCase(Locale.ROOT));
+    }
+
+    private static long count(List<DownloadJob> jobs, DownloadJob.State state) {
+        return jobs.stream().filter(job -> job.getState() == state).count();
+    }
+}
@@ -0,0 +1,212 @@
+package com.vamsik.daemon;
+
+import com.vamsik.core.ClientHandler;
+import com.vamsik.core.DownloadJob;
+import com.vamsik.core.Peer;
+import com.vamsik.metrics.MetricsServer;
+import com.vamsik.metrics.PinningDiagnostics;
+import com.vamsik.utils.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs a peer without the JavaFX client, for seed nodes on servers. Takes the same arguments as
+ * the desktop client and is driven from the console or, with {@code -Dapp.controlPort}, over HTTP
+ * (see {@link ControlServer}). Stops on {@code quit}, SIGINT or SIGTERM.
+ */
+public class SeedDaemon {
+    private static final Logger logger = Logger.getLogger(SeedDaemon.class.getName());
+    // matches the console shows for a search
+    private static final int SEARCH_RESULTS = 20;
+    private static final String HELP = """
+            status                          port, shared files, downloads and upload limit
+            files [filter]                  first page of the discovery catalog
+            search text                     best matches, typos allowed, text* for a prefix
+            downloads                       the download queue
+            download [HIGH|NORMAL|LOW] name queue a file
+            rate kb                         upload limit in KB/s, 0 for none
+            quit
+            """;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private Peer peer;
+    private ClientHandler clientHandler;
+    private DaemonControl control;
+    private ControlServer controlServer;
+    private MetricsServer metricsServer;
+
+    private SeedDaemon() {
+    }
+
+    public static void main(String[] args) {
+        int port = 8000;
+        String discoverHost = "localhost";
+        int discoverPort = 3969;
+        String dirName = ".shared";
+
+        // args[0] = port
+        // args[1] = discoveryHost
+        // args[2] = discoveryPort
+        // args[3] = dirName
+
+        if (args.length > 0) {
+            port = Integer.parseInt(args[0]); // port
+        }
+        if (args.length > 1) {
+            discoverHost = args[1]; // discovery host
+        }
+        if (args.length > 2) {
+            discoverPort = Integer.parseInt(args[2]); // discovery port
+        }
+        if (args.length > 3) {
+            dirName = args[3]; // directory name
+        }
+
+        SeedDaemon daemon = new SeedDaemon();
+        daemon.start(discoverHost, discoverPort, port, dirName);
+        daemon.awaitStop();
+    }
+
+    private void start(String discoverHost, int discoverPort, int port, String dirName) {
+        long startedAt = System.nanoTime();
+
+        if (Config.PINNING_DIAGNOSTICS) {
+            PinningDiagnostics.start(Duration.ofMillis(Config.PINNING_THRESHOLD_MILLIS));
+        }
+
+        if (Config.METRICS_PORT > 0) {
+            try {
+                metricsServer = MetricsServer.start(Config.METRICS_HOST, Config.METRICS_PORT);
+            } catch (IOException e) {
+                logger.warning("Can not serve metrics on port " + Config.METRICS_PORT + ": " + e.getMessage());
+            }
+        }
+
+        logger.info("Starting seed daemon with port: " + port + ", discoveryHost: " + discoverHost + ", discoveryPort: " + discoverPort + ", dirName: " + dirName);
+
+        peer = new Peer(discoverHost, discoverPort, port, dirName);
+        peer.start();
+
+        clientHandler = new ClientHandler(discoverHost, discoverPort, dirName);
+        clientHandler.getDownloads().setListener(SeedDaemon::logFinished);
+        clientHandler.getDownloads().setLocalContent(peer::findContent);
+        clientHandler.getDownloads().start();
+
+        control = new DaemonControl(peer, clientHandler);
+
+        if (Config.CONTROL_PORT > 0) {
+            try {
+                controlServer = ControlServer.start(Config.CONTROL_HOST, Config.CONTROL_PORT, control);
+            } catch (IOException e) {
+                logger.warning("Can not serve the control API on port " + Config.CONTROL_PORT + ": " + e.getMessage());
+            }
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "seed-shutdown"));
+
+        Thread console = new Thread(this::readConsole, "seed-cli");
+        console.setDaemon(true);
+        console.start();
+
+        logger.info("Seed daemon ready in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) + " ms");
+    }
+
+    private void awaitStop() {
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // runs once, from quit or from the shutdown hook
+    private synchronized void stop() {
+        if (stopped.getCount() == 0) {
+            return;
+        }
+
+        logger.info("Stopping seed daemon...");
+        if (controlServer != null) {
+            controlServer.close();
+        }
+        clientHandler.close();
+        peer.disconnect();
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        stopped.countDown();
+    }
+
+    // without a console, e.g. under a service manager, stdin ends at once and only HTTP is left
+    private void readConsole() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> words = Arrays.stream(line.trim().split("\\s+")).filter(word -> !word.isEmpty()).toList();
+                if (words.isEmpty()) {
+                    continue;
+                }
+                if (words.get(0).equalsIgnoreCase("quit")) {
+                    this.stop();
+                    return;
+                }
+                System.out.print(this.runCommand(words));
+                System.out.flush();
+            }
+        } catch (IOException e) {
+            logger.info("Console closed: " + e.getMessage());
+        }
+    }
+
+    private String runCommand(List<String> words) {
+        List<String> rest = words.subList(1, words.size());
+        try {
+            return switch (words.get(0).toLowerCase(Locale.ROOT)) {
+                case "status" -> control.status();
+                case "files" -> control.files(String.join(" ", rest), "");
+                case "search" -> control.search(String.join(" ", rest), SEARCH_RESULTS);
+                case "downloads" -> control.downloads();
+                case "download" -> this.download(rest);
+                case "rate" -> control.uploadRate(Long.parseLong(rest.isEmpty() ? "" : rest.get(0)));
+                default -> HELP;
+            };
+        } catch (IllegalArgumentException e) {
+            return "Bad command: " + e.getMessage() + "\n" + HELP;
+        }
+    }
+
+    // an optional priority first, the rest of the line is the file name
+    private String download(List<String> words) {
+        if (words.isEmpty()) {
+            throw new IllegalArgumentException("no file name");
+        }
+
+        DownloadJob.Priority priority = DownloadJob.Priority.NORMAL;
+        List<String> name = words;
+        if (words.size() > 1) {
+            for (DownloadJob.Priority candidate : DownloadJob.Priority.values()) {
+                if (candidate.name().equalsIgnoreCase(words.get(0))) {
+                    priority = candidate;
+                    name = words.subList(1, words.size());
+                }
+            }
+        }
+        return control.download(List.of(String.join(" ", name)), priority);
+    }
+
+    // the listener is also called for every percent, only the outcome is worth a log line here
+    private static void logFinished(DownloadJob job) {
+        if (job.getState() == DownloadJob.State.DONE || job.getState() == DownloadJob.State.FAILED) {
+            logger.info("Download " + job);
+        }
+    }
+}
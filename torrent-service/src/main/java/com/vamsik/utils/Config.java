@@ -3,4 +3,94 @@ package com.vamsik.utils;
 public class Config {
     public static final boolean IS_DEBUG =
             "debug".equalsIgnoreCase(System.getProperty("app.env"));
+
+    // serve DOWNLOAD with FileChannel.transferTo, -Dapp.zeroCopy=false falls back to the buffered copy loop
+    public static final boolean ZERO_COPY =
+            !"false".equalsIgnoreCase(System.getProperty("app.zeroCopy"));
+
+    // size of the pieces a file is split into for swarm downloads
+    public static final int PIECE_SIZE = Integer.getInteger("app.pieceSize", 1024 * 1024);
+
+    // connect and read timeout towards other peers, a peer that stays silent longer is dropped
+    public static final int PEER_TIMEOUT_MILLIS = Integer.getInteger("app.peerTimeout", 15000);
+
+    // peer server engine: "blocking" (a thread per connection) or "nio" (a few selector threads)
+    public static final String SERVER_ENGINE = System.getProperty("app.server", "blocking");
+
+    // number of selector threads used by the nio engine
+    public static final int NIO_LOOPS = Integer.getInteger("app.nioLoops",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    // run connection handling and client tasks on virtual threads, -Dapp.threads=virtual
+    public static final boolean VIRTUAL_THREADS =
+            "virtual".equalsIgnoreCase(System.getProperty("app.threads"));
+
+    // log virtual threads that stay pinned to their carrier for longer than app.pinningThreshold ms
+    public static final boolean PINNING_DIAGNOSTICS =
+            "true".equalsIgnoreCase(System.getProperty("app.pinningDiagnostics"));
+    public static final int PINNING_THRESHOLD_MILLIS = Integer.getInteger("app.pinningThreshold", 20);
+
+    // how long to wait before reconnecting to the discovery service after the session dropped
+    public static final int DISCOVERY_RETRY_MILLIS = Integer.getInteger("app.discoveryRetry", 5000);
+
+    // how long changes in the shared directory are collected before they are announced
+    public static final int ANNOUNCE_BATCH_MILLIS = Integer.getInteger("app.announceBatch", 500);
+
+    // how many idle connections to keep open per peer or discovery address
+    public static final int POOL_MAX_IDLE = Integer.getInteger("app.poolMaxIdle", 4);
+
+    // idle pooled connections are closed after this long
+    public static final int POOL_IDLE_TIMEOUT_MILLIS = Integer.getInteger("app.poolIdleTimeout", 30000);
+
+    // a pooled connection idle for longer than this is pinged before it is reused
+    public static final int POOL_HEALTH_CHECK_MILLIS = Integer.getInteger("app.poolHealthCheck", 2000);
+
+    // how many queued files download at the same time
+    public static final int MAX_ACTIVE_DOWNLOADS = Math.max(1, Integer.getInteger("app.maxDownloads", 4));
+
+    // how many of the queued downloads a single peer serves at the same time
+    public static final int MAX_DOWNLOADS_PER_PEER = Math.max(1, Integer.getInteger("app.maxDownloadsPerPeer", 2));
+
+    // whether to ask peers for deflated pieces, pays off for text over slow links and costs CPU on both ends
+    public static final boolean COMPRESSION = Boolean.getBoolean("app.compression");
+
+    // how many bytes of compressed pieces a peer keeps so popular files are not compressed again
+    public static final long COMPRESSION_CACHE_BYTES = Long.getLong("app.compressionCache", 64L * 1024 * 1024);
+
+    // bytes per second this peer uploads in total, 0 for no limit
+    public static final long UPLOAD_RATE = Long.getLong("app.uploadRate", 0);
+
+    // bytes per second this peer uploads on a single connection, 0 for no limit
+    public static final long UPLOAD_CONNECTION_RATE = Long.getLong("app.uploadConnectionRate", 0);
+
+    // how many piece requests may be outstanding on one peer connection
+    public static final int PIPELINE_DEPTH = Math.max(1, Integer.getInteger("app.pipelineDepth", 2));
+
+    // bytes of popular shared files kept memory mapped so concurrent uploads share one copy, 0 to disable
+    public static final long HOT_CACHE_BYTES = Long.getLong("app.hotCache", 256L * 1024 * 1024);
+
+    // a download whose content is already shared under another name is hard-linked to it, false copies it instead
+    public static final boolean LINK_DUPLICATES =
+            !"false".equalsIgnoreCase(System.getProperty("app.linkDuplicates"));
+
+    // comma separated host:port list of discovery nodes sharing the catalog, empty for the single node given on the command line
+    public static final String DISCOVERY_NODES = System.getProperty("app.discoveryNodes", "");
+
+    // how many discovery nodes keep each file: its owner on the hash ring and the nodes after it
+    public static final int DISCOVERY_REPLICAS = Math.max(1, Integer.getInteger("app.discoveryReplicas", 2));
+
+    // port of the /metrics HTTP endpoint in Prometheus text format, 0 to leave it off
+    public static final int METRICS_PORT = Integer.getInteger("app.metricsPort", 0);
+
+    // address the metrics endpoint listens on, loopback keeps it to this machine
+    public static final String METRICS_HOST = System.getProperty("app.metricsHost", "127.0.0.1");
+
+    // port of the seed daemon's HTTP control API, 0 to leave it off
+    public static final int CONTROL_PORT = Integer.getInteger("app.controlPort", 0);
+
+    // address the control API listens on, it takes no credentials so keep it on loopback
+    public static final String CONTROL_HOST = System.getProperty("app.controlHost", "127.0.0.1");
+
+    private Config() {
+    }
 }
@@ -1,18 +1,19 @@
 package com.vamsik.utils;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
 import java.util.logging.Logger;
 
 public class FileUtils {
 
     private final static Logger logger = Logger.getLogger(FileUtils.class.getName());
 
+    private FileUtils() {
+    }
+
     @SuppressWarnings({"CallToPrintStackTrace"})
     public static void createFolder(String dirName) {
         try {
@@ -29,17 +30,6 @@ public class FileUtils {
         }
     }
 
-    public static long getFileSize(String dirName, String fileName) {
-        try {
-            Path dirPath = Path.of(dirName, fileName).toAbsolutePath();
-            File file = new File(dirPath.toString());
-            return file.length();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return 0;
-        }
-    }
-
     public static void createFile(String dirName, String fileName) {
         try {
             Path dirPath = Path.of(dirName, fileName).toAbsolutePath();
@@ -60,36 +50,42 @@ public class FileUtils {
         return dirPath.toString();
     }
 
-    public static String[] walkDirectory(String dirName) {
-        try {
-            Path dirPath = Path.of(dirName).toAbsolutePath();
-            List<String> fileList = new ArrayList<>();
-
-            // walk the directory
-            for (String fileName : Objects.requireNonNull(dirPath.toFile().list())) {
-                // check if the file is a file
-                if (new File(dirPath + "/" + fileName).isFile()) {
-                    fileList.add(fileName);
-                }
-            }
-
-            return fileList.toArray(new String[0]);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return new String[0];
+    /**
+     * Where a downloaded file goes: next to where the peer keeps it, inside the shared directory,
+     * with a "received_" prefix. Names from other peers are not trusted, one that would end up
+     * outside the shared directory is rejected.
+     */
+    public static Path getDownloadPath(String dirName, String fileName) throws IOException {
+        Path root = Path.of(dirName).toAbsolutePath().normalize();
+        Path remote = root.resolve(fileName).normalize();
+
+        if (!remote.startsWith(root) || remote.equals(root)) {
+            throw new IOException("Refusing to download " + fileName + " outside of " + root);
         }
+
+        Path target = remote.resolveSibling("received_" + remote.getFileName());
+        Files.createDirectories(target.getParent());
+        return target;
     }
 
+    public static String formatSize(long bytes) {
+        if (bytes < 0) {
+            return "unknown size";
+        }
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
 
-    public static boolean checkFile(String dirName, String fileName) {
-        try {
-            Path dirPath = Path.of(dirName, fileName).toAbsolutePath();
-            File file = new File(dirPath.toString());
-            return file.exists();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+        String[] units = {"KB", "MB", "GB", "TB", "PB"};
+        double value = bytes;
+        int unit = -1;
+
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
         }
+
+        return String.format("%.1f %s", value, units[unit]);
     }
 
 }
@@ -0,0 +1,36 @@
+package com.vamsik.utils;
+
+import com.vamsik.metrics.Metrics;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+public class Threads {
+
+    private Threads() {
+    }
+
+    /**
+     * Executor for blocking connection work. In virtual mode every task gets its own virtual
+     * thread, otherwise tasks share a fixed pool of platform threads.
+     */
+    public static ExecutorService newConnectionExecutor(int platformThreads) {
+        if (Config.VIRTUAL_THREADS) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(platformThreads);
+    }
+
+    /**
+     * Publishes the queue depth and busy threads of a pool as metrics labelled with its name, to
+     * tell whether it is sized right. Virtual thread executors have neither and are left out.
+     */
+    public static void monitor(String name, ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor pool) {
+            Metrics.gauge("executor_queued_tasks", "Tasks waiting for a thread of the pool", () -> pool.getQueue().size(), "pool", name);
+            Metrics.gauge("executor_active_threads", "Threads of the pool running a task", pool::getActiveCount, "pool", name);
+            Metrics.gauge("executor_max_threads", "Threads the pool may run", pool::getMaximumPoolSize, "pool", name);
+        }
+    }
+}
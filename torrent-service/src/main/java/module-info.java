@@ -1,9 +1,10 @@
 module torrent.service {
-    requires javafx.base;
-
     requires java.logging;
-    requires javafx.controls;
-    requires javafx.graphics;
+    requires vamsi.common;
+    requires jdk.jfr;
+    requires jdk.httpserver;
 
-    exports com.vamsik;
-}
\ No newline at end of file
+    exports com.vamsik.core;
+    exports com.vamsik.daemon;
+    exports com.vamsik.utils;
+}
@@ -0,0 +1,326 @@
+package com.vamsik;
+
+import com.vamsik.core.ClientHandler;
+import com.vamsik.core.DownloadJob;
+import com.vamsik.core.FilePage;
+import com.vamsik.core.Peer;
+import com.vamsik.core.RemoteFile;
+import com.vamsik.metrics.MetricsServer;
+import com.vamsik.metrics.PinningDiagnostics;
+import com.vamsik.utils.Config;
+import com.vamsik.utils.Threads;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Scene;
+import javafx.scene.control.*;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import javafx.concurrent.Task;
+import javafx.util.Callback;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+public class PeerTorrent extends Application {
+    private final static Logger logger = Logger.getLogger(PeerTorrent.class.getName());
+    // how many of the best matches a search shows
+    private static final int SEARCH_RESULTS = 200;
+    private static Peer currentPeer;
+    private static MetricsServer metricsServer;
+    private ListView<RemoteFile> availableFilesList;
+    private ListView<DownloadJob> downloadsList;
+    private ComboBox<DownloadJob.Priority> priorityBox;
+    // set while a refresh of the downloads list is waiting on the FX thread
+    private final AtomicBoolean downloadsRefreshPending = new AtomicBoolean();
+    private TextField filterField;
+    private Button loadMoreButton;
+    private String nextCursor = "";
+    private ClientHandler clientHandler;
+    private ExecutorService executorService;
+    private ProgressIndicator progressIndicator;
+
+    public static void main(String[] args) {
+        int port = 8000;
+        String discoverHost = "localhost";
+        int discoverPort = 3969;
+        String dirName = ".shared";
+
+        // args[0] = port
+        // args[1] = discoveryHost
+        // args[2] = discoveryPort
+        // args[3] = dirName
+
+        if (args.length > 0) {
+            port = Integer.parseInt(args[0]); // port
+        }
+        if (args.length > 1) {
+            discoverHost = args[1]; // discovery host
+        }
+        if (args.length > 2) {
+            discoverPort = Integer.parseInt(args[2]); // discovery port
+        }
+        if (args.length > 3) {
+            dirName = args[3]; // directory name
+        }
+
+        if (Config.PINNING_DIAGNOSTICS) {
+            PinningDiagnostics.start(Duration.ofMillis(Config.PINNING_THRESHOLD_MILLIS));
+        }
+
+        if (Config.METRICS_PORT > 0) {
+            try {
+                metricsServer = MetricsServer.start(Config.METRICS_HOST, Config.METRICS_PORT);
+            } catch (IOException e) {
+                logger.warning("Can not serve metrics on port " + Config.METRICS_PORT + ": " + e.getMessage());
+            }
+        }
+
+        logger.info("Starting PeerTorrent with port: " + port + ", discoveryHost: " + discoverHost + ", discoveryPort: " + discoverPort + ", dirName: " + dirName);
+
+        Peer newPeer = new Peer(discoverHost, discoverPort, port, dirName); // creating a new peer instance
+        newPeer.start(); // starting the peer thread
+        currentPeer = newPeer; // setting the current peer
+        launch(args); // launching JavaFX(GUI) application
+    }
+
+    @Override
+    public void start(Stage stage) throws Exception {
+        executorService = Threads.newConnectionExecutor(10);
+
+        Parameters params = getParameters();
+
+        String discoveryHost = "localhost";
+        int discoverPort = 3969;
+        String dirName = ".shared";
+
+        List<String> rawParams = params.getRaw();
+
+        if (rawParams.size() >= 2) {
+            discoveryHost = rawParams.get(1);
+        }
+        if (rawParams.size() >= 3) {
+            discoverPort = Integer.parseInt(rawParams.get(2));
+        }
+        if (rawParams.size() >= 4) {
+            dirName = rawParams.get(3);
+        }
+
+        clientHandler = new ClientHandler(discoveryHost, discoverPort, dirName); // Initialize ClientHandler here
+
+        stage.setTitle("Peer Torrent Client");
+        progressIndicator = new ProgressIndicator();
+        progressIndicator.setVisible(false); // Initially hide the progress indicator
+
+        // handling when the app is closed
+        stage.setOnCloseRequest(event -> {
+            logger.info("Closing application...");
+            if (currentPeer != null) {
+                currentPeer.disconnect();
+                executorService.shutdown();
+            }
+            clientHandler.close();
+            if (metricsServer != null) {
+                metricsServer.close();
+            }
+        });
+
+        Label availableFilesLabel = new Label("Available Files:");
+
+        // set up the ListView with custom cell factory for download buttons
+        availableFilesList = new ListView<>();
+        availableFilesList.setCellFactory(createCellFactory());
+        availableFilesList.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+
+        filterField = new TextField();
+        filterField.setPromptText("Search by name, typos allowed (report-2026* for a prefix)");
+        HBox.setHgrow(filterField, Priority.ALWAYS);
+
+        Button refreshFilesButton = getRefreshButton();
+        filterField.setOnAction(event -> refreshFilesButton.fire());
+
+        loadMoreButton = new Button("Load More");
+        loadMoreButton.setVisible(false);
+        loadMoreButton.setOnAction(event -> loadFiles(false));
+
+        HBox toolbar = new HBox(10, filterField, refreshFilesButton);
+
+        priorityBox = new ComboBox<>();
+        priorityBox.getItems().addAll(DownloadJob.Priority.values());
+        priorityBox.setValue(DownloadJob.Priority.NORMAL);
+
+        Button downloadSelectedButton = new Button("Download Selected");
+        downloadSelectedButton.setOnAction(event -> {
+            List<String> fileNames = availableFilesList.getSelectionModel().getSelectedItems().stream()
+                    .map(RemoteFile::getName)
+                    .toList();
+            downloadFiles(fileNames);
+        });
+
+        HBox downloadBar = new HBox(10, loadMoreButton, downloadSelectedButton, priorityBox);
+
+        HBox uploadBar = new HBox(10, new Label("Upload limit (KB/s, 0 = none):"), createUploadLimitField());
+        uploadBar.setAlignment(Pos.CENTER_LEFT);
+
+        Label downloadsLabel = new Label("Downloads:");
+        downloadsList = new ListView<>();
+
+        VBox layout = new VBox(10);
+        layout.setPadding(new Insets(15));
+        layout.getChildren().addAll(progressIndicator, availableFilesLabel, toolbar, availableFilesList, downloadBar, downloadsLabel, downloadsList, uploadBar);
+
+        clientHandler.getDownloads().setListener(job -> this.scheduleDownloadsRefresh());
+        if (currentPeer != null) {
+            clientHandler.getDownloads().setLocalContent(currentPeer::findContent);
+        }
+        clientHandler.getDownloads().start();
+
+        Scene scene = new Scene(layout, 600, 600);
+        stage.setScene(scene);
+        stage.show();
+    }
+
+    // applies to uploads that are already running as well
+    private TextField createUploadLimitField() {
+        TextField uploadLimitField = new TextField(String.valueOf(currentPeer.getUploadThrottle().getGlobalRate() / 1024));
+        uploadLimitField.setPrefColumnCount(8);
+        uploadLimitField.setOnAction(event -> {
+            try {
+                long kilobytes = Long.parseLong(uploadLimitField.getText().trim());
+                currentPeer.getUploadThrottle().setGlobalRate(Math.max(0, kilobytes) * 1024);
+                logger.info("Upload limit set to " + (kilobytes > 0 ? kilobytes + " KB/s" : "unlimited"));
+            } catch (NumberFormatException e) {
+                uploadLimitField.setText(String.valueOf(currentPeer.getUploadThrottle().getGlobalRate() / 1024));
+            }
+        });
+        return uploadLimitField;
+    }
+
+    private Callback<ListView<RemoteFile>, ListCell<RemoteFile>> createCellFactory() {
+        return new Callback<>() {
+            @Override
+            public ListCell<RemoteFile> call(ListView<RemoteFile> param) {
+                return new ListCell<>() {
+                    private final Button downloadButton = new Button("Download");
+                    private final HBox hbox = new HBox();
+                    private final Label label = new Label();
+
+                    {
+                        hbox.setAlignment(Pos.CENTER_LEFT);
+                        hbox.setSpacing(10);
+
+                        // Set the label to grow and fill available space
+                        HBox.setHgrow(label, Priority.ALWAYS);
+
+                        downloadButton.setOnAction(event -> {
+                            RemoteFile file = getItem();
+                            if (file != null && !file.getName().isEmpty()) {
+                                downloadFiles(List.of(file.getName()));
+                            }
+                        });
+
+                        hbox.getChildren().addAll(label, downloadButton);
+                    }
+
+                    @Override
+                    protected void updateItem(RemoteFile item, boolean empty) {
+                        super.updateItem(item, empty);
+
+                        if (empty || item == null) {
+                            setGraphic(null);
+                        } else {
+                            label.setText(item.toString());
+                            setGraphic(hbox);
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    // the download manager looks up all files in one go and limits how many download at once
+    private void downloadFiles(List<String> fileNames) {
+        if (fileNames.isEmpty()) {
+            return;
+        }
+
+        logger.info("Queueing " + fileNames.size() + " files for download");
+        clientHandler.getDownloads().enqueue(fileNames, priorityBox.getValue());
+    }
+
+    // download updates arrive from many threads, the list is redrawn at most once per FX pulse
+    private void scheduleDownloadsRefresh() {
+        if (downloadsRefreshPending.compareAndSet(false, true)) {
+            Platform.runLater(() -> {
+                downloadsRefreshPending.set(false);
+                downloadsList.getItems().setAll(clientHandler.getDownloads().getJobs());
+            });
+        }
+    }
+
+    private Button getRefreshButton() {
+        Button refreshFilesButton = new Button("Refresh Files");
+        refreshFilesButton.setOnAction(event -> loadFiles(true));
+        return refreshFilesButton;
+    }
+
+    // without a filter loads the first page of the catalog or appends the next one to the list,
+    // with one lists the best matches, which come on a single page
+    private void loadFiles(boolean fromStart) {
+        logger.info("Fetching files...");
+        String filter = filterField.getText();
+        String cursor = fromStart ? "" : nextCursor;
+        Task<FilePage> task = new Task<>() {
+            @Override
+            protected FilePage call() {
+                if (filter.isBlank()) {
+                    return clientHandler.listFiles("", cursor);
+                }
+                return new FilePage(clientHandler.searchFiles(filter, SEARCH_RESULTS), "");
+            }
+        };
+
+        // Make visible and unbind before setting value
+        progressIndicator.setVisible(true);
+        progressIndicator.progressProperty().unbind();
+        progressIndicator.setProgress(0);
+
+        // Now bind to task
+        progressIndicator.progressProperty().bind(task.progressProperty());
+
+        task.setOnSucceeded(e -> {
+            progressIndicator.progressProperty().unbind();
+            FilePage page = task.getValue();
+
+            if (fromStart) {
+                availableFilesList.getItems().clear();
+            }
+
+            if (page.getFiles().isEmpty() && availableFilesList.getItems().isEmpty()) {
+                logger.info("No files available.");
+            } else {
+                availableFilesList.getItems().addAll(page.getFiles());
+                logger.info("Files fetched successfully.");
+            }
+
+            nextCursor = page.getNextCursor();
+            loadMoreButton.setVisible(page.hasMore());
+            progressIndicator.setVisible(false);
+        });
+
+        task.setOnFailed(e -> {
+            progressIndicator.progressProperty().unbind();
+            logger.info("Failed to fetch files: " + e.getSource().getException());
+            progressIndicator.setVisible(false);
+        });
+
+        executorService.execute(task); // Execute the task in a separate thread
+    }
+}
@@ -0,0 +1,11 @@
+module torrent.ui {
+    requires javafx.base;
+
+    requires java.logging;
+    requires vamsi.common;
+    requires torrent.service;
+    requires javafx.controls;
+    requires javafx.graphics;
+
+    exports com.vamsik;
+}